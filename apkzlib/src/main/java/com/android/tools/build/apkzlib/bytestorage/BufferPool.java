@@ -0,0 +1,48 @@
+package com.android.tools.build.apkzlib.bytestorage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of fixed-size byte arrays shared by the byte storages. Storages keep data in blocks obtained
+ * from the pool and give them back when sources are closed, so that storing and discarding data
+ * does not allocate new arrays once the pool is warm. Blocks may also be borrowed as temporary
+ * buffers, as long as they are released once done.
+ *
+ * <p>Only a bounded number of idle blocks is kept; blocks released when the pool is full are left
+ * to the garbage collector.
+ */
+public final class BufferPool {
+
+  /** Size of the blocks in the pool. */
+  public static final int BLOCK_SIZE = 64 * 1024;
+
+  /** Maximum number of idle blocks kept by the pool. */
+  private static final int MAX_IDLE_BLOCKS = 64;
+
+  /** Idle blocks. */
+  private static final BlockingQueue<byte[]> idle = new ArrayBlockingQueue<>(MAX_IDLE_BLOCKS);
+
+  private BufferPool() {}
+
+  /**
+   * Obtains a block. The contents of the block are undefined.
+   *
+   * @return a block with {@link #BLOCK_SIZE} bytes
+   */
+  public static byte[] acquire() {
+    byte[] block = idle.poll();
+    return block == null ? new byte[BLOCK_SIZE] : block;
+  }
+
+  /**
+   * Gives a block back to the pool. The block must not be used after being released.
+   *
+   * @param block a block obtained with {@link #acquire()}
+   */
+  public static void release(byte[] block) {
+    if (block.length == BLOCK_SIZE) {
+      idle.offer(block);
+    }
+  }
+}
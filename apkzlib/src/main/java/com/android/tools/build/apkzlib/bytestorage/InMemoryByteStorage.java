@@ -17,14 +17,14 @@
 package com.android.tools.build.apkzlib.bytestorage;
 
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
-import com.android.tools.build.apkzlib.zip.utils.CloseableDelegateByteSource;
 import com.google.common.io.ByteSource;
-import com.google.common.io.ByteStreams;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
-/** Keeps track of used bytes allowing gauging memory usage. */
+/**
+ * Keeps track of used bytes allowing gauging memory usage. Data is kept in blocks recycled through
+ * {@link BufferPool}, see {@link PooledBlocksCloseableByteSource}.
+ */
 public class InMemoryByteStorage implements ByteStorage {
 
   /** Number of bytes currently in use. */
@@ -35,44 +35,41 @@ public class InMemoryByteStorage implements ByteStorage {
 
   @Override
   public CloseableByteSource fromStream(InputStream stream) throws IOException {
-    byte[] data = ByteStreams.toByteArray(stream);
-    updateUsage(data.length);
-    return new CloseableDelegateByteSource(ByteSource.wrap(data), data.length) {
-      @Override
-      public synchronized void innerClose() throws IOException {
-        super.innerClose();
-        updateUsage(-sizeNoException());
-      }
-    };
+    PooledBlocksCloseableByteSource.Accumulator accumulator =
+        new PooledBlocksCloseableByteSource.Accumulator();
+    long size = accumulator.readFrom(stream);
+    updateUsage(size);
+    return accumulator.build(() -> updateUsage(-size));
   }
 
   @Override
   public CloseableByteSourceFromOutputStreamBuilder makeBuilder() throws IOException {
-    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PooledBlocksCloseableByteSource.Accumulator accumulator =
+        new PooledBlocksCloseableByteSource.Accumulator();
     return new AbstractCloseableByteSourceFromOutputStreamBuilder() {
+      /** Number of bytes written. */
+      private long size;
+
       @Override
       protected void doWrite(byte[] b, int off, int len) throws IOException {
-        output.write(b, off, len);
+        accumulator.write(b, off, len);
+        size += len;
         updateUsage(len);
       }
 
       @Override
       protected CloseableByteSource doBuild() throws IOException {
-        byte[] data = output.toByteArray();
-        return new CloseableDelegateByteSource(ByteSource.wrap(data), data.length) {
-          @Override
-          protected synchronized void innerClose() throws IOException {
-            super.innerClose();
-            updateUsage(-data.length);
-          }
-        };
+        long builtSize = size;
+        return accumulator.build(() -> updateUsage(-builtSize));
       }
     };
   }
 
   @Override
   public CloseableByteSource fromSource(ByteSource source) throws IOException {
-    return fromStream(source.openStream());
+    try (InputStream stream = source.openStream()) {
+      return fromStream(stream);
+    }
   }
 
   /**
@@ -18,6 +18,9 @@ class LruTrackedCloseableByteSource extends SwitchableDelegateCloseableByteSourc
   /** The tracker being used. */
   private final LruTracker<LruTrackedCloseableByteSource> tracker;
 
+  /** Callback invoked whenever a stream is opened after the source stopped being tracked. */
+  private final Runnable untrackedAccessCallback;
+
   /** Are we still tracking usage? */
   private boolean tracking;
 
@@ -28,8 +31,22 @@ class LruTrackedCloseableByteSource extends SwitchableDelegateCloseableByteSourc
   LruTrackedCloseableByteSource(
       CloseableByteSource delegate, LruTracker<LruTrackedCloseableByteSource> tracker)
       throws IOException {
+    this(delegate, tracker, () -> {});
+  }
+
+  /**
+   * Creates a new byte source based on the given source and using the provided tracker. {@code
+   * untrackedAccessCallback} is invoked every time a stream is opened once the source has been
+   * moved, which allows counting how often moved data is read back.
+   */
+  LruTrackedCloseableByteSource(
+      CloseableByteSource delegate,
+      LruTracker<LruTrackedCloseableByteSource> tracker,
+      Runnable untrackedAccessCallback)
+      throws IOException {
     super(delegate);
     this.tracker = tracker;
+    this.untrackedAccessCallback = untrackedAccessCallback;
     tracker.track(this);
     tracking = true;
     closed = false;
@@ -40,6 +57,8 @@ class LruTrackedCloseableByteSource extends SwitchableDelegateCloseableByteSourc
     Preconditions.checkState(!closed);
     if (tracking) {
       tracker.access(this);
+    } else {
+      untrackedAccessCallback.run();
     }
 
     return super.openStream();
@@ -67,14 +86,17 @@ class LruTrackedCloseableByteSource extends SwitchableDelegateCloseableByteSourc
   /**
    * Moves the contents of this source to a storage. This will untrack the source and switch its
    * contents to a new delegate provided by {@code diskStorage}.
+   *
+   * @return the number of bytes moved, {@code 0} if the source has already been closed
    */
-  synchronized void move(ByteStorage diskStorage) throws IOException {
+  synchronized long move(ByteStorage diskStorage) throws IOException {
     if (closed) {
-      return;
+      return 0;
     }
 
     CloseableByteSource diskSource = diskStorage.fromSource(this);
     untrack();
     switchSource(diskSource);
+    return diskSource.size();
   }
 }
@@ -1,9 +1,11 @@
 package com.android.tools.build.apkzlib.bytestorage;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
 
 /**
@@ -11,7 +13,9 @@ import javax.annotation.Nullable;
  * doesn't define what LRU means, it has a method, {@link #access(Object)} that marks the object as
  * being accessed and moves it to the top of the queue.
  *
- * <p>This implementation is O(log(N)) on all operations.
+ * <p>This implementation is O(log(N)) on all operations. There is no global lock: operations on
+ * different objects may run concurrently, so threads reading different sources do not wait for
+ * each other.
  *
  * <p>Implementation note: we don't keep track of time. Instead we use a counter that is incremented
  * every time a new access is done or a new object is tracked. Because of this, each access time is
@@ -19,55 +23,66 @@ import javax.annotation.Nullable;
  */
 class LruTracker<T> {
 
-  /** Maps each object to its unique access time and vice-versa. */
-  private final BiMap<T, Integer> objectToAccessTime;
+  /**
+   * Maps each object to its unique access time. Updates of an object's access time are done
+   * atomically for each object by the map.
+   */
+  private final ConcurrentHashMap<T, Long> objectToAccessTime;
 
   /**
-   * Ordered set of all object's access times. This set has the same contents as {@code
-   * objectToAccessTime.value()}. It is sorted from the highest access time (newest) to the lowest
-   * access time (oldest).
+   * Maps access times back to objects, sorted from the lowest access time (oldest) to the highest
+   * access time (newest). This map has the same contents as {@link #objectToAccessTime}, inverted.
    */
-  private final TreeSet<Integer> accessTimes;
+  private final ConcurrentNavigableMap<Long, T> accessTimes;
 
   /** Next access time to use for tracking or accessing. */
-  private int currentTime;
+  private final AtomicLong currentTime;
 
   /** Creates a new tracker without any objects. */
   LruTracker() {
-    currentTime = 1;
-    objectToAccessTime = HashBiMap.create();
-    accessTimes = new TreeSet<>((i0, i1) -> i1 - i0);
+    currentTime = new AtomicLong(1);
+    objectToAccessTime = new ConcurrentHashMap<>();
+    accessTimes = new ConcurrentSkipListMap<>();
   }
 
   /** Starts tracking an object. This object's will be the most recently used. */
-  synchronized void track(T object) {
-    Preconditions.checkState(!objectToAccessTime.containsKey(object));
-    objectToAccessTime.put(object, currentTime);
-    accessTimes.add(currentTime);
-    currentTime++;
+  void track(T object) {
+    objectToAccessTime.compute(
+        object,
+        (o, time) -> {
+          Preconditions.checkState(time == null);
+          return newAccessTime(o);
+        });
   }
 
   /** Stops tracking an object. */
-  synchronized void untrack(T object) {
-    Preconditions.checkState(objectToAccessTime.containsKey(object));
-    accessTimes.remove(objectToAccessTime.get(object));
-    objectToAccessTime.remove(object);
+  void untrack(T object) {
+    Long time = objectToAccessTime.remove(object);
+    Preconditions.checkState(time != null);
+    accessTimes.remove(time);
   }
 
   /** Marks the given object as having been accessed promoting it as the most recently used. */
-  synchronized void access(T object) {
-    untrack(object);
-    track(object);
+  void access(T object) {
+    objectToAccessTime.compute(
+        object,
+        (o, time) -> {
+          Preconditions.checkState(time != null);
+          accessTimes.remove(time);
+          return newAccessTime(o);
+        });
   }
 
   /**
-   * Obtains the position of an object in the queue. It will be {@code 0} for the most recently used
-   * object.
+   * Creates a new access time, the newest of all, for an object.
+   *
+   * @param object the object
+   * @return the new access time, already in {@link #accessTimes}
    */
-  synchronized int positionOf(T object) {
-    Preconditions.checkState(objectToAccessTime.containsKey(object));
-    int lastAccess = objectToAccessTime.get(object);
-    return accessTimes.headSet(lastAccess).size();
+  private Long newAccessTime(T object) {
+    Long time = currentTime.getAndIncrement();
+    accessTimes.put(time, object);
+    return time;
   }
 
   /**
@@ -75,11 +90,12 @@ class LruTracker<T> {
    * objects being tracked.
    */
   @Nullable
-  synchronized T last() {
-    if (accessTimes.isEmpty()) {
+  T last() {
+    Map.Entry<Long, T> oldest = accessTimes.firstEntry();
+    if (oldest == null) {
       return null;
     }
 
-    return objectToAccessTime.inverse().get(accessTimes.last());
+    return oldest.getValue();
   }
 }
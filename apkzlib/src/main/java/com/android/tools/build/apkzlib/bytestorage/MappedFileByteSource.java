@@ -0,0 +1,155 @@
+package com.android.tools.build.apkzlib.bytestorage;
+
+import com.android.tools.build.apkzlib.zip.utils.MappedFileView;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSource;
+import com.google.common.primitives.Ints;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javax.annotation.Nullable;
+
+/**
+ * Byte source that reads a file through a memory mapping. The file is mapped the first time it is
+ * read and the mapping is kept until the source is closed, so data is copied straight from the
+ * page cache instead of going through a file stream. Mapped pages are not part of the Java heap and
+ * the system can reclaim them at any time.
+ *
+ * <p>The file must not change once the source is created and must not be deleted before the source
+ * is closed.
+ */
+class MappedFileByteSource extends ByteSource implements Closeable {
+
+  /**
+   * Can files be read through a mapping? A mapping that cannot be unmapped lives until garbage
+   * collected, and on Windows the file cannot be deleted until then.
+   */
+  static final boolean CAN_MAP =
+      MappedFileView.canUnmap() || !System.getProperty("os.name", "").startsWith("Windows");
+
+  /** The file with the data. */
+  private final File file;
+
+  /** Size of the file. */
+  private final long size;
+
+  /** The mapping of the file, {@code null} if the file has not been read yet. */
+  @Nullable private MappedFileView view;
+
+  /**
+   * Creates a new source.
+   *
+   * @param file the file with the data
+   * @param size the size of the file
+   */
+  MappedFileByteSource(File file, long size) {
+    this.file = file;
+    this.size = size;
+  }
+
+  /** Obtains the mapping of the file, mapping it if needed. */
+  private synchronized MappedFileView view() throws IOException {
+    if (view == null) {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        view = MappedFileView.map(channel, 0, size, MappedFileView.DEFAULT_WINDOW_SIZE);
+      }
+    }
+
+    return view;
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public Optional<Long> sizeIfKnown() {
+    return Optional.of(size);
+  }
+
+  @Override
+  public byte[] read() throws IOException {
+    byte[] data = new byte[Ints.checkedCast(size)];
+    if (size > 0) {
+      view().read(0, ByteBuffer.wrap(data));
+    }
+
+    return data;
+  }
+
+  @Override
+  public InputStream openStream() throws IOException {
+    MappedFileView mapped = view();
+    return new InputStream() {
+      /** Offset of the next byte to read. */
+      private long position;
+
+      /** Offset of the mark. */
+      private long mark;
+
+      @Override
+      public int read() {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+          return 0;
+        }
+
+        int count = mapped.read(position, ByteBuffer.wrap(b, off, len));
+        if (count > 0) {
+          position += count;
+        }
+
+        return count;
+      }
+
+      @Override
+      public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, size - position));
+        position += skipped;
+        return skipped;
+      }
+
+      @Override
+      public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, size - position);
+      }
+
+      @Override
+      public boolean markSupported() {
+        return true;
+      }
+
+      @Override
+      public synchronized void mark(int readLimit) {
+        mark = position;
+      }
+
+      @Override
+      public synchronized void reset() {
+        position = mark;
+      }
+    };
+  }
+
+  /**
+   * Releases the mapping of the file, if the file has been read. The source cannot be read once
+   * closed.
+   */
+  @Override
+  public synchronized void close() {
+    if (view != null) {
+      view.close();
+      view = null;
+    }
+  }
+}
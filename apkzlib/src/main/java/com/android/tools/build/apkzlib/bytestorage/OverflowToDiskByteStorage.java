@@ -5,6 +5,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.ByteSource;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Byte storage that keeps data in memory up to a certain size. After that, older sources are moved
@@ -16,11 +17,15 @@ import java.io.InputStream;
  * <p>The maximum memory used by storage is actually larger than the maximum provided. It may exceed
  * the limit by the size of one source. That is because sources are always loaded into memory before
  * the storage decides to flush them to disk.
+ *
+ * <p>Besides the byte counters, the storage counts how many sources were moved to disk ({@link
+ * #getSpillCount()}, {@link #getSpilledBytes()}) and how many times data was read back from disk
+ * ({@link #getReloadCount()}), which tells whether the memory cache is sized sensibly.
  */
 public class OverflowToDiskByteStorage implements ByteStorage {
 
   /** Size of the default memory cache. */
-  private static final long DEFAULT_MEMORY_CACHE_BYTES = 50 * 1024 * 1024;
+  static final long DEFAULT_MEMORY_CACHE_BYTES = 50 * 1024 * 1024;
 
   /** In-memory storage. */
   private final InMemoryByteStorage memoryStorage;
@@ -38,6 +43,15 @@ public class OverflowToDiskByteStorage implements ByteStorage {
   /** Maximum amount of data used. */
   private long maxBytesUsed;
 
+  /** Number of sources moved to disk. */
+  private final AtomicLong spillCount = new AtomicLong();
+
+  /** Number of bytes moved to disk. */
+  private final AtomicLong spilledBytes = new AtomicLong();
+
+  /** Number of streams opened on sources that had been moved to disk. */
+  private final AtomicLong reloadCount = new AtomicLong();
+
   /**
    * Creates a new byte storage with the default memory cache using the provided temporary directory
    * to write data that overflows the memory size.
@@ -66,8 +80,30 @@ public class OverflowToDiskByteStorage implements ByteStorage {
   public OverflowToDiskByteStorage(
       long memoryCacheSize, TemporaryDirectoryFactory temporaryDirectoryFactory)
       throws IOException {
+    this(memoryCacheSize, temporaryDirectoryFactory, false);
+  }
+
+  /**
+   * Creates a new byte storage with the given memory cache size using the provided temporary
+   * directory to write data that overflows the memory size.
+   *
+   * @param memoryCacheSize the in-memory cache; a value of {@link 0} will effectively disable
+   *     in-memory caching
+   * @param temporaryDirectoryFactory the factory used to create a temporary directory where to
+   *     overflow to; the created directory will be closed when the {@link
+   *     OverflowToDiskByteStorage} object is closed
+   * @param mapDiskFiles should data moved to disk be read back through memory mappings? See
+   *     {@link TemporaryDirectoryStorage#TemporaryDirectoryStorage(TemporaryDirectoryFactory,
+   *     boolean)}
+   * @throws IOException failed to create the temporary directory
+   */
+  public OverflowToDiskByteStorage(
+      long memoryCacheSize,
+      TemporaryDirectoryFactory temporaryDirectoryFactory,
+      boolean mapDiskFiles)
+      throws IOException {
     memoryStorage = new InMemoryByteStorage();
-    diskStorage = new TemporaryDirectoryStorage(temporaryDirectoryFactory);
+    diskStorage = new TemporaryDirectoryStorage(temporaryDirectoryFactory, mapDiskFiles);
     this.memoryCacheSize = memoryCacheSize;
     this.memorySourcesTracker = new LruTracker<>();
   }
@@ -75,7 +111,10 @@ public class OverflowToDiskByteStorage implements ByteStorage {
   @Override
   public CloseableByteSource fromStream(InputStream stream) throws IOException {
     CloseableByteSource memSource =
-        new LruTrackedCloseableByteSource(memoryStorage.fromStream(stream), memorySourcesTracker);
+        new LruTrackedCloseableByteSource(
+            memoryStorage.fromStream(stream),
+            memorySourcesTracker,
+            reloadCount::incrementAndGet);
     checkMaxUsage();
     reviewSources();
     return memSource;
@@ -93,7 +132,8 @@ public class OverflowToDiskByteStorage implements ByteStorage {
       @Override
       protected CloseableByteSource doBuild() throws IOException {
         CloseableByteSource memSource =
-            new LruTrackedCloseableByteSource(memBuilder.build(), memorySourcesTracker);
+            new LruTrackedCloseableByteSource(
+                memBuilder.build(), memorySourcesTracker, reloadCount::incrementAndGet);
         checkMaxUsage();
         reviewSources();
         return memSource;
@@ -104,7 +144,10 @@ public class OverflowToDiskByteStorage implements ByteStorage {
   @Override
   public CloseableByteSource fromSource(ByteSource source) throws IOException {
     CloseableByteSource memSource =
-        new LruTrackedCloseableByteSource(memoryStorage.fromSource(source), memorySourcesTracker);
+        new LruTrackedCloseableByteSource(
+            memoryStorage.fromSource(source),
+            memorySourcesTracker,
+            reloadCount::incrementAndGet);
     checkMaxUsage();
     reviewSources();
     return memSource;
@@ -134,7 +177,9 @@ public class OverflowToDiskByteStorage implements ByteStorage {
       LruTrackedCloseableByteSource last = memorySourcesTracker.last();
       if (last != null) {
         LruTrackedCloseableByteSource lastSource = last;
-        lastSource.move(diskStorage);
+        long moved = lastSource.move(diskStorage);
+        spillCount.incrementAndGet();
+        spilledBytes.addAndGet(moved);
       }
     }
   }
@@ -159,6 +204,21 @@ public class OverflowToDiskByteStorage implements ByteStorage {
     return diskStorage.getMaxBytesUsed();
   }
 
+  /** Obtains the number of sources that have been moved from memory to disk. */
+  public long getSpillCount() {
+    return spillCount.get();
+  }
+
+  /** Obtains the number of bytes that have been moved from memory to disk. */
+  public long getSpilledBytes() {
+    return spilledBytes.get();
+  }
+
+  /** Obtains the number of times data that had been moved to disk was read again. */
+  public long getReloadCount() {
+    return reloadCount.get();
+  }
+
   @Override
   public void close() throws IOException {
     memoryStorage.close();
@@ -15,6 +15,9 @@ public class OverflowToDiskByteStorageFactory implements ByteStorageFactory {
   /** Factory that creates temporary directories. */
   private final TemporaryDirectoryFactory temporaryDirectoryFactory;
 
+  /** Should data moved to disk be read back through memory mappings? */
+  private final boolean mapDiskFiles;
+
   /**
    * Creates a new factory with an optional in-memory size and a temporary directory for overflow.
    *
@@ -35,16 +38,39 @@ public class OverflowToDiskByteStorageFactory implements ByteStorageFactory {
    */
   public OverflowToDiskByteStorageFactory(
       Long memoryCacheSizeInBytes, TemporaryDirectoryFactory temporaryDirectoryFactory) {
+    this(memoryCacheSizeInBytes, temporaryDirectoryFactory, false);
+  }
+
+  /**
+   * Creates a new factory with an optional in-memory size and a temporary directory for overflow.
+   *
+   * @param memoryCacheSizeInBytes how many bytes to keep in memory? If {@code null} then a default
+   *     value will be used
+   * @param temporaryDirectoryFactory a factory that creates temporary directories that will be used
+   *     for overflow of the {@link ByteStorage} instances created by this factory
+   * @param mapDiskFiles should data moved to disk be read back through memory mappings?
+   */
+  public OverflowToDiskByteStorageFactory(
+      @Nullable Long memoryCacheSizeInBytes,
+      TemporaryDirectoryFactory temporaryDirectoryFactory,
+      boolean mapDiskFiles) {
     this.memoryCacheSizeInBytes = memoryCacheSizeInBytes;
     this.temporaryDirectoryFactory = temporaryDirectoryFactory;
+    this.mapDiskFiles = mapDiskFiles;
   }
 
   @Override
   public ByteStorage create() throws IOException {
-    if (memoryCacheSizeInBytes == null) {
+    if (memoryCacheSizeInBytes == null && !mapDiskFiles) {
       return new OverflowToDiskByteStorage(temporaryDirectoryFactory);
+    } else if (memoryCacheSizeInBytes == null) {
+      return new OverflowToDiskByteStorage(
+          OverflowToDiskByteStorage.DEFAULT_MEMORY_CACHE_BYTES,
+          temporaryDirectoryFactory,
+          mapDiskFiles);
     } else {
-      return new OverflowToDiskByteStorage(memoryCacheSizeInBytes, temporaryDirectoryFactory);
+      return new OverflowToDiskByteStorage(
+          memoryCacheSizeInBytes, temporaryDirectoryFactory, mapDiskFiles);
     }
   }
 }
@@ -0,0 +1,314 @@
+package com.android.tools.build.apkzlib.bytestorage;
+
+import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Byte source that keeps its data in memory, in blocks obtained from {@link BufferPool}. Data is
+ * stored as a list of full blocks followed by an exactly-sized tail, so no memory is wasted at the
+ * end of the data. The blocks are given back to the pool once the source is closed and all its
+ * streams are closed.
+ *
+ * <p>Sources are created with an {@link Accumulator}.
+ */
+class PooledBlocksCloseableByteSource extends CloseableByteSource {
+
+  /** Full blocks, each {@link BufferPool#BLOCK_SIZE} bytes. */
+  private final List<byte[]> blocks;
+
+  /** Data after the last full block. */
+  private final byte[] tail;
+
+  /** Size of the data. */
+  private final long size;
+
+  /** Callback invoked when the source is closed. */
+  private final Runnable closeCallback;
+
+  /** Number of streams opened and not yet closed. */
+  private int openStreams;
+
+  /** Has the source been closed? */
+  private boolean closed;
+
+  /** Have the blocks been given back to the pool? */
+  private boolean released;
+
+  private PooledBlocksCloseableByteSource(
+      List<byte[]> blocks, byte[] tail, Runnable closeCallback) {
+    this.blocks = blocks;
+    this.tail = tail;
+    this.size = (long) blocks.size() * BufferPool.BLOCK_SIZE + tail.length;
+    this.closeCallback = closeCallback;
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public Optional<Long> sizeIfKnown() {
+    return Optional.of(size);
+  }
+
+  @Override
+  public byte[] read() throws IOException {
+    byte[] data = new byte[Ints.checkedCast(size)];
+    use();
+    try {
+      int offset = 0;
+      for (byte[] block : blocks) {
+        System.arraycopy(block, 0, data, offset, block.length);
+        offset += block.length;
+      }
+
+      System.arraycopy(tail, 0, data, offset, tail.length);
+    } finally {
+      done();
+    }
+
+    return data;
+  }
+
+  @Override
+  public long copyTo(OutputStream output) throws IOException {
+    use();
+    try {
+      for (byte[] block : blocks) {
+        output.write(block);
+      }
+
+      output.write(tail);
+    } finally {
+      done();
+    }
+
+    return size;
+  }
+
+  @Override
+  public InputStream openStream() throws IOException {
+    use();
+    return new InputStream() {
+      /** Offset of the next byte to read. */
+      private long position;
+
+      /** Offset of the mark. */
+      private long mark;
+
+      /** Has the stream been closed? */
+      private boolean streamClosed;
+
+      @Override
+      public int read() throws IOException {
+        if (position >= size) {
+          return -1;
+        }
+
+        return array(position)[offset(position)] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        Preconditions.checkPositionIndexes(off, off + len, b.length);
+        if (len == 0) {
+          return 0;
+        }
+
+        if (position >= size) {
+          return -1;
+        }
+
+        int copied = 0;
+        while (copied < len && position < size) {
+          byte[] array = array(position);
+          int offset = offset(position);
+          int count = Math.min(len - copied, array.length - offset);
+          System.arraycopy(array, offset, b, off + copied, count);
+          copied += count;
+          position += count;
+        }
+
+        return copied;
+      }
+
+      @Override
+      public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, size - position));
+        position += skipped;
+        return skipped;
+      }
+
+      @Override
+      public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, size - position);
+      }
+
+      @Override
+      public boolean markSupported() {
+        return true;
+      }
+
+      @Override
+      public synchronized void mark(int readLimit) {
+        mark = position;
+      }
+
+      @Override
+      public synchronized void reset() {
+        position = mark;
+      }
+
+      @Override
+      public void close() {
+        if (!streamClosed) {
+          streamClosed = true;
+          done();
+        }
+      }
+
+      /** Obtains the array with the byte at the given position. */
+      private byte[] array(long position) throws IOException {
+        if (streamClosed) {
+          throw new IOException("Stream closed");
+        }
+
+        int index = (int) (position / BufferPool.BLOCK_SIZE);
+        return index < blocks.size() ? blocks.get(index) : tail;
+      }
+
+      /** Obtains the offset of the byte at the given position in its array. */
+      private int offset(long position) {
+        return (int) (position % BufferPool.BLOCK_SIZE);
+      }
+    };
+  }
+
+  /** Marks the start of a read, preventing the blocks from being released until {@link #done()}. */
+  private synchronized void use() {
+    Preconditions.checkState(!closed, "Byte source has been closed");
+    openStreams++;
+  }
+
+  /** Marks the end of a read started with {@link #use()}. */
+  private synchronized void done() {
+    openStreams--;
+    releaseIfUnused();
+  }
+
+  /** Gives the blocks back to the pool if the source is closed and no longer read. */
+  private synchronized void releaseIfUnused() {
+    if (closed && openStreams == 0 && !released) {
+      released = true;
+      blocks.forEach(BufferPool::release);
+    }
+  }
+
+  @Override
+  protected synchronized void innerClose() {
+    closed = true;
+    releaseIfUnused();
+    closeCallback.run();
+  }
+
+  /**
+   * Collects data into pooled blocks. Blocks of an accumulator that is never built are left to the
+   * garbage collector.
+   */
+  static class Accumulator {
+
+    /** Full blocks. */
+    private final List<byte[]> blocks = new ArrayList<>();
+
+    /** Block being filled, {@code null} if none has been obtained yet. */
+    @Nullable private byte[] current;
+
+    /** Number of bytes in {@link #current}. */
+    private int currentLength;
+
+    /**
+     * Adds data.
+     *
+     * @param b the array with the data
+     * @param off the offset of the data in {@code b}
+     * @param len the size of the data
+     */
+    void write(byte[] b, int off, int len) {
+      while (len > 0) {
+        int count = Math.min(len, reserve());
+        System.arraycopy(b, off, current, currentLength, count);
+        currentLength += count;
+        off += count;
+        len -= count;
+      }
+    }
+
+    /**
+     * Adds all data from a stream, reading it straight into the blocks.
+     *
+     * @param stream the stream; it is read to the end but not closed
+     * @return the number of bytes added
+     * @throws IOException failed to read from the stream
+     */
+    long readFrom(InputStream stream) throws IOException {
+      long total = 0;
+      while (true) {
+        int free = reserve();
+        int read = stream.read(current, currentLength, free);
+        if (read == -1) {
+          return total;
+        }
+
+        currentLength += read;
+        total += read;
+      }
+    }
+
+    /**
+     * Builds the source with all data added. The accumulator cannot be used afterwards.
+     *
+     * @param closeCallback invoked when the source is closed
+     * @return the source
+     */
+    PooledBlocksCloseableByteSource build(Runnable closeCallback) {
+      byte[] tail;
+      if (current == null) {
+        tail = new byte[0];
+      } else {
+        tail = Arrays.copyOf(current, currentLength);
+        BufferPool.release(current);
+        current = null;
+      }
+
+      return new PooledBlocksCloseableByteSource(blocks, tail, closeCallback);
+    }
+
+    /**
+     * Makes sure there is a block being filled with free space.
+     *
+     * @return how many bytes are free in the block
+     */
+    private int reserve() {
+      if (current == null) {
+        current = BufferPool.acquire();
+        currentLength = 0;
+      } else if (currentLength == current.length) {
+        blocks.add(current);
+        current = BufferPool.acquire();
+        currentLength = 0;
+      }
+
+      return current.length - currentLength;
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package com.android.tools.build.apkzlib.bytestorage;
 
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.google.common.base.Optional;
 import com.google.common.io.Closer;
 import java.io.IOException;
 import java.io.InputStream;
@@ -49,6 +50,20 @@ class SwitchableDelegateCloseableByteSource extends CloseableByteSource {
     delegate.close();
   }
 
+  /**
+   * All delegates have the same data, so the size is that of the current delegate. This avoids
+   * {@link com.google.common.io.ByteSource#size()} reading all data to count it.
+   */
+  @Override
+  public synchronized long size() throws IOException {
+    return delegate.size();
+  }
+
+  @Override
+  public synchronized Optional<Long> sizeIfKnown() {
+    return delegate.sizeIfKnown();
+  }
+
   @Override
   public synchronized InputStream openStream() throws IOException {
     SwitchableDelegateInputStream stream =
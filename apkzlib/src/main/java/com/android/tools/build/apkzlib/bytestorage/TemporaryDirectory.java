@@ -31,7 +31,29 @@ public interface TemporaryDirectory extends Closeable {
    * when closed.
    */
   static TemporaryDirectory newSystemTemporaryDirectory() throws IOException {
-    Path tempDir = Files.createTempDirectory("tempdir_");
+    return deletedOnClose(Files.createTempDirectory("tempdir_"));
+  }
+
+  /**
+   * Creates a new temporary directory inside the given directory. All files created will be
+   * created in this directory. The directory will be deleted (as long as all the files in it) when
+   * closed, but {@code parent} is kept.
+   *
+   * @param parent the directory where to create the temporary directory; it is created if it does
+   *     not exist
+   * @return the new temporary directory
+   * @throws IOException failed to create the directory
+   */
+  static TemporaryDirectory newTemporaryDirectory(File parent) throws IOException {
+    Files.createDirectories(parent.toPath());
+    return deletedOnClose(Files.createTempDirectory(parent.toPath(), "tempdir_"));
+  }
+
+  /**
+   * Creates a temporary directory that creates files in an existing directory and deletes it when
+   * closed.
+   */
+  private static TemporaryDirectory deletedOnClose(Path tempDir) {
     TemporaryFile tempDirFile = new TemporaryFile(tempDir.toFile());
     return new TemporaryDirectory() {
       @Override
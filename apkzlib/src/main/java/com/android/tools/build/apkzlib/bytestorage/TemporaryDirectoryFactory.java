@@ -28,4 +28,16 @@ public interface TemporaryDirectoryFactory {
   static TemporaryDirectoryFactory fixed(File directory) {
     return () -> TemporaryDirectory.fixed(directory);
   }
+
+  /**
+   * Obtains a factory that creates temporary directories using {@link
+   * TemporaryDirectory#newTemporaryDirectory(File)}. Each directory created is a new directory
+   * inside {@code parent} and is deleted when closed.
+   *
+   * @param parent the directory where the temporary directories will be created
+   * @return a factory that creates instances of {@link TemporaryDirectory} inside {@code parent}
+   */
+  static TemporaryDirectoryFactory in(File parent) {
+    return () -> TemporaryDirectory.newTemporaryDirectory(parent);
+  }
 }
@@ -3,7 +3,6 @@ package com.android.tools.build.apkzlib.bytestorage;
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.ByteSource;
-import com.google.common.io.ByteStreams;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -19,6 +18,9 @@ public class TemporaryDirectoryStorage implements ByteStorage {
   @VisibleForTesting // private otherwise.
   final TemporaryDirectory temporaryDirectory;
 
+  /** Should files be read through memory mappings? */
+  private final boolean mapFiles;
+
   /** Number of bytes currently used. */
   private long bytesUsed;
 
@@ -34,19 +36,42 @@ public class TemporaryDirectoryStorage implements ByteStorage {
    */
   public TemporaryDirectoryStorage(TemporaryDirectoryFactory temporaryDirectoryFactory)
       throws IOException {
+    this(temporaryDirectoryFactory, false);
+  }
+
+  /**
+   * Creates a new storage using the provided temporary directory.
+   *
+   * @param temporaryDirectoryFactory a factory used to create the directory to use for temporary
+   *     files; this directory will be closed when the {@link TemporaryDirectoryStorage} is closed.
+   * @param mapFiles should the sources read their files through memory mappings instead of file
+   *     streams? Mapped files cannot be deleted on some platforms, notably Windows, until the
+   *     mapping is garbage collected
+   * @throws IOException failed to create the temporary directory
+   */
+  public TemporaryDirectoryStorage(
+      TemporaryDirectoryFactory temporaryDirectoryFactory, boolean mapFiles) throws IOException {
     this.temporaryDirectory = temporaryDirectoryFactory.make();
+    this.mapFiles = mapFiles;
   }
 
   @Override
   public CloseableByteSource fromStream(InputStream stream) throws IOException {
     File temporaryFile = temporaryDirectory.newFile();
+    byte[] buffer = BufferPool.acquire();
     try (FileOutputStream output = new FileOutputStream(temporaryFile)) {
-      ByteStreams.copy(stream, output);
+      int read;
+      while ((read = stream.read(buffer)) != -1) {
+        output.write(buffer, 0, read);
+      }
+    } finally {
+      BufferPool.release(buffer);
     }
 
     long size = temporaryFile.length();
     incrementBytesUsed(size);
-    return new TemporaryFileCloseableByteSource(temporaryFile, () -> incrementBytesUsed(-size));
+    return new TemporaryFileCloseableByteSource(
+        temporaryFile, () -> incrementBytesUsed(-size), mapFiles);
   }
 
   @Override
@@ -65,7 +90,8 @@ public class TemporaryDirectoryStorage implements ByteStorage {
       protected CloseableByteSource doBuild() throws IOException {
         output.close();
         long size = temporaryFile.length();
-        return new TemporaryFileCloseableByteSource(temporaryFile, () -> incrementBytesUsed(-size));
+        return new TemporaryFileCloseableByteSource(
+            temporaryFile, () -> incrementBytesUsed(-size), mapFiles);
       }
     };
   }
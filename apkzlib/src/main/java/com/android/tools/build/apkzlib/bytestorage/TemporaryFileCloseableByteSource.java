@@ -4,6 +4,7 @@ import com.android.tools.build.apkzlib.zip.utils.CloseableDelegateByteSource;
 import com.google.common.io.Files;
 import java.io.File;
 import java.io.IOException;
+import javax.annotation.Nullable;
 
 /**
  * Closeable byte source that uses a temporary file to store its contents. The file is deleted when
@@ -17,20 +18,47 @@ class TemporaryFileCloseableByteSource extends CloseableDelegateByteSource {
   /** Callback to notify when the byte source is closed. */
   private final Runnable closeCallback;
 
+  /** The source reading the file through a mapping, {@code null} if the file is not mapped. */
+  @Nullable private final MappedFileByteSource mappedSource;
+
   /**
    * Creates a new byte source based on the given file. The provided callback is executed when the
    * source is deleted. There is no guarantee about which thread invokes the callback (it is the
    * thread that closes the source).
    */
   TemporaryFileCloseableByteSource(File file, Runnable closeCallback) {
-    super(Files.asByteSource(file), file.length());
+    this(file, closeCallback, false);
+  }
+
+  /**
+   * Creates a new byte source based on the given file, like {@link
+   * #TemporaryFileCloseableByteSource(File, Runnable)}, optionally reading the file through a
+   * memory mapping (see {@link MappedFileByteSource}). The file is read through a stream instead if
+   * the platform cannot map it safely.
+   */
+  TemporaryFileCloseableByteSource(File file, Runnable closeCallback, boolean mapped) {
+    this(
+        file,
+        closeCallback,
+        mapped && MappedFileByteSource.CAN_MAP
+            ? new MappedFileByteSource(file, file.length())
+            : null);
+  }
+
+  private TemporaryFileCloseableByteSource(
+      File file, Runnable closeCallback, @Nullable MappedFileByteSource mappedSource) {
+    super(mappedSource != null ? mappedSource : Files.asByteSource(file), file.length());
     temporaryFile = new TemporaryFile(file);
     this.closeCallback = closeCallback;
+    this.mappedSource = mappedSource;
   }
 
   @Override
   protected synchronized void innerClose() throws IOException {
     super.innerClose();
+    if (mappedSource != null) {
+      mappedSource.close();
+    }
     temporaryFile.close();
     closeCallback.run();
   }
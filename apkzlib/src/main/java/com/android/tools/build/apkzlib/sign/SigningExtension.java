@@ -28,6 +28,8 @@ import com.android.tools.build.apkzlib.utils.SigningBlockUtils;
 import com.android.tools.build.apkzlib.zip.StoredEntry;
 import com.android.tools.build.apkzlib.zip.ZFile;
 import com.android.tools.build.apkzlib.zip.ZFileExtension;
+import com.android.tools.build.apkzlib.zip.utils.MappedFileView;
+import com.android.tools.build.apkzlib.zip.utils.MappedFileViewDataSource;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
@@ -37,6 +39,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.primitives.Bytes;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -120,6 +123,16 @@ public class SigningExtension {
   /** An object that has all necessary information to sign the zip file and verify its signature */
   private final SigningOptions options;
 
+  /**
+   * Should the output be memory-mapped while signing? A mapping that cannot be unmapped lives until
+   * garbage collected, and on Windows the output cannot be resized or deleted until then.
+   */
+  private static final boolean MAP_OUTPUT =
+      MappedFileView.canUnmap() || !System.getProperty("os.name", "").startsWith("Windows");
+
+  /** Time spent computing signatures, in nanoseconds. */
+  private long signingTimeNanos;
+
   public SigningExtension(SigningOptions opts) throws InvalidKeyException {
     DefaultApkSignerEngine.SignerConfig signerConfig =
         new DefaultApkSignerEngine.SignerConfig.Builder(
@@ -193,6 +206,11 @@ public class SigningExtension {
             onOutputZipEntriesWritten();
           }
 
+          @Override
+          public void updated() throws IOException {
+            onOutputZipUpdated();
+          }
+
           @Override
           public void closed() {
             onOutputClosed();
@@ -291,6 +309,15 @@ public class SigningExtension {
       return;
     }
 
+    long start = System.nanoTime();
+    try {
+      outputV1Signature();
+    } finally {
+      signingTimeNanos += System.nanoTime() - start;
+    }
+  }
+
+  private void outputV1Signature() throws IOException {
     // Notify signer engine about ZIP entries that have appeared in the output without the
     // engine knowing. Also identify ZIP entries which disappeared from the output without the
     // engine knowing.
@@ -356,6 +383,15 @@ public class SigningExtension {
       return;
     }
 
+    long start = System.nanoTime();
+    try {
+      outputApkSigningBlock();
+    } finally {
+      signingTimeNanos += System.nanoTime() - start;
+    }
+  }
+
+  private void outputApkSigningBlock() throws IOException {
     // Check whether we should output an APK Signing Block which contains v2 signatures
     byte[] apkSigningBlock;
     byte[] centralDirBytes = zFile.getCentralDirectoryBytes();
@@ -372,39 +408,44 @@ public class SigningExtension {
       DataSource eocd = DataSources.asDataSource(ByteBuffer.wrap(eocdBytes));
       long zipEntriesSizeBytes =
           zFile.getCentralDirectoryOffset() - zFile.getExtraDirectoryOffset();
-      DataSource zipEntries = zFile.asDataSource(0, zipEntriesSizeBytes);
-      try {
-        addV2SignatureRequest = signer.outputZipSections2(zipEntries, centralDir, eocd);
-      } catch (NoSuchAlgorithmException
-          | InvalidKeyException
-          | SignatureException
-          | ApkFormatException
-          | IOException e) {
-        throw new IOException("Failed to generate v2 signature", e);
-      }
-
-      if (addV2SignatureRequest != null) {
-        apkSigningBlock = addV2SignatureRequest.getApkSigningBlock();
-        if (sdkDependencyData != null) {
-          apkSigningBlock =
-              SigningBlockUtils.addToSigningBlock(
-                  apkSigningBlock, sdkDependencyData, DEPENDENCY_INFO_BLOCK_ID);
+      try (MappedFileViewDataSource mappedZipEntries = mapOutput(0, zipEntriesSizeBytes)) {
+        DataSource zipEntries =
+            mappedZipEntries != null
+                ? mappedZipEntries
+                : zFile.asDataSource(0, zipEntriesSizeBytes);
+        try {
+          addV2SignatureRequest = signer.outputZipSections2(zipEntries, centralDir, eocd);
+        } catch (NoSuchAlgorithmException
+            | InvalidKeyException
+            | SignatureException
+            | ApkFormatException
+            | IOException e) {
+          throw new IOException("Failed to generate v2 signature", e);
         }
-        apkSigningBlock =
-            Bytes.concat(
-                new byte[addV2SignatureRequest.getPaddingSizeBeforeApkSigningBlock()],
-                apkSigningBlock);
-      } else {
-        apkSigningBlock = new byte[0];
-        if (sdkDependencyData != null) {
+
+        if (addV2SignatureRequest != null) {
+          apkSigningBlock = addV2SignatureRequest.getApkSigningBlock();
+          if (sdkDependencyData != null) {
+            apkSigningBlock =
+                SigningBlockUtils.addToSigningBlock(
+                    apkSigningBlock, sdkDependencyData, DEPENDENCY_INFO_BLOCK_ID);
+          }
           apkSigningBlock =
-              SigningBlockUtils.addToSigningBlock(
-                  apkSigningBlock, sdkDependencyData, DEPENDENCY_INFO_BLOCK_ID);
-          int paddingSize =
-              ApkSigningBlockUtils.generateApkSigningBlockPadding(
-                      zipEntries, /* apkSigningBlockPaddingSupported */ true)
-                  .getSecond();
-          apkSigningBlock = Bytes.concat(new byte[paddingSize], apkSigningBlock);
+              Bytes.concat(
+                  new byte[addV2SignatureRequest.getPaddingSizeBeforeApkSigningBlock()],
+                  apkSigningBlock);
+        } else {
+          apkSigningBlock = new byte[0];
+          if (sdkDependencyData != null) {
+            apkSigningBlock =
+                SigningBlockUtils.addToSigningBlock(
+                    apkSigningBlock, sdkDependencyData, DEPENDENCY_INFO_BLOCK_ID);
+            int paddingSize =
+                ApkSigningBlockUtils.generateApkSigningBlockPadding(
+                        zipEntries, /* apkSigningBlockPaddingSupported */ true)
+                    .getSecond();
+            apkSigningBlock = Bytes.concat(new byte[paddingSize], apkSigningBlock);
+          }
         }
       }
       cachedApkSigningBlock = apkSigningBlock;
@@ -422,6 +463,44 @@ public class SigningExtension {
     }
   }
 
+  /**
+   * Maps a region of the output for a single signing pass, so that the engine can digest its
+   * chunks in parallel. The caller closes the mapping at the end of the pass.
+   *
+   * @param offset the offset in the zip where the region starts
+   * @param size the size of the region
+   * @return the mapped region, or {@code null} if the output must be read through the file instead
+   *     because closing the mapping does not release it, see {@link #MAP_OUTPUT}
+   * @throws IOException failed to map the region
+   */
+  @Nullable
+  private MappedFileViewDataSource mapOutput(long offset, long size) throws IOException {
+    return MAP_OUTPUT ? zFile.asMappedDataSource(offset, size) : null;
+  }
+
+  private void onOutputZipUpdated() throws IOException {
+    File v4SignatureFile = options.getV4SignatureOutputFile();
+    if (!dirty || v4SignatureFile == null) {
+      return;
+    }
+
+    // The v4 signature covers the whole file, including the APK Signing Block, so it can only be
+    // computed once the update is complete. The file is read through a mapping if possible, which
+    // is still in the page cache right after the write.
+    long start = System.nanoTime();
+    long size = zFile.directSize();
+    try (MappedFileViewDataSource mappedFile = mapOutput(0, size)) {
+      signer.signV4(
+          mappedFile != null ? mappedFile : zFile.asDataSource(0, size),
+          v4SignatureFile,
+          /* ignoreFailures= */ false);
+    } catch (SignatureException e) {
+      throw new IOException("Failed to generate v4 signature", e);
+    } finally {
+      signingTimeNanos += System.nanoTime() - start;
+    }
+  }
+
   private void onOutputClosed() {
     if (!dirty) {
       return;
@@ -430,6 +509,18 @@ public class SigningExtension {
     dirty = false;
   }
 
+  /**
+   * Obtains the time spent computing signatures so far: the v1 signature when the zip is about to
+   * be updated, the APK Signing Block once its entries have been written and the v4 signature once
+   * it has been updated. Time spent writing entries is not included, so this can be reported as a
+   * phase of its own.
+   *
+   * @return the time in nanoseconds
+   */
+  public long getSigningTimeNanos() {
+    return signingTimeNanos;
+  }
+
   private void setDirty() {
     dirty = true;
     cachedApkSigningBlock = null;
@@ -20,6 +20,7 @@ import com.android.apksig.util.RunnablesExecutor;
 import com.google.auto.value.AutoValue;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import java.io.File;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 import javax.annotation.Nonnull;
@@ -41,6 +42,7 @@ public abstract class SigningOptions {
         public abstract Builder setValidation(@Nonnull Validation validation);
         public abstract Builder setExecutor(@Nullable RunnablesExecutor executor);
         public abstract Builder setSdkDependencyData(@Nullable byte[] sdkDependencyData);
+        public abstract Builder setV4SignatureOutputFile(@Nullable File v4SignatureOutputFile);
 
         abstract SigningOptions autoBuild();
 
@@ -50,6 +52,9 @@ public abstract class SigningOptions {
             Preconditions.checkArgument(
                     !options.getCertificates().isEmpty(),
                     "There should be at least one certificate in SigningOptions");
+            Preconditions.checkArgument(
+                    options.getV4SignatureOutputFile() == null || options.isV2SigningEnabled(),
+                    "v4 signing requires v2 signing");
             return options;
         }
     }
@@ -90,6 +95,13 @@ public abstract class SigningOptions {
   @Nullable
   public abstract byte[] getSdkDependencyData();
 
+    /**
+     * File where to write the APK Signature Scheme v4 signature (the {@code .idsig} used by
+     * incremental installs), or {@code null} if v4 signing is disabled.
+     */
+    @Nullable
+    public abstract File getV4SignatureOutputFile();
+
     public enum Validation {
         /** Always perform signature validation */
         ALWAYS_VALIDATE,
@@ -25,16 +25,20 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import javax.annotation.Nullable;
 
 /** Representation of the central directory of a zip archive. */
 class CentralDirectory {
@@ -171,6 +175,21 @@ class CentralDirectory {
   /** Verify log for the central directory. */
   private final VerifyLog verifyLog;
 
+  /**
+   * Index of the records not yet parsed, if this directory was read lazily (see {@link
+   * #makeLazyFromData(ByteBuffer, long, ZFile, ByteStorage)}), {@code null} otherwise.
+   */
+  @Nullable private CentralDirectoryIndex index;
+
+  /** The data of the directory, if read lazily. Records are parsed from here as needed. */
+  @Nullable private ByteBuffer lazyData;
+
+  /** The storage for entries parsed from {@link #lazyData}. */
+  @Nullable private ByteStorage lazyStorage;
+
+  /** Records of {@link #index} already parsed by {@link #getEntry(String)}. */
+  @Nullable private BitSet parsedRecords;
+
   /**
    * Creates a new, empty, central directory, for a given zip file.
    *
@@ -223,6 +242,64 @@ class CentralDirectory {
     return directory;
   }
 
+  /**
+   * Reads the central directory data from a zip file without parsing the records. Only an index of
+   * the records is built; each record is parsed, and its entry created and validated, the first
+   * time it is obtained with {@link #getEntry(String)} or {@link #getEntries()}. This makes opening
+   * zips with many entries much cheaper when only some of them are needed.
+   *
+   * @param bytes the data of the central directory, starting at the buffer's position; the buffer
+   *     must not be changed while the directory is used
+   * @param count the number of entries expected in the central directory (usually read from the
+   *     {@link Eocd}).
+   * @param file the zip file this central directory belongs to
+   * @param storage the storage used to generate sources with entry data
+   * @return the central directory
+   * @throws IOException the central directory is corrupted
+   */
+  static CentralDirectory makeLazyFromData(
+      ByteBuffer bytes, long count, ZFile file, ByteStorage storage) throws IOException {
+    Preconditions.checkNotNull(bytes, "bytes == null");
+    Preconditions.checkArgument(count >= 0, "count < 0");
+
+    ByteBuffer data = bytes.slice().order(ByteOrder.LITTLE_ENDIAN);
+    int[] hashes = new int[Ints.checkedCast(count)];
+    int[] recordOffsets = new int[hashes.length];
+    int offset = 0;
+    for (int i = 0; i < hashes.length; i++) {
+      if (data.limit() - offset < F_OFFSET.endOffset()) {
+        throw new IOException(
+            "Directory entry index " + i + " at offset " + offset + " is truncated.");
+      }
+
+      data.position(offset);
+      F_SIGNATURE.verify(data);
+
+      GPFlags flags = GPFlags.from(data.getShort(offset + F_GP_BIT.offset()) & 0xffff);
+      int fileNameLength = data.getShort(offset + F_FILE_NAME_LENGTH.offset()) & 0xffff;
+      int extraFieldLength = data.getShort(offset + F_EXTRA_FIELD_LENGTH.offset()) & 0xffff;
+      int fileCommentLength = data.getShort(offset + F_COMMENT_LENGTH.offset()) & 0xffff;
+      int recordSize =
+          F_OFFSET.endOffset() + fileNameLength + extraFieldLength + fileCommentLength;
+      if (data.limit() - offset < recordSize) {
+        throw new IOException(
+            "Directory entry index " + i + " at offset " + offset + " is truncated.");
+      }
+
+      hashes[i] =
+          CentralDirectoryIndex.hash(data, offset + F_OFFSET.endOffset(), fileNameLength, flags);
+      recordOffsets[i] = offset;
+      offset += recordSize;
+    }
+
+    CentralDirectory directory = new CentralDirectory(file);
+    directory.index = new CentralDirectoryIndex(hashes, recordOffsets);
+    directory.lazyData = data;
+    directory.lazyStorage = storage;
+    directory.parsedRecords = new BitSet(hashes.length);
+    return directory;
+  }
+
   /**
    * Creates a new central directory from the entries. This is used to build a new central directory
    * from entries in the zip file.
@@ -254,6 +331,27 @@ class CentralDirectory {
    *     it is corrupt or contains unsupported features
    */
   private void readEntry(ByteBuffer bytes, ByteStorage storage) throws IOException {
+    StoredEntry entry = parseEntry(bytes, storage);
+    String fileName = entry.getCentralDirectoryHeader().getName();
+    if (entries.containsKey(fileName)) {
+      verifyLog.log("File file contains duplicate file '" + fileName + "'.");
+    }
+
+    entries.put(fileName, entry);
+  }
+
+  /**
+   * Parses the next entry from the central directory.
+   *
+   * @param bytes the central directory's data, positioned starting at the beginning of the next
+   *     entry to read; when finished, the buffer's position will be at the first byte after the
+   *     entry
+   * @param storage the storage used to generate sources to store entry data
+   * @return the entry
+   * @throws IOException failed to read the directory entry, either because of an I/O error, because
+   *     it is corrupt or contains unsupported features
+   */
+  private StoredEntry parseEntry(ByteBuffer bytes, ByteStorage storage) throws IOException {
     F_SIGNATURE.verify(bytes);
     long madeBy = F_MADE_BY.read(bytes);
 
@@ -320,11 +418,21 @@ class CentralDirectory {
     bytes.get(encodedFileName);
     String fileName = EncodeUtils.decode(encodedFileName, flags);
 
-    byte[] extraField = new byte[extraFieldLength];
-    bytes.get(extraField);
+    /*
+     * Most entries have neither extra field nor comment, share the empty ones.
+     */
+    ExtraField extraField = ExtraField.EMPTY;
+    if (extraFieldLength > 0) {
+      byte[] extraFieldData = new byte[extraFieldLength];
+      bytes.get(extraFieldData);
+      extraField = new ExtraField(extraFieldData);
+    }
 
-    byte[] fileCommentField = new byte[fileCommentLength];
-    bytes.get(fileCommentField);
+    byte[] fileCommentField = CentralDirectoryHeader.EMPTY_COMMENT;
+    if (fileCommentLength > 0) {
+      fileCommentField = new byte[fileCommentLength];
+      bytes.get(fileCommentField);
+    }
 
     /*
      * Tricky: to create a CentralDirectoryHeader we need the future that will hold the result
@@ -351,30 +459,135 @@ class CentralDirectory {
     centralDirectoryHeader.setInternalAttributes(internalAttributes);
     centralDirectoryHeader.setExternalAttributes(externalAttributes);
     centralDirectoryHeader.setOffset(entryOffset);
-    centralDirectoryHeader.setExtraFieldNoNotify(new ExtraField(extraField));
+    centralDirectoryHeader.setExtraFieldNoNotify(extraField);
     centralDirectoryHeader.setComment(fileCommentField);
 
-    StoredEntry entry;
-
     try {
-      entry = new StoredEntry(centralDirectoryHeader, file, null, storage);
+      return new StoredEntry(centralDirectoryHeader, file, null, storage);
     } catch (IOException e) {
       throw new IOException("Failed to read stored entry '" + fileName + "'.", e);
     }
+  }
 
-    if (entries.containsKey(fileName)) {
-      verifyLog.log("File file contains duplicate file '" + fileName + "'.");
+  /**
+   * Parses the record at the given index of {@link #index}.
+   *
+   * @param recordIndex the index of the record
+   * @return the entry
+   * @throws IOException failed to parse the record
+   */
+  private StoredEntry parseIndexedEntry(int recordIndex) throws IOException {
+    Preconditions.checkNotNull(index, "index == null");
+    Preconditions.checkNotNull(lazyData, "lazyData == null");
+    Preconditions.checkNotNull(lazyStorage, "lazyStorage == null");
+
+    ByteBuffer bytes = lazyData.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    bytes.position(index.recordOffset(recordIndex));
+    try {
+      return parseEntry(bytes, lazyStorage);
+    } catch (IOException e) {
+      throw new IOException("Failed to read directory entry index " + recordIndex + ".", e);
     }
+  }
 
-    entries.put(fileName, entry);
+  /**
+   * Obtains whether this directory was read lazily and still has records that were not parsed.
+   *
+   * @return are there records not yet parsed?
+   */
+  boolean isLazy() {
+    return index != null;
   }
 
   /**
-   * Obtains all the entries in the central directory.
+   * Obtains the entry with a given name. If the directory was read lazily, the record is parsed if
+   * it was not before.
+   *
+   * @param name the name of the entry
+   * @return the entry or {@code null} if there is no entry with the given name
+   * @throws IOException failed to parse the record
+   */
+  @Nullable
+  StoredEntry getEntry(String name) throws IOException {
+    StoredEntry entry = entries.get(name);
+    if (entry != null || index == null) {
+      return entry;
+    }
+
+    /*
+     * If there are duplicate names, the last record wins, as in makeFromData().
+     */
+    int[] candidates = index.find(name);
+    for (int i = candidates.length - 1; i >= 0; i--) {
+      StoredEntry candidate = parseIndexedEntry(candidates[i]);
+      if (candidate.getCentralDirectoryHeader().getName().equals(name)) {
+        Preconditions.checkNotNull(parsedRecords, "parsedRecords == null");
+        parsedRecords.set(candidates[i]);
+        entries.put(name, candidate);
+        return candidate;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Obtains the names of all entries in the central directory. If the directory was read lazily,
+   * the names are decoded from the records, but the records are not parsed.
+   *
+   * @return the names
+   * @throws IOException failed to read the names
+   */
+  Set<String> getEntryNames() throws IOException {
+    Set<String> names = Sets.newHashSet(entries.keySet());
+    if (index != null) {
+      Preconditions.checkNotNull(lazyData, "lazyData == null");
+      for (int i = 0; i < index.size(); i++) {
+        int offset = index.recordOffset(i);
+        GPFlags flags = GPFlags.from(lazyData.getShort(offset + F_GP_BIT.offset()) & 0xffff);
+        int fileNameLength = lazyData.getShort(offset + F_FILE_NAME_LENGTH.offset()) & 0xffff;
+        ByteBuffer name = lazyData.duplicate();
+        name.position(offset + F_OFFSET.endOffset());
+        names.add(EncodeUtils.decode(name, fileNameLength, flags));
+      }
+    }
+
+    return names;
+  }
+
+  /**
+   * Obtains all the entries in the central directory. If the directory was read lazily, all records
+   * not yet parsed are parsed.
    *
    * @return all entries on a non-modifiable map
+   * @throws IOException failed to parse a record
    */
-  Map<String, StoredEntry> getEntries() {
+  Map<String, StoredEntry> getEntries() throws IOException {
+    if (index != null) {
+      Preconditions.checkNotNull(parsedRecords, "parsedRecords == null");
+
+      /*
+       * Go backwards so that, if there are duplicate names, the last record wins, as in
+       * makeFromData(). Entries already parsed by getEntry() are always the last with their name.
+       */
+      for (int i = index.size() - 1; i >= 0; i--) {
+        if (parsedRecords.get(i)) {
+          continue;
+        }
+
+        StoredEntry entry = parseIndexedEntry(i);
+        String name = entry.getCentralDirectoryHeader().getName();
+        if (entries.putIfAbsent(name, entry) != null) {
+          verifyLog.log("File file contains duplicate file '" + name + "'.");
+        }
+      }
+
+      index = null;
+      lazyData = null;
+      lazyStorage = null;
+      parsedRecords = null;
+    }
+
     return ImmutableMap.copyOf(entries);
   }
 
@@ -461,7 +674,7 @@ class CentralDirectory {
         F_COMPRESSED_SIZE.write(out, compressInfos[idx].getCompressedSize());
         F_UNCOMPRESSED_SIZE.write(out, cdhs[idx].getUncompressedSize());
 
-        F_FILE_NAME_LENGTH.write(out, cdhs[idx].getEncodedFileName().length);
+        F_FILE_NAME_LENGTH.write(out, cdhs[idx].getEncodedFileNameLength());
         F_EXTRA_FIELD_LENGTH.write(out, cdhs[idx].getExtraField().size());
         F_COMMENT_LENGTH.write(out, cdhs[idx].getComment().length);
         F_DISK_NUMBER_START.write(out);
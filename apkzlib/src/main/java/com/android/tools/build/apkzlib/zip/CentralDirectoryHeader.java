@@ -17,11 +17,14 @@
 package com.android.tools.build.apkzlib.zip;
 
 import com.android.tools.build.apkzlib.zip.utils.MsDosDateTimeUtils;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import javax.annotation.Nullable;
 
 /**
  * The Central Directory Header contains information about files stored in the zip. Instances of
@@ -40,28 +43,34 @@ public class CentralDirectoryHeader implements Cloneable {
    */
   private static final int DEFAULT_VERSION_MADE_BY = 0x0018;
 
-  private static final byte[] EMPTY_COMMENT = new byte[0];
+  /** Empty comment, shared by all headers without a comment. */
+  static final byte[] EMPTY_COMMENT = new byte[0];
+
+  /*
+   * Zips may have hundreds of thousands of headers, so fields that are 16 or 32 bits wide in the
+   * zip are stored in fields of the same width. Their getters and setters still use longs.
+   */
 
   /** Name of the file. */
   private final String name;
 
   /** CRC32 of the data. 0 if not yet computed. */
-  private long crc32;
+  private int crc32;
 
   /** Size of the file uncompressed. 0 if the file has no data. */
   private long uncompressedSize;
 
   /** Code of the program that made the zip. We actually don't care about this. */
-  private long madeBy;
+  private short madeBy;
 
   /** General-purpose bit flag. */
   private GPFlags gpBit;
 
   /** Last modification time in MS-DOS format (see {@link MsDosDateTimeUtils#packTime(long)}). */
-  private long lastModTime;
+  private short lastModTime;
 
   /** Last modification time in MS-DOS format (see {@link MsDosDateTimeUtils#packDate(long)}). */
-  private long lastModDate;
+  private short lastModDate;
 
   /**
    * Extra data field contents. This field follows a specific structure according to the
@@ -73,10 +82,10 @@ public class CentralDirectoryHeader implements Cloneable {
   private byte[] comment;
 
   /** File internal attributes. */
-  private long internalAttributes;
+  private short internalAttributes;
 
   /** File external attributes. */
-  private long externalAttributes;
+  private int externalAttributes;
 
   /**
    * Offset in the file where the data is located. This will be -1 if the header corresponds to a
@@ -84,8 +93,11 @@ public class CentralDirectoryHeader implements Cloneable {
    */
   private long offset;
 
-  /** Encoded file name. */
-  private byte[] encodedFileName;
+  /**
+   * Encoded file name or {@code null} if the name is ASCII and its encoding is the same as {@link
+   * #name}'s characters, which is the case for almost all names.
+   */
+  @Nullable private byte[] encodedFileName;
 
   /** Compress information that may not have been computed yet due to lazy compression. */
   private final Future<CentralDirectoryHeaderCompressInfo> compressInfo;
@@ -140,14 +152,14 @@ public class CentralDirectoryHeader implements Cloneable {
     madeBy = DEFAULT_VERSION_MADE_BY;
 
     gpBit = flags;
-    lastModTime = currentTime;
-    lastModDate = currentDate;
+    lastModTime = toU16(currentTime, "currentTime");
+    lastModDate = toU16(currentDate, "currentDate");
     extraField = ExtraField.EMPTY;
     comment = EMPTY_COMMENT;
     internalAttributes = 0;
     externalAttributes = 0;
     offset = -1;
-    this.encodedFileName = encodedFileName;
+    this.encodedFileName = isAsciiName(name, encodedFileName) ? null : encodedFileName;
     this.compressInfo = compressInfo;
     file = zFile;
   }
@@ -159,8 +171,8 @@ public class CentralDirectoryHeader implements Cloneable {
       compressInfo,
       flags,
       file,
-      lastModTime,
-      lastModDate);
+      getLastModTime(),
+      getLastModDate());
     newData.extraField = extraField;
     newData.offset = -1;
     newData.internalAttributes = internalAttributes;
@@ -171,6 +183,52 @@ public class CentralDirectoryHeader implements Cloneable {
     return newData;
   }
 
+  /**
+   * Checks whether an encoded name is the ASCII encoding of a name, so it need not be stored.
+   *
+   * @param name the name
+   * @param encodedFileName the encoded name
+   * @return is {@code encodedFileName} the ASCII encoding of {@code name}?
+   */
+  private static boolean isAsciiName(String name, byte[] encodedFileName) {
+    if (encodedFileName.length != name.length()) {
+      return false;
+    }
+
+    for (int i = 0; i < encodedFileName.length; i++) {
+      if (encodedFileName[i] < 0 || encodedFileName[i] != name.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Narrows a 16-bit field value.
+   *
+   * @param value the value
+   * @param field the name of the field, for error messages
+   * @return the value, as stored
+   */
+  private static short toU16(long value, String field) {
+    Preconditions.checkArgument(value >= 0 && value <= 0xffff, "invalid %s: %s", field, value);
+    return (short) value;
+  }
+
+  /**
+   * Narrows a 32-bit field value.
+   *
+   * @param value the value
+   * @param field the name of the field, for error messages
+   * @return the value, as stored
+   */
+  private static int toU32(long value, String field) {
+    Preconditions.checkArgument(
+        value >= 0 && value <= 0xffffffffL, "invalid %s: %s", field, value);
+    return (int) value;
+  }
+
   /**
    * Obtains the name of the file.
    *
@@ -195,7 +253,7 @@ public class CentralDirectoryHeader implements Cloneable {
    * @return the CRC32, 0 if not yet computed
    */
   public long getCrc32() {
-    return crc32;
+    return crc32 & 0xffffffffL;
   }
 
   /**
@@ -204,7 +262,7 @@ public class CentralDirectoryHeader implements Cloneable {
    * @param crc32 the CRC 32
    */
   void setCrc32(long crc32) {
-    this.crc32 = crc32;
+    this.crc32 = toU32(crc32, "crc32");
   }
 
   /**
@@ -213,7 +271,7 @@ public class CentralDirectoryHeader implements Cloneable {
    * @return the code
    */
   public long getMadeBy() {
-    return madeBy;
+    return madeBy & 0xffff;
   }
 
   /**
@@ -222,7 +280,7 @@ public class CentralDirectoryHeader implements Cloneable {
    * @param madeBy the code
    */
   void setMadeBy(long madeBy) {
-    this.madeBy = madeBy;
+    this.madeBy = toU16(madeBy, "madeBy");
   }
 
   /**
@@ -241,7 +299,7 @@ public class CentralDirectoryHeader implements Cloneable {
    *     MsDosDateTimeUtils#packTime(long)})
    */
   public long getLastModTime() {
-    return lastModTime;
+    return lastModTime & 0xffff;
   }
 
   /**
@@ -251,7 +309,7 @@ public class CentralDirectoryHeader implements Cloneable {
    *     MsDosDateTimeUtils#packTime(long)})
    */
   void setLastModTime(long lastModTime) {
-    this.lastModTime = lastModTime;
+    this.lastModTime = toU16(lastModTime, "lastModTime");
   }
 
   /**
@@ -261,7 +319,7 @@ public class CentralDirectoryHeader implements Cloneable {
    *     MsDosDateTimeUtils#packDate(long)})
    */
   public long getLastModDate() {
-    return lastModDate;
+    return lastModDate & 0xffff;
   }
 
   /**
@@ -271,7 +329,7 @@ public class CentralDirectoryHeader implements Cloneable {
    *     MsDosDateTimeUtils#packDate(long)})
    */
   void setLastModDate(long lastModDate) {
-    this.lastModDate = lastModDate;
+    this.lastModDate = toU16(lastModDate, "lastModDate");
   }
 
   /**
@@ -327,7 +385,7 @@ public class CentralDirectoryHeader implements Cloneable {
    * @return the entry's internal attributes
    */
   public long getInternalAttributes() {
-    return internalAttributes;
+    return internalAttributes & 0xffff;
   }
 
   /**
@@ -336,7 +394,7 @@ public class CentralDirectoryHeader implements Cloneable {
    * @param internalAttributes the entry's internal attributes
    */
   void setInternalAttributes(long internalAttributes) {
-    this.internalAttributes = internalAttributes;
+    this.internalAttributes = toU16(internalAttributes, "internalAttributes");
   }
 
   /**
@@ -345,7 +403,7 @@ public class CentralDirectoryHeader implements Cloneable {
    * @return the entry's external attributes
    */
   public long getExternalAttributes() {
-    return externalAttributes;
+    return externalAttributes & 0xffffffffL;
   }
 
   /**
@@ -354,7 +412,7 @@ public class CentralDirectoryHeader implements Cloneable {
    * @param externalAttributes the entry's external attributes
    */
   void setExternalAttributes(long externalAttributes) {
-    this.externalAttributes = externalAttributes;
+    this.externalAttributes = toU32(externalAttributes, "externalAttributes");
   }
 
   /**
@@ -382,9 +440,23 @@ public class CentralDirectoryHeader implements Cloneable {
    * @return the encoded file name
    */
   public byte[] getEncodedFileName() {
+    if (encodedFileName == null) {
+      return name.getBytes(StandardCharsets.US_ASCII);
+    }
+
     return encodedFileName;
   }
 
+  /**
+   * Obtains the length of the encoded file name. This is the same as {@code
+   * getEncodedFileName().length}, but does not need to encode the name.
+   *
+   * @return the length of the encoded file name
+   */
+  public int getEncodedFileNameLength() {
+    return encodedFileName == null ? name.length() : encodedFileName.length;
+  }
+
   /** Resets the deferred CRC flag in the GP flags. */
   void resetDeferredCrc() {
     /*
@@ -398,8 +470,10 @@ public class CentralDirectoryHeader implements Cloneable {
   protected CentralDirectoryHeader clone() throws CloneNotSupportedException {
     CentralDirectoryHeader cdr = (CentralDirectoryHeader) super.clone();
     cdr.extraField = extraField;
-    cdr.comment = Arrays.copyOf(comment, comment.length);
-    cdr.encodedFileName = Arrays.copyOf(encodedFileName, encodedFileName.length);
+    cdr.comment = comment.length == 0 ? EMPTY_COMMENT : Arrays.copyOf(comment, comment.length);
+    if (encodedFileName != null) {
+      cdr.encodedFileName = Arrays.copyOf(encodedFileName, encodedFileName.length);
+    }
     return cdr;
   }
 
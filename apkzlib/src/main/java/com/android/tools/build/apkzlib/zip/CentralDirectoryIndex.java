@@ -0,0 +1,121 @@
+package com.android.tools.build.apkzlib.zip;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compact index of the records of a central directory, used to open zips without creating a
+ * {@link StoredEntry} for every record. It keeps, per record, only its offset in the directory and
+ * the hash of its name, so a record can be found by name and parsed when it is needed.
+ *
+ * <p>Hashes are those of the decoded names ({@link String#hashCode()}), so lookups do not need to
+ * know how names were encoded.
+ */
+class CentralDirectoryIndex {
+
+  /** Offsets of the records in the directory, in directory order. */
+  private final int[] recordOffsets;
+
+  /**
+   * One key per record, sorted. The upper 32 bits of a key are the hash of the record's name and
+   * the lower 32 bits are the record's index in {@link #recordOffsets}.
+   */
+  private final long[] keys;
+
+  /**
+   * Creates a new index.
+   *
+   * @param hashes the hashes of the names of the records, in directory order
+   * @param recordOffsets the offsets of the records in the directory, in directory order
+   */
+  CentralDirectoryIndex(int[] hashes, int[] recordOffsets) {
+    Preconditions.checkArgument(
+        hashes.length == recordOffsets.length, "hashes.length != recordOffsets.length");
+
+    this.recordOffsets = recordOffsets;
+    keys = new long[hashes.length];
+    for (int i = 0; i < hashes.length; i++) {
+      keys[i] = ((long) hashes[i] << 32) | i;
+    }
+
+    Arrays.sort(keys);
+  }
+
+  /**
+   * Obtains the number of records in the index.
+   *
+   * @return the number of records
+   */
+  int size() {
+    return recordOffsets.length;
+  }
+
+  /**
+   * Obtains the offset of a record in the directory.
+   *
+   * @param index the index of the record, in directory order
+   * @return the offset
+   */
+  int recordOffset(int index) {
+    return recordOffsets[index];
+  }
+
+  /**
+   * Finds the records whose names may be equal to a name. Different names may have the same hash,
+   * so callers have to compare the names of the records found.
+   *
+   * @param name the name
+   * @return the indices of the records whose names have the same hash as {@code name}, in
+   *     directory order
+   */
+  int[] find(String name) {
+    long first = (long) name.hashCode() << 32;
+    int start = Arrays.binarySearch(keys, first);
+    if (start < 0) {
+      start = -start - 1;
+    }
+
+    int end = start;
+    while (end < keys.length && (keys[end] & 0xffffffff00000000L) == first) {
+      end++;
+    }
+
+    int[] found = new int[end - start];
+    for (int i = start; i < end; i++) {
+      found[i - start] = (int) keys[i];
+    }
+
+    return found;
+  }
+
+  /**
+   * Computes the hash of an encoded name. This is the same as decoding the name and obtaining the
+   * hash of the decoded string, but names that are plain ASCII, which are most names, are hashed
+   * without decoding them.
+   *
+   * @param bytes the buffer with the encoded name; its position is not changed
+   * @param offset the offset of the name in {@code bytes}
+   * @param length the length of the encoded name
+   * @param flags the flags of the entry, which define how the name is encoded
+   * @return the hash
+   */
+  static int hash(ByteBuffer bytes, int offset, int length, GPFlags flags) {
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      byte b = bytes.get(offset + i);
+      if (b < 0) {
+        byte[] encoded = new byte[length];
+        for (int j = 0; j < length; j++) {
+          encoded[j] = bytes.get(offset + j);
+        }
+
+        return EncodeUtils.decode(encoded, flags).hashCode();
+      }
+
+      hash = 31 * hash + b;
+    }
+
+    return hash;
+  }
+}
@@ -0,0 +1,153 @@
+package com.android.tools.build.apkzlib.zip;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/** Factory for instances of {@link CompressionPolicy}. */
+public final class CompressionPolicies {
+
+  /**
+   * Suffixes of formats whose data is already compressed. Deflating them again seldom saves
+   * anything.
+   */
+  public static final ImmutableList<String> COMPRESSED_SUFFIXES =
+      ImmutableList.of(
+          ".apk", ".jar", ".zip", ".gz", ".xz", ".bz2", ".7z", ".png", ".webp", ".jpg", ".jpeg",
+          ".gif", ".ogg", ".mp3", ".m4a", ".aac", ".flac", ".mp4", ".3gp", ".mkv", ".webm");
+
+  private CompressionPolicies() {}
+
+  /**
+   * A policy that places no restrictions on any file. This is the default policy.
+   *
+   * @return the policy
+   */
+  public static CompressionPolicy none() {
+    return (path, data) -> CompressionPolicy.NO_PREFERENCE;
+  }
+
+  /**
+   * A policy that defines a constant level for all files with a certain suffix, placing no
+   * restrictions on other files. Suffixes are matched ignoring case.
+   *
+   * @param suffix the suffix
+   * @param level the level for paths that match the provided suffix, {@link
+   *     CompressionPolicy#STORE} to store them
+   * @return the policy
+   */
+  public static CompressionPolicy levelForSuffix(String suffix, int level) {
+    Preconditions.checkArgument(!suffix.isEmpty(), "suffix.isEmpty()");
+    Preconditions.checkArgument(
+        level >= CompressionPolicy.STORE && level <= Deflater.BEST_COMPRESSION,
+        "invalid level %s",
+        level);
+
+    String lowerSuffix = suffix.toLowerCase(Locale.ROOT);
+    return (path, data) ->
+        path.toLowerCase(Locale.ROOT).endsWith(lowerSuffix)
+            ? level
+            : CompressionPolicy.NO_PREFERENCE;
+  }
+
+  /**
+   * A policy that stores all files with a certain suffix, placing no restrictions on other files.
+   *
+   * @param suffix the suffix
+   * @return the policy
+   */
+  public static CompressionPolicy storeForSuffix(String suffix) {
+    return levelForSuffix(suffix, CompressionPolicy.STORE);
+  }
+
+  /**
+   * A policy that stores all files in {@link #COMPRESSED_SUFFIXES}.
+   *
+   * @return the policy
+   */
+  public static CompressionPolicy storeCompressedFormats() {
+    return compose(
+        COMPRESSED_SUFFIXES.stream()
+            .map(CompressionPolicies::storeForSuffix)
+            .toArray(CompressionPolicy[]::new));
+  }
+
+  /**
+   * A policy that predicts whether a file is incompressible from the entropy of its first bytes
+   * and stores it if so, placing no restrictions on other files. Compressed or encrypted data has
+   * close to 8 bits of entropy per byte, while text and code usually have well under 7.
+   *
+   * @param sampleSize how many bytes to sample from the start of each file
+   * @param maxBitsPerByte the entropy, in bits per byte, above which a file is stored
+   * @return the policy
+   */
+  public static CompressionPolicy storeIfIncompressible(int sampleSize, double maxBitsPerByte) {
+    Preconditions.checkArgument(sampleSize > 0, "sampleSize <= 0");
+    Preconditions.checkArgument(maxBitsPerByte > 0, "maxBitsPerByte <= 0");
+
+    return (path, data) -> {
+      byte[] sample = new byte[sampleSize];
+      int read;
+      try (InputStream is = data.openStream()) {
+        read = ByteStreams.read(is, sample, 0, sampleSize);
+      }
+
+      // Short files cost little to deflate and a small sample says little about them.
+      if (read < sampleSize) {
+        return CompressionPolicy.NO_PREFERENCE;
+      }
+
+      return entropy(sample, read) > maxBitsPerByte
+          ? CompressionPolicy.STORE
+          : CompressionPolicy.NO_PREFERENCE;
+    };
+  }
+
+  /**
+   * A policy that applies other policies in order.
+   *
+   * @param policies all policies to be tried; the first policy that does not return {@link
+   *     CompressionPolicy#NO_PREFERENCE} will define the level for a file; if no policy has a
+   *     preference, then {@link CompressionPolicy#NO_PREFERENCE} is returned
+   * @return the composition policy
+   */
+  public static CompressionPolicy compose(CompressionPolicy... policies) {
+    return (path, data) -> {
+      for (CompressionPolicy p : policies) {
+        int level = p.level(path, data);
+        if (level != CompressionPolicy.NO_PREFERENCE) {
+          return level;
+        }
+      }
+
+      return CompressionPolicy.NO_PREFERENCE;
+    };
+  }
+
+  /**
+   * Computes the Shannon entropy of some data.
+   *
+   * @param data the data
+   * @param length how many bytes of {@code data} to use
+   * @return the entropy, in bits per byte
+   */
+  static double entropy(byte[] data, int length) {
+    int[] counts = new int[256];
+    for (int i = 0; i < length; i++) {
+      counts[data[i] & 0xff]++;
+    }
+
+    double entropy = 0;
+    for (int count : counts) {
+      if (count != 0) {
+        double p = count / (double) length;
+        entropy -= p * Math.log(p);
+      }
+    }
+
+    return entropy / Math.log(2);
+  }
+}
@@ -0,0 +1,30 @@
+package com.android.tools.build.apkzlib.zip;
+
+import com.google.common.io.ByteSource;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * A compression policy defines how a file should be compressed in a zip, based on its name and,
+ * possibly, on a sample of its data. Policies are only consulted for files that may be compressed.
+ */
+public interface CompressionPolicy {
+
+  /** Level of files for which the policy has no preference; the compressor decides. */
+  int NO_PREFERENCE = Integer.MIN_VALUE;
+
+  /** Level of files that should be stored without even trying to compress them. */
+  int STORE = Deflater.NO_COMPRESSION;
+
+  /**
+   * Obtains the compression level this policy computes for a file.
+   *
+   * @param path the path in the zip file
+   * @param data the uncompressed data of the file; policies should only read a small part of it
+   * @return {@link #STORE}, a deflate level from {@link Deflater#BEST_SPEED} to {@link
+   *     Deflater#BEST_COMPRESSION}, or {@link #NO_PREFERENCE} if this policy places no restrictions
+   *     on the file
+   * @throws IOException failed to read the data
+   */
+  int level(String path, ByteSource data) throws IOException;
+}
@@ -0,0 +1,68 @@
+package com.android.tools.build.apkzlib.zip;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how the bytes of files added to a {@link ZFile} have been compressed. Compression may run
+ * in background threads, so counters may still change until all entries are processed.
+ *
+ * <p>All counts are of uncompressed bytes.
+ */
+public final class CompressionStats {
+
+  /** Bytes that have been deflated and are stored deflated. */
+  private final AtomicLong deflatedBytes = new AtomicLong();
+
+  /**
+   * Bytes that have been deflated but are stored uncompressed because deflate did not shrink them.
+   */
+  private final AtomicLong uselesslyDeflatedBytes = new AtomicLong();
+
+  /** Bytes stored uncompressed, without deflating them, because of the compression policy. */
+  private final AtomicLong skippedBytes = new AtomicLong();
+
+  CompressionStats() {}
+
+  void recordDeflated(long bytes, boolean shrunk) {
+    (shrunk ? deflatedBytes : uselesslyDeflatedBytes).addAndGet(bytes);
+  }
+
+  void recordSkipped(long bytes) {
+    skippedBytes.addAndGet(bytes);
+  }
+
+  /**
+   * Obtains the number of bytes that were deflated and are stored deflated.
+   *
+   * @return the number of bytes
+   */
+  public long getDeflatedBytes() {
+    return deflatedBytes.get();
+  }
+
+  /**
+   * Obtains the number of bytes that were deflated but are stored uncompressed because deflating
+   * them did not make them smaller. This is wasted work that a {@link CompressionPolicy} may avoid.
+   *
+   * @return the number of bytes
+   */
+  public long getUselesslyDeflatedBytes() {
+    return uselesslyDeflatedBytes.get();
+  }
+
+  /**
+   * Obtains the number of bytes that the {@link CompressionPolicy} stored without deflating them.
+   *
+   * @return the number of bytes
+   */
+  public long getSkippedBytes() {
+    return skippedBytes.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "deflated %d bytes, deflated uselessly %d bytes, skipped %d bytes",
+        getDeflatedBytes(), getUselesslyDeflatedBytes(), getSkippedBytes());
+  }
+}
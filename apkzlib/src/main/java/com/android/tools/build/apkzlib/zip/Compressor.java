@@ -35,4 +35,18 @@ public interface Compressor {
    * @return a future that will eventually contain the compression result
    */
   ListenableFuture<CompressionResult> compress(CloseableByteSource source, ByteStorage storage);
+
+  /**
+   * Compresses an entry source with a given compression level, as selected by a {@link
+   * CompressionPolicy}. Compressors that have no notion of levels ignore {@code level}.
+   *
+   * @param source the source to compress
+   * @param storage a byte storage from where the compressor can obtain byte sources to work
+   * @param level the deflate compression level
+   * @return a future that will eventually contain the compression result
+   */
+  default ListenableFuture<CompressionResult> compress(
+      CloseableByteSource source, ByteStorage storage, int level) {
+    return compress(source, storage);
+  }
 }
@@ -19,10 +19,8 @@ package com.android.tools.build.apkzlib.zip;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
 import java.util.List;
-import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import javax.annotation.Nullable;
@@ -60,10 +58,18 @@ class FileUseMap {
   private final TreeSet<FileUseMapEntry<?>> map;
 
   /**
-   * Tree with all free blocks ordered by size. This is essentially a view over {@link #map}
-   * containing only the free blocks, but in a different order.
+   * Tree with all free blocks ordered by size, then by position. This is essentially a view over
+   * {@link #map} containing only the free blocks, but in a different order. Best-fit searches start
+   * at the smallest block that is large enough and stop at the first one that fits, so they only
+   * look at blocks only slightly larger than needed (see {@link #locateFree}).
    */
   private final TreeSet<FileUseMapEntry<?>> freeBySize;
+
+  /**
+   * Tree with all free blocks ordered by position. This is a view over {@link #map} containing
+   * only the free blocks, so that zips with many entries and few free blocks can be searched
+   * without going over all entries.
+   */
   private final TreeSet<FileUseMapEntry<?>> freeByStart;
 
   /** If defined, defines the minimum size for a free entry. */
@@ -134,11 +140,8 @@ class FileUseMap {
     FileUseMapEntry<?> container = findContainer(entry);
     Verify.verify(container.isFree(), "!container.isFree()");
 
-    Set<FileUseMapEntry<?>> replacements = split(container, entry);
     internalRemove(container);
-    for (FileUseMapEntry<?> r : replacements) {
-      internalAdd(r);
-    }
+    split(container, entry);
   }
 
   /**
@@ -197,17 +200,14 @@ class FileUseMap {
   }
 
   /**
-   * Splits a container to add an entry, adding new free entries before and after the provided entry
-   * if needed.
+   * Splits a container to add an entry, adding the entry and new free entries before and after the
+   * provided entry if needed.
    *
-   * @param container the container entry, a free entry that is in {@link #map} that that encloses
-   *     {@code entry}
+   * @param container the container entry, a free entry that was removed from {@link #map} and that
+   *     encloses {@code entry}
    * @param entry the entry that will be used to split {@code container}
-   * @return a set of non-overlapping entries that completely covers {@code container} and that
-   *     includes {@code entry}
    */
-  private static Set<FileUseMapEntry<?>> split(
-      FileUseMapEntry<?> container, FileUseMapEntry<?> entry) {
+  private void split(FileUseMapEntry<?> container, FileUseMapEntry<?> entry) {
     Preconditions.checkArgument(container.isFree(), "!container.isFree()");
 
     long farStart = container.getStart();
@@ -219,18 +219,15 @@ class FileUseMap {
     Verify.verify(start < end, "start >= end");
     Verify.verify(farEnd >= end, "farEnd < end");
 
-    Set<FileUseMapEntry<?>> result = Sets.newHashSet();
     if (farStart < start) {
-      result.add(FileUseMapEntry.makeFree(farStart, start));
+      internalAdd(FileUseMapEntry.makeFree(farStart, start));
     }
 
-    result.add(entry);
+    internalAdd(entry);
 
     if (end < farEnd) {
-      result.add(FileUseMapEntry.makeFree(end, farEnd));
+      internalAdd(FileUseMapEntry.makeFree(end, farEnd));
     }
-
-    return result;
   }
 
   /**
@@ -242,13 +239,16 @@ class FileUseMap {
   private void coalesce(FileUseMapEntry<?> entry) {
     Preconditions.checkArgument(entry.isFree(), "!entry.isFree()");
 
+    /*
+     * The entry is in the map, so its neighbors are found without creating search keys.
+     */
     FileUseMapEntry<?> prevToMerge = null;
     long start = entry.getStart();
     if (start > 0) {
       /*
        * See if we have a previous entry to merge with this one.
        */
-      prevToMerge = map.floor(FileUseMapEntry.makeFree(start - 1, start));
+      prevToMerge = map.lower(entry);
       Verify.verifyNotNull(prevToMerge);
       if (!prevToMerge.isFree()) {
         prevToMerge = null;
@@ -261,7 +261,7 @@ class FileUseMap {
       /*
        * See if we have a next entry to merge with this one.
        */
-      nextToMerge = map.ceiling(FileUseMapEntry.makeFree(end, end + 1));
+      nextToMerge = map.higher(entry);
       Verify.verifyNotNull(nextToMerge);
       if (!nextToMerge.isFree()) {
         nextToMerge = null;
@@ -369,6 +369,12 @@ class FileUseMap {
    * free index at the end of the map is provided. This means that the map may need to be extended
    * before data can be added.
    *
+   * <p>Best-fit searches take logarithmic time in the number of free blocks, plus the number of
+   * free blocks whose size is between {@code size} and {@code size + align + 2 * minFreeSize}:
+   * blocks are visited smallest first and a block at least that large always fits, as the padding
+   * before the data is below {@code align + minFreeSize} and at least {@code minFreeSize} bytes
+   * are then left after the data.
+   *
    * @param size the size of the contiguous area requested
    * @param alignOffset an offset to which alignment needs to be computed (see method description)
    * @param align alignment at the offset (see method description)
@@ -445,22 +451,12 @@ class FileUseMap {
       }
 
       /*
-       * We don't care about blocks that are bigger than the best so far (otherwise this
-       * wouldn't be a best-fit algorithm).
+       * Blocks are visited by increasing size in best fit and by increasing position in first
+       * fit, so the first block that fits is the one we want in both.
        */
-      if (best != null && best.getSize() < curr.getSize()) {
-        continue;
-      }
-
       best = curr;
       bestExtraSize = extraSize;
-
-      /*
-       * If we're doing first fit, we don't want to search for a better one :)
-       */
-      if (alg == PositionAlgorithm.FIRST_FIT) {
-        break;
-      }
+      break;
     }
 
     /*
@@ -507,8 +503,8 @@ class FileUseMap {
   List<FileUseMapEntry<?>> getFreeAreas() {
     List<FileUseMapEntry<?>> freeAreas = Lists.newArrayList();
 
-    for (FileUseMapEntry<?> area : map) {
-      if (area.isFree() && area.getEnd() != size) {
+    for (FileUseMapEntry<?> area : freeByStart) {
+      if (area.getEnd() != size) {
         freeAreas.add(area);
       }
     }
@@ -39,9 +39,15 @@ class FileUseMapEntry<T> {
   public static final Comparator<FileUseMapEntry<?>> COMPARE_BY_START =
       (o1, o2) -> Ints.saturatedCast(o1.getStart() - o2.getStart());
 
-  /** Comparator that compares entries by their size. */
+  /**
+   * Comparator that compares entries by their size and then by their start, so different entries
+   * with the same size are not considered equal.
+   */
   public static final Comparator<FileUseMapEntry<?>> COMPARE_BY_SIZE =
-      (o1, o2) -> Ints.saturatedCast(o1.getSize() - o2.getSize());
+      (o1, o2) -> {
+        int bySize = Long.compare(o1.getSize(), o2.getSize());
+        return bySize != 0 ? bySize : Long.compare(o1.getStart(), o2.getStart());
+      };
 
   /** The first byte in the entry. */
   private final long start;
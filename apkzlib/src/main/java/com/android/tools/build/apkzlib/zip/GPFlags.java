@@ -60,10 +60,16 @@ class GPFlags {
   private final long value;
 
   /** Has the CRC computation beeen deferred? */
-  private boolean deferredCrc;
+  private final boolean deferredCrc;
 
   /** Is the file name encoded in UTF-8? */
-  private boolean utf8FileName;
+  private final boolean utf8FileName;
+
+  /** Flags with no bits set, shared as almost all entries have them. */
+  private static final GPFlags NONE = new GPFlags(0);
+
+  /** Flags with only the UTF-8 bit set, shared as many entries have them. */
+  private static final GPFlags UTF8 = new GPFlags(BIT_EFS);
 
   /**
    * Creates a new flags object.
@@ -111,13 +117,7 @@ class GPFlags {
    * @return the new bit mask
    */
   static GPFlags make(boolean utf8Encoding) {
-    long flags = 0;
-
-    if (utf8Encoding) {
-      flags |= BIT_EFS;
-    }
-
-    return new GPFlags(flags);
+    return utf8Encoding ? UTF8 : NONE;
   }
 
   /**
@@ -154,6 +154,12 @@ class GPFlags {
       throw new IOException("Unsupported bits after 32.");
     }
 
+    if (bits == NONE.value) {
+      return NONE;
+    } else if (bits == UTF8.value) {
+      return UTF8;
+    }
+
     return new GPFlags(bits);
   }
 }
@@ -17,6 +17,7 @@
 package com.android.tools.build.apkzlib.zip;
 
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.android.tools.build.apkzlib.zip.utils.ZlibPool;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -50,8 +51,24 @@ public class InflaterByteSource extends CloseableByteSource {
      * "Oh, I need an extra dummy byte to allow for some... err... optimizations..."
      */
     ByteArrayInputStream hackByte = new ByteArrayInputStream(new byte[] {0});
+    Inflater inflater = ZlibPool.inflater();
     return new InflaterInputStream(
-        new SequenceInputStream(deflatedSource.openStream(), hackByte), new Inflater(true));
+        new SequenceInputStream(deflatedSource.openStream(), hackByte), inflater) {
+      /** Has the inflater been given back to the pool? */
+      private boolean released;
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          if (!released) {
+            released = true;
+            ZlibPool.release(inflater);
+          }
+        }
+      }
+    };
   }
 
   @Override
@@ -1,9 +1,14 @@
 package com.android.tools.build.apkzlib.zip;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 public class NestedZip extends ZFile {
@@ -14,31 +19,105 @@ public class NestedZip extends ZFile {
     }
 
     public NestedZip(NameCallback name, ZFile target, File src, boolean mayCompress) throws IOException {
-        super(src, new ZFileOptions(), true);
+        super(src, new ZFileOptions().setMemoryMapReadOnly(true), true);
         this.target = target;
-        this.entry = target.add(name.getName(this), directOpen(0, directSize()), mayCompress);
+        if (mayCompress) {
+            this.entry = target.add(name.getName(this), directOpen(0, directSize()), true);
+        } else {
+            this.entry = target.addStoredFile(name.getName(this), src);
+        }
+    }
+
+    NestedZip(NameCallback name, ZFile target, ZFile container, String srcName) throws IOException {
+        this(name, target, container, getStoredEntry(container, srcName));
+    }
+
+    private NestedZip(NameCallback name, ZFile target, ZFile container, StoredEntry src) throws IOException {
+        super(container.getFile(), new ZFileOptions().setMemoryMapReadOnly(true), getDataOffset(src), src.getCentralDirectoryHeader().getUncompressedSize());
+        this.target = target;
+        this.entry = target.addStoredFile(name.getName(this), container.getFile(), getDataOffset(src), src.getCentralDirectoryHeader().getUncompressedSize());
+    }
+
+    private static StoredEntry getStoredEntry(ZFile container, String srcName) throws IOException {
+        var src = container.get(srcName);
+        if (src == null)
+            throw new IOException("Entry " + srcName + " does not exist in " + container.getFile());
+        if (src.getCentralDirectoryHeader().getCompressionInfoWithWait().getMethod() != CompressionMethod.STORE)
+            throw new IOException("Entry " + srcName + " is compressed and cannot be nested in place");
+        if (src.getCentralDirectoryHeader().getOffset() < 0)
+            throw new IOException("Entry " + srcName + " has not been written yet");
+        return src;
+    }
+
+    private static long getDataOffset(StoredEntry src) {
+        return src.getCentralDirectoryHeader().getOffset() + src.getLocalHeaderSize();
     }
 
     /**
      * @return true if lfh is consistent with cdh otherwise inconsistent
      */
     public boolean addFileLink(StoredEntry srcEntry, String dstName) throws IOException {
+        var linkingEntry = makeLinkingEntry(srcEntry, dstName);
+        if (linkingEntry == null)
+            return false;
+        target.addLinkingEntries(entry, ImmutableList.of(linkingEntry));
+        return true;
+    }
+
+    public boolean addFileLink(String srcName, String dstName) throws IOException {
+        var srcEntry = get(srcName);
+        return addFileLink(srcEntry, dstName);
+    }
+
+    /**
+     * Links entries to the target zip under their own names, see {@link #addFileLinks(Map)}.
+     *
+     * @return the names of the entries that could not be linked
+     */
+    public List<String> addFileLinks(Collection<String> names) throws IOException {
+        Map<String, String> links = new LinkedHashMap<>();
+        for (var name : names)
+            links.put(name, name);
+        return addFileLinks(links);
+    }
+
+    /**
+     * Same as calling {@link #addFileLink(String, String)} for each link, but the nested zip's
+     * entry in the target zip, whose local header holds all links, is rebuilt and placed once for
+     * all links instead of once per link. This keeps linking linear in the number of entries.
+     *
+     * @param links the names of the entries to link mapped to the names of the links
+     * @return the names of the entries that could not be linked, see {@link
+     *     #addFileLink(StoredEntry, String)}
+     */
+    public List<String> addFileLinks(Map<String, String> links) throws IOException {
+        List<StoredEntry> linkingEntries = new ArrayList<>(links.size());
+        List<String> notLinked = new ArrayList<>();
+        for (var link : links.entrySet()) {
+            var linkingEntry = makeLinkingEntry(get(link.getKey()), link.getValue());
+            if (linkingEntry != null)
+                linkingEntries.add(linkingEntry);
+            else
+                notLinked.add(link.getKey());
+        }
+        target.addLinkingEntries(entry, linkingEntries);
+        return notLinked;
+    }
+
+    /**
+     * @return the linking entry or null if the local header of the link would not fit
+     */
+    private StoredEntry makeLinkingEntry(StoredEntry srcEntry, String dstName) throws IOException {
         if (srcEntry == null)
             throw new IOException("Entry " + srcEntry + " does not exist in nested zip");
         var srcName = srcEntry.getCentralDirectoryHeader().getName();
         var offset = srcEntry.getCentralDirectoryHeader().getOffset() + srcEntry.getLocalHeaderSize();
         if (srcName.equals(dstName)) {
-            target.addNestedLink(entry, dstName, srcEntry, srcEntry.getCentralDirectoryHeader().getOffset(), true);
-            return true;
+            return target.makeLinkingEntry(entry, dstName, srcEntry, srcEntry.getCentralDirectoryHeader().getOffset(), true);
         } else if (offset < MAX_LOCAL_EXTRA_FIELD_CONTENTS_SIZE) {
-            target.addNestedLink(entry, dstName, srcEntry, offset, false);
-            return true;
+            return target.makeLinkingEntry(entry, dstName, srcEntry, offset, false);
         }
-        return false;
-    }
-    public boolean addFileLink(String srcName, String dstName) throws IOException {
-        var srcEntry = get(srcName);
-        return addFileLink(srcEntry, dstName);
+        return null;
     }
 
     public ZFile getTarget() {
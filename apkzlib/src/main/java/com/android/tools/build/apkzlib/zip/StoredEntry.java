@@ -20,6 +20,7 @@ import com.android.tools.build.apkzlib.bytestorage.ByteStorage;
 import com.android.tools.build.apkzlib.bytestorage.CloseableByteSourceFromOutputStreamBuilder;
 import com.android.tools.build.apkzlib.utils.IOExceptionWrapper;
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.android.tools.build.apkzlib.zip.utils.FileRegionByteSource;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
@@ -74,6 +75,10 @@ public class StoredEntry {
   /** Signature of the data descriptor. */
   private static final int DATA_DESC_SIGNATURE = 0x08074b50;
 
+  /** Data descriptor type of entries with no data descriptor, shared by all of them. */
+  private static final Supplier<DataDescriptorType> NO_DATA_DESCRIPTOR =
+      Suppliers.ofInstance(DataDescriptorType.NO_DATA_DESCRIPTOR);
+
   /** Local header field: signature. */
   private static final ZipField.F4 F_LOCAL_SIGNATURE = new ZipField.F4(0, 0x04034b50, "Signature");
 
@@ -125,6 +130,9 @@ public class StoredEntry {
   /** Local header size (fixed part, not counting file name or extra field). */
   static final int FIXED_LOCAL_FILE_HEADER_SIZE = F_EXTRA_LENGTH.endOffset();
 
+  /** Offset of the CRC32 field in the local header. */
+  static final int LOCAL_HEADER_CRC32_OFFSET = F_CRC32.offset();
+
   /** Type of entry. */
   private final StoredEntryType type;
 
@@ -274,7 +282,7 @@ public class StoredEntry {
      * By default we assume there is no data descriptor unless the CRC is marked as deferred
      * in the header's GP Bit.
      */
-    dataDescriptorType = Suppliers.ofInstance(DataDescriptorType.NO_DATA_DESCRIPTOR);
+    dataDescriptorType = NO_DATA_DESCRIPTOR;
     if (header.getGpBit().isDeferredCrc()) {
       /*
        * If the deferred CRC bit exists, then we have an extra descriptor field. This extra
@@ -304,7 +312,27 @@ public class StoredEntry {
    */
   public int getLocalHeaderSize() {
     Preconditions.checkState(!deleted, "deleted");
-    return FIXED_LOCAL_FILE_HEADER_SIZE + cdh.getEncodedFileName().length + localExtra.size();
+    return FIXED_LOCAL_FILE_HEADER_SIZE + cdh.getEncodedFileNameLength() + localExtra.size();
+  }
+
+  /**
+   * Obtains the region of the zip file with this entry's raw (possibly compressed) data, if that
+   * data is guaranteed not to change. This is only the case for entries already written in zips
+   * open in read-only mode.
+   *
+   * @return the region or {@code null} if the data may change or is not written yet
+   * @throws IOException failed to get compression information
+   */
+  @Nullable
+  FileRegionByteSource getRawFileRegion() throws IOException {
+    Preconditions.checkState(!deleted, "deleted");
+    long offset = cdh.getOffset();
+    if (offset < 0) {
+      return null;
+    }
+
+    return file.fileRegion(
+        offset + getLocalHeaderSize(), cdh.getCompressionInfoWithWait().getCompressedSize());
   }
 
   /**
@@ -422,12 +450,16 @@ public class StoredEntry {
    * @throws IOException failed to read the local header
    */
   private void readLocalHeader() throws IOException {
-    byte[] localHeader = new byte[FIXED_LOCAL_FILE_HEADER_SIZE];
-    file.directFullyRead(cdh.getOffset(), localHeader);
+    /*
+     * Read the fixed part of the header and the file name together, they are contiguous. If the
+     * zip is memory-mapped, this is a view of the mapping and nothing is copied.
+     */
+    int fileNameLength = cdh.getEncodedFileNameLength();
+    ByteBuffer bytes =
+        file.directSlice(cdh.getOffset(), FIXED_LOCAL_FILE_HEADER_SIZE + fileNameLength);
 
     CentralDirectoryHeaderCompressInfo compressInfo = cdh.getCompressionInfoWithWait();
 
-    ByteBuffer bytes = ByteBuffer.wrap(localHeader);
     F_LOCAL_SIGNATURE.verify(bytes);
     F_VERSION_EXTRACT.verify(bytes, compressInfo.getVersionExtract(), verifyLog);
     F_GP_BIT.verify(bytes, cdh.getGpBit().getValue(), verifyLog);
@@ -456,11 +488,12 @@ public class StoredEntry {
       F_UNCOMPRESSED_SIZE.verify(bytes, cdh.getUncompressedSize(), verifyLog);
     }
 
-    F_FILE_NAME_LENGTH.verify(bytes, cdh.getEncodedFileName().length);
+    F_FILE_NAME_LENGTH.verify(bytes, fileNameLength);
     long extraLength = F_EXTRA_LENGTH.read(bytes);
     long fileNameStart = cdh.getOffset() + F_EXTRA_LENGTH.endOffset();
-    byte[] fileNameData = new byte[cdh.getEncodedFileName().length];
-    file.directFullyRead(fileNameStart, fileNameData);
+    byte[] fileNameData = new byte[fileNameLength];
+    bytes.position(F_EXTRA_LENGTH.endOffset());
+    bytes.get(fileNameData);
 
     String fileName = EncodeUtils.decode(fileNameData, cdh.getGpBit());
     if (!fileName.equals(cdh.getName())) {
@@ -471,9 +504,9 @@ public class StoredEntry {
               cdh.getName(), fileName));
     }
 
-    long localExtraStart = fileNameStart + cdh.getEncodedFileName().length;
+    long localExtraStart = fileNameStart + fileNameLength;
     byte[] localExtraRaw = new byte[Ints.checkedCast(extraLength)];
-    file.directFullyRead(localExtraStart, localExtraRaw);
+    file.directSlice(localExtraStart, localExtraRaw.length).get(localExtraRaw);
     localExtra = new ExtraField(localExtraRaw);
   }
 
@@ -687,7 +720,7 @@ public class StoredEntry {
       return false;
     }
 
-    dataDescriptorType = Suppliers.ofInstance(DataDescriptorType.NO_DATA_DESCRIPTOR);
+    dataDescriptorType = NO_DATA_DESCRIPTOR;
     cdh.resetDeferredCrc();
     return true;
   }
@@ -702,7 +735,7 @@ public class StoredEntry {
   int toHeaderData(byte[] buffer) throws IOException {
     Preconditions.checkArgument(
         buffer.length
-            >= F_EXTRA_LENGTH.endOffset() + cdh.getEncodedFileName().length + localExtra.size(),
+            >= F_EXTRA_LENGTH.endOffset() + cdh.getEncodedFileNameLength() + localExtra.size(),
         "Buffer should be at least the header size");
 
     ByteBuffer out = ByteBuffer.wrap(buffer);
@@ -734,7 +767,7 @@ public class StoredEntry {
     F_CRC32.write(out, cdh.getCrc32());
     F_COMPRESSED_SIZE.write(out, compressInfo.getCompressedSize());
     F_UNCOMPRESSED_SIZE.write(out, cdh.getUncompressedSize());
-    F_FILE_NAME_LENGTH.write(out, cdh.getEncodedFileName().length);
+    F_FILE_NAME_LENGTH.write(out, cdh.getEncodedFileNameLength());
     F_EXTRA_LENGTH.write(out, localExtra.size() + extraOffset + nestedOffset);
 
     out.put(cdh.getEncodedFileName());
@@ -23,6 +23,18 @@ import java.util.List;
 /** Factory for verification logs. */
 final class VerifyLogs {
 
+  /** Log that ignores all messages. It has no state, so one instance is shared by all users. */
+  private static final VerifyLog DEV_NULL =
+      new VerifyLog() {
+        @Override
+        public void log(String message) {}
+
+        @Override
+        public ImmutableList<String> getLogs() {
+          return ImmutableList.of();
+        }
+      };
+
   private VerifyLogs() {}
 
   /**
@@ -31,15 +43,7 @@ final class VerifyLogs {
    * @return the log
    */
   static VerifyLog devNull() {
-    return new VerifyLog() {
-      @Override
-      public void log(String message) {}
-
-      @Override
-      public ImmutableList<String> getLogs() {
-        return ImmutableList.of();
-      }
-    };
+    return DEV_NULL;
   }
 
   /**
@@ -18,15 +18,22 @@ package com.android.tools.build.apkzlib.zip;
 
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.tools.build.apkzlib.bytestorage.BufferPool;
 import com.android.tools.build.apkzlib.bytestorage.ByteStorage;
 import com.android.tools.build.apkzlib.utils.CachedFileContents;
+import com.android.tools.build.apkzlib.utils.IOExceptionConsumer;
 import com.android.tools.build.apkzlib.utils.IOExceptionFunction;
 import com.android.tools.build.apkzlib.utils.IOExceptionRunnable;
+import com.android.tools.build.apkzlib.utils.IOExceptionWrapper;
 import com.android.tools.build.apkzlib.zip.compress.Zip64NotSupportedException;
+import com.android.tools.build.apkzlib.zip.utils.AsyncFileWriter;
 import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
 import com.android.tools.build.apkzlib.zip.utils.CloseableDelegateByteSource;
+import com.android.tools.build.apkzlib.zip.utils.FileRegionByteSource;
 import com.android.tools.build.apkzlib.zip.utils.LittleEndianUtils;
+import com.android.tools.build.apkzlib.zip.utils.MappedFileView;
+import com.android.tools.build.apkzlib.zip.utils.MappedFileViewDataSource;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
@@ -40,6 +47,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closer;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.FutureCallback;
@@ -54,11 +62,18 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -67,7 +82,11 @@ import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 import javax.annotation.Nullable;
 
 /**
@@ -182,7 +201,10 @@ import javax.annotation.Nullable;
  * ZFile#addZFileExtension(ZFileExtension)} and {@link ZFile#removeZFileExtension(ZFileExtension)}.
  *
  * <p>This class is <strong>not</strong> thread-safe. Neither are any of the classes associated with
- * it in this package, except when otherwise noticed.
+ * it in this package, except when otherwise noticed. The one exception is reading: while the zip is
+ * not being modified, entries obtained from {@link #entries()} or {@link #get(String)} may be opened
+ * and read from several threads at the same time, as may {@link #directRead(long, ByteBuffer)} and
+ * friends. See {@link #forEachEntryParallel(IOExceptionConsumer, int)}.
  */
 public class ZFile implements Closeable {
 
@@ -213,6 +235,22 @@ public class ZFile implements Closeable {
   /** Size of buffer for I/O operations. */
   private static final int IO_BUFFER_SIZE = 1024 * 1024;
 
+  /**
+   * Maximum number of bytes read from entries and waiting to be written to the zip by {@link
+   * #writeAllFilesToZip()}.
+   */
+  private static final long WRITE_QUEUE_SIZE = 4 * 1024 * 1024;
+
+  /**
+   * How much of another file is copied, or memory-mapped, at once by {@link
+   * #transferFileRegion(FileRegionByteSource, long, CRC32)}.
+   */
+  private static final long TRANSFER_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /** Zeros used to fill free areas in the zip. Shared read-only, so always use a duplicate. */
+  private static final ByteBuffer ZEROS =
+      ByteBuffer.allocateDirect(IO_BUFFER_SIZE).asReadOnlyBuffer();
+
   /**
    * When extensions request re-runs, we do maximum number of cycles until we decide to stop and
    * flag a infinite recursion problem.
@@ -240,7 +278,7 @@ public class ZFile implements Closeable {
    * The random access file used to access the zip file. This will be {@code null} if and only if
    * {@link #state} is {@link ZipFileState#CLOSED}.
    */
-  @Nullable private RandomAccessFile raf;
+  @Nullable private volatile RandomAccessFile raf;
 
   /**
    * The map containing the in-memory contents of the zip file. It keeps track of which parts of the
@@ -289,6 +327,13 @@ public class ZFile implements Closeable {
    */
   private final List<StoredEntry> linkingEntries;
 
+  /**
+   * Entries added with {@link #addStoredFile(String, File)} whose CRC32 has not been computed yet.
+   * The CRC32 of these entries is computed by {@link #writeEntry(StoredEntry, long,
+   * AsyncFileWriter)} while the data is copied into the zip.
+   */
+  private final Set<StoredEntry> crcOnWriteEntries;
+
   /** Current state of the zip file. */
   private ZipFileState state;
 
@@ -326,6 +371,18 @@ public class ZFile implements Closeable {
    */
   private boolean isNotifying;
 
+  /**
+   * Entries moved to {@link #entries} during {@link #addAll(Map, boolean)}, whose notification is
+   * deferred until the whole batch has been added. {@code null} when no batch is being added.
+   */
+  @Nullable private List<StoredEntry> batchAdded;
+
+  /**
+   * Entries replaced by the ones in {@link #batchAdded}, in the same order, with {@code null} for
+   * entries that replaced nothing. {@code null} when no batch is being added.
+   */
+  @Nullable private List<StoredEntry> batchReplaced;
+
   /**
    * An extra offset for the central directory location. {@code 0} if the central directory should
    * be written in its standard location.
@@ -338,6 +395,12 @@ public class ZFile implements Closeable {
   /** Compressor to use. */
   private final Compressor compressor;
 
+  /** Decides which files are compressed and at which level. */
+  private final CompressionPolicy compressionPolicy;
+
+  /** How the bytes of files added to this zip have been compressed. */
+  private final CompressionStats compressionStats;
+
   /** Byte storage to use. */
   private final ByteStorage storage;
 
@@ -371,6 +434,36 @@ public class ZFile implements Closeable {
   /** Is the file in read-only mode? In read-only mode no changes are allowed. */
   private boolean readOnly;
 
+  /**
+   * Offset in {@link #file} at which the zip starts. This is {@code 0} unless the zip is stored
+   * inside a bigger file, in which case the zip is always read-only.
+   */
+  private final long fileOffset;
+
+  /** Size of the zip in {@link #file} or {@code -1} if the zip spans the whole file. */
+  private final long fileLength;
+
+  /** Should the zip be memory-mapped while open? Only read-only zips are mapped. */
+  private final boolean memoryMapReadOnly;
+
+  /**
+   * Mapping of the zip, if {@link #memoryMapReadOnly} is set and the zip is open. All direct reads
+   * are served from this mapping instead of {@link #raf}.
+   */
+  @Nullable private volatile MappedFileView mappedFile;
+
+  /**
+   * Should the central directory be read lazily? Only read-only zips are read lazily. When set,
+   * {@link #entries} only holds the entries already obtained from the directory.
+   */
+  private final boolean lazyCentralDirectory;
+
+  /**
+   * Are entries whose data lies in the data of a stored entry accepted? Only read-only zips accept
+   * them, see {@link ZFileOptions#setNestedEntriesAllowed(boolean)}.
+   */
+  private final boolean nestedEntriesAllowed;
+
   /**
    * Creates a new zip file. If the zip file does not exist, then no file is created at this point
    * and {@code ZFile} will contain an empty structure. However, an (empty) zip file will be created
@@ -419,7 +512,36 @@ public class ZFile implements Closeable {
    */
   @Deprecated
   public ZFile(File file, ZFileOptions options, boolean readOnly) throws IOException {
+    this(file, options, readOnly, 0, -1);
+  }
+
+  /**
+   * Opens a zip that is stored, uncompressed, inside a bigger file, such as a zip nested in an
+   * uncompressed entry of another zip. The zip is always open in read-only mode and all offsets
+   * are relative to {@code offset}.
+   *
+   * @param file the file containing the zip
+   * @param options configuration options
+   * @param offset offset in {@code file} where the zip starts
+   * @param length the size of the zip
+   * @throws IOException the zip could not be read
+   */
+  ZFile(File file, ZFileOptions options, long offset, long length) throws IOException {
+    this(file, options, true, offset, length);
+  }
+
+  private ZFile(File file, ZFileOptions options, boolean readOnly, long offset, long length)
+      throws IOException {
+    Preconditions.checkArgument(offset >= 0, "offset < 0");
+    Preconditions.checkArgument(
+        (offset == 0 && length == -1) || (readOnly && length >= 0),
+        "Only read-only zips can be opened from part of a file");
     this.file = file;
+    fileOffset = offset;
+    fileLength = length;
+    memoryMapReadOnly = readOnly && options.getMemoryMapReadOnly();
+    lazyCentralDirectory = readOnly && options.getLazyCentralDirectory();
+    nestedEntriesAllowed = readOnly && options.getNestedEntriesAllowed();
     map =
         new FileUseMap(
             0, options.getCoverEmptySpaceUsingExtraField() ? MINIMUM_EXTRA_FIELD_SIZE : 0);
@@ -432,6 +554,8 @@ public class ZFile implements Closeable {
     noTimestamps = options.getNoTimestamps();
     storage = options.getStorageFactory().create();
     compressor = options.getCompressor();
+    compressionPolicy = options.getCompressionPolicy();
+    compressionStats = new CompressionStats();
     coverEmptySpaceUsingExtraField = options.getCoverEmptySpaceUsingExtraField();
     autoSortFiles = options.getAutoSortFiles();
     verifyLogFactory = options.getVerifyLogFactory();
@@ -455,18 +579,19 @@ public class ZFile implements Closeable {
     entries = Maps.newHashMap();
     uncompressedEntries = Lists.newArrayList();
     linkingEntries = Lists.newArrayList();
+    crcOnWriteEntries = Sets.newIdentityHashSet();
     extraDirectoryOffset = 0;
 
     try {
       if (state != ZipFileState.CLOSED) {
         // TODO: to be removed completely once Zip64 is fully supported
         final long MAX_ENTRY_SIZE = 0xFFFFFFFFL; // 2^32-1
-        long rafSize = raf.length();
+        long rafSize = rafLength();
         if (rafSize > MAX_ENTRY_SIZE) {
           throw new IOException("File exceeds size limit of " + MAX_ENTRY_SIZE + ".");
         }
 
-        map.extend(raf.length());
+        map.extend(rafSize);
         readData();
       }
 
@@ -563,6 +688,16 @@ public class ZFile implements Closeable {
     return skipValidation;
   }
 
+  /**
+   * Obtains statistics on how the files added to this zip have been compressed. Files read from
+   * the zip or copied verbatim from other zips are not counted.
+   *
+   * @return the statistics, updated as files are compressed
+   */
+  public CompressionStats getCompressionStats() {
+    return compressionStats;
+  }
+
   /**
    * Obtains all entries in the file. Entries themselves may be or not written in disk. However, all
    * of them can be open for reading.
@@ -570,6 +705,8 @@ public class ZFile implements Closeable {
    * @return all entries in the zip
    */
   public Set<StoredEntry> entries() {
+    readLazyEntries();
+
     Map<String, StoredEntry> entries = Maps.newHashMap();
 
     for (FileUseMapEntry<StoredEntry> mapEntry : this.entries.values()) {
@@ -593,6 +730,29 @@ public class ZFile implements Closeable {
     return Sets.newHashSet(entries.values());
   }
 
+  /**
+   * Obtains the paths of all entries in the file. This is the same as obtaining the names of all
+   * entries in {@link #entries()}, but if the central directory is read lazily (see {@link
+   * ZFileOptions#setLazyCentralDirectory(boolean)}), no entries are created.
+   *
+   * @return the paths of all entries in the zip
+   * @throws IOExceptionWrapper failed to read the central directory
+   */
+  public Set<String> entryNames() {
+    CentralDirectory directory = lazyDirectory();
+    if (directory == null) {
+      return entries().stream()
+          .map(e -> e.getCentralDirectoryHeader().getName())
+          .collect(Collectors.toSet());
+    }
+
+    try {
+      return directory.getEntryNames();
+    } catch (IOException e) {
+      throw new IOExceptionWrapper(e);
+    }
+  }
+
   /**
    * Obtains an entry at a given path in the zip.
    *
@@ -613,12 +773,93 @@ public class ZFile implements Closeable {
 
     FileUseMapEntry<StoredEntry> found = entries.get(path);
     if (found == null) {
-      return null;
+      return readLazyEntry(path);
     }
 
     return found.getStore();
   }
 
+  /**
+   * Obtains the central directory if it was read lazily and has entries not yet added to {@link
+   * #entries}.
+   *
+   * @return the directory or {@code null} if all entries are in {@link #entries}
+   */
+  @Nullable
+  private CentralDirectory lazyDirectory() {
+    if (directoryEntry == null || !directoryEntry.getStore().isLazy()) {
+      return null;
+    }
+
+    return directoryEntry.getStore();
+  }
+
+  /**
+   * Reads an entry from a lazily-read central directory and adds it to {@link #entries}.
+   *
+   * @param path the path of the entry
+   * @return the entry or {@code null} if the directory was not read lazily or there is no entry
+   *     with the given path
+   * @throws IOExceptionWrapper failed to read the entry
+   */
+  @Nullable
+  private StoredEntry readLazyEntry(String path) {
+    CentralDirectory directory = lazyDirectory();
+    if (directory == null) {
+      return null;
+    }
+
+    try {
+      openReadOnlyIfClosed();
+      StoredEntry entry = directory.getEntry(path);
+      if (entry != null) {
+        addLazyEntry(entry);
+      }
+
+      return entry;
+    } catch (IOException e) {
+      throw new IOExceptionWrapper(e);
+    }
+  }
+
+  /**
+   * Reads all entries not yet read from a lazily-read central directory and adds them to {@link
+   * #entries}. Does nothing if the directory was not read lazily.
+   *
+   * @throws IOExceptionWrapper failed to read the entries
+   */
+  private void readLazyEntries() {
+    CentralDirectory directory = lazyDirectory();
+    if (directory == null) {
+      return;
+    }
+
+    try {
+      openReadOnlyIfClosed();
+      for (StoredEntry entry : directory.getEntries().values()) {
+        if (!entries.containsKey(entry.getCentralDirectoryHeader().getName())) {
+          addLazyEntry(entry);
+        }
+      }
+    } catch (IOException e) {
+      throw new IOExceptionWrapper(e);
+    }
+  }
+
+  /**
+   * Adds an entry read from a lazily-read central directory to {@link #entries}. As the zip is
+   * read-only, the entry is not tracked in {@link #map}, like entries nested in other entries.
+   *
+   * @param entry the entry
+   * @throws IOException failed to obtain the entry's size
+   */
+  private void addLazyEntry(StoredEntry entry) throws IOException {
+    long start = entry.getCentralDirectoryHeader().getOffset();
+    entries.put(
+        entry.getCentralDirectoryHeader().getName(),
+        FileUseMapEntry.makeUsed(start, start + entry.getInFileSize(), entry));
+  }
+
   /**
    * Reads all the data in the zip file, except the contents of the entries themselves. This method
    * will populate the directory and maps in the instance variables.
@@ -632,6 +873,14 @@ public class ZFile implements Closeable {
     readEocd();
     readCentralDirectory();
 
+    /*
+     * Entries of lazily-read directories are read on demand. Their space is never checked for
+     * overlaps and, as the zip is read-only, the extra directory offset is not needed.
+     */
+    if (lazyCentralDirectory) {
+      return;
+    }
+
     /*
      * Go over all files and create the usage map, verifying there is no overlap in the files.
      */
@@ -644,7 +893,15 @@ public class ZFile implements Closeable {
 
       entryEndOffset = 0;
 
-      for (StoredEntry entry : directory.getEntries().values()) {
+      /*
+       * Go over the entries in file order so that entries nested in others (see below) are
+       * always found after the entry that contains them.
+       */
+      List<StoredEntry> sortedEntries = Lists.newArrayList(directory.getEntries().values());
+      sortedEntries.sort(
+          Comparator.comparingLong(e -> e.getCentralDirectoryHeader().getOffset()));
+
+      for (StoredEntry entry : sortedEntries) {
         long start = entry.getCentralDirectoryHeader().getOffset();
         long end = start + entry.getInFileSize();
 
@@ -667,6 +924,18 @@ public class ZFile implements Closeable {
         FileUseMapEntry<?> found = map.at(start);
         Verify.verifyNotNull(found);
 
+        /*
+         * Linked entries (see addNestedLink()) live inside the data of the entry holding the
+         * nested zip. They are fine when reading, if allowed, but they can't be tracked in the map
+         * as they don't own the space they use.
+         */
+        if (nestedEntriesAllowed && isNestedIn(entry, start, end, found)) {
+          entries.put(
+              entry.getCentralDirectoryHeader().getName(),
+              FileUseMapEntry.makeUsed(start, end, entry));
+          continue;
+        }
+
         // We've got a problem if the found entry is not free or is a free entry but
         // doesn't cover the whole file.
         if (!found.isFree() || found.getEnd() < end) {
@@ -732,6 +1001,34 @@ public class ZFile implements Closeable {
     extraDirectoryOffset = extraOffset;
   }
 
+  /**
+   * Checks whether the data of an entry is wholly in the data of a stored entry, as the data of
+   * the entries linked by {@link #addNestedLink(StoredEntry, String, StoredEntry, long, boolean)}
+   * is. The local header of a linked entry may be in the extra field of the entry holding it, but
+   * an entry sharing the start of another, or running past its end, is not nested.
+   *
+   * @param entry the entry
+   * @param start the start of the entry
+   * @param end the end of the entry's data
+   * @param container the map entry at {@code start}
+   * @return is the entry nested in {@code container}?
+   * @throws IOException failed to read the compression method of the container
+   */
+  private static boolean isNestedIn(
+      StoredEntry entry, long start, long end, FileUseMapEntry<?> container) throws IOException {
+    if (container.isFree() || !(container.getStore() instanceof StoredEntry)) {
+      return false;
+    }
+
+    StoredEntry containerEntry = (StoredEntry) container.getStore();
+    CentralDirectoryHeader cdh = containerEntry.getCentralDirectoryHeader();
+    long containerDataStart = container.getStart() + containerEntry.getLocalHeaderSize();
+    return cdh.getCompressionInfoWithWait().getMethod() == CompressionMethod.STORE
+        && start > container.getStart()
+        && start + entry.getLocalHeaderSize() >= containerDataStart
+        && end <= container.getEnd();
+  }
+
   /**
    * Finds the EOCD marker and reads it. It will populate the {@link #eocdEntry} variable.
    *
@@ -746,12 +1043,13 @@ public class ZFile implements Closeable {
      * the file is corrupt.
      */
     int lastToRead = LAST_BYTES_TO_READ;
-    if (lastToRead > raf.length()) {
-      lastToRead = Ints.checkedCast(raf.length());
+    long zipLength = rafLength();
+    if (lastToRead > zipLength) {
+      lastToRead = Ints.checkedCast(zipLength);
     }
 
     byte[] last = new byte[lastToRead];
-    directFullyRead(raf.length() - lastToRead, last);
+    directFullyRead(zipLength - lastToRead, last);
 
     /*
      * Start endIdx at the first possible location where the signature can be located and then
@@ -788,20 +1086,20 @@ public class ZFile implements Closeable {
 
         try {
           eocd = new Eocd(eocdBytes);
-          eocdStart = raf.length() - lastToRead + foundEocdSignature;
+          eocdStart = zipLength - lastToRead + foundEocdSignature;
 
           /*
            * Make sure the EOCD takes the whole file up to the end. Log an error if it
            * doesn't.
            */
-          if (eocdStart + eocd.getEocdSize() != raf.length()) {
+          if (eocdStart + eocd.getEocdSize() != zipLength) {
             verifyLog.log(
                 "EOCD starts at "
                     + eocdStart
                     + " and has "
                     + eocd.getEocdSize()
                     + " bytes, but file ends at "
-                    + raf.length()
+                    + zipLength
                     + ".");
           }
         } catch (IOException e) {
@@ -887,12 +1185,13 @@ public class ZFile implements Closeable {
       }
     }
 
-    byte[] directoryData = new byte[Ints.checkedCast(dirSize)];
-    directFullyRead(eocd.getDirectoryOffset(), directoryData);
+    ByteBuffer directoryData = directSlice(eocd.getDirectoryOffset(), Ints.checkedCast(dirSize));
 
     CentralDirectory directory =
-        CentralDirectory.makeFromData(
-            ByteBuffer.wrap(directoryData), eocd.getTotalRecords(), this, storage);
+        lazyCentralDirectory
+            ? CentralDirectory.makeLazyFromData(
+                directoryData, eocd.getTotalRecords(), this, storage)
+            : CentralDirectory.makeFromData(directoryData, eocd.getTotalRecords(), this, storage);
     if (eocd.getDirectorySize() > 0) {
       directoryEntry =
           map.add(
@@ -919,7 +1218,7 @@ public class ZFile implements Closeable {
     Preconditions.checkNotNull(raf, "raf == null");
     Preconditions.checkArgument(start >= 0, "start < 0");
     Preconditions.checkArgument(end >= start, "end < start");
-    Preconditions.checkArgument(end <= raf.length(), "end > raf.length()");
+    Preconditions.checkArgument(end <= rafLength(), "end > rafLength()");
 
     return new InputStream() {
       private long mCurr = start;
@@ -969,6 +1268,99 @@ public class ZFile implements Closeable {
     };
   }
 
+  /**
+   * Runs an action on every entry of the zip, using several threads. Entries are listed on the
+   * calling thread and then handed to a fork-join pool, so the action may run on different
+   * entries at the same time and in any order. The action may open and read the entries, but must
+   * not modify the zip.
+   *
+   * <p>Entries not yet written to the zip are included, once their compression has finished.
+   *
+   * @param action the action to run
+   * @param parallelism the maximum number of threads to use
+   * @throws IOException the action failed for some entry; the first failure is reported, and
+   *     entries not yet started when it happens are skipped
+   */
+  public void forEachEntryParallel(IOExceptionConsumer<StoredEntry> action, int parallelism)
+      throws IOException {
+    Preconditions.checkArgument(parallelism > 0, "parallelism <= 0");
+
+    processAllReadyEntriesWithWait();
+    Set<StoredEntry> all = entries();
+    if (!all.isEmpty()) {
+      openReadOnlyIfClosed();
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      List<ForkJoinTask<?>> tasks = new ArrayList<>(all.size());
+      for (StoredEntry entry : all) {
+        tasks.add(
+            pool.submit(
+                () -> {
+                  try {
+                    action.accept(entry);
+                  } catch (IOException e) {
+                    throw new IOExceptionWrapper(e);
+                  }
+                }));
+      }
+
+      for (ForkJoinTask<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while processing entries.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOExceptionWrapper) {
+        throw ((IOExceptionWrapper) e.getCause()).getCause();
+      }
+
+      throw new IOException("Failed to process entry.", e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Extracts all entries of the zip into a directory, inflating them in parallel. Directory
+   * entries create directories and file entries create files with the entry's contents, replacing
+   * any existing file. Entries whose name would place them outside {@code dir} are rejected.
+   *
+   * @param dir the directory to extract to; it is created if it does not exist
+   * @param parallelism the maximum number of threads to use
+   * @throws IOException failed to read an entry or to write a file
+   */
+  public void extractAll(Path dir, int parallelism) throws IOException {
+    Path root = dir.toAbsolutePath().normalize();
+    Files.createDirectories(root);
+    forEachEntryParallel(
+        entry -> {
+          Preconditions.checkNotNull(entry, "entry == null");
+          String name = entry.getCentralDirectoryHeader().getName();
+          Path target = root.resolve(name).normalize();
+          if (!target.startsWith(root)) {
+            throw new IOException("Entry '" + name + "' is outside of '" + root + "'");
+          }
+
+          if (entry.getType() == StoredEntryType.DIRECTORY) {
+            Files.createDirectories(target);
+            return;
+          }
+
+          Path parent = target.getParent();
+          if (parent != null) {
+            Files.createDirectories(parent);
+          }
+
+          try (InputStream in = entry.open()) {
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+          }
+        },
+        parallelism);
+  }
+
   /**
    * Deletes an entry from the zip. This method does not actually delete anything on disk. It just
    * changes in-memory structures. Use {@link #update()} to update the contents on disk.
@@ -991,6 +1383,7 @@ public class ZFile implements Closeable {
 
     map.remove(mapEntry);
     entries.remove(path);
+    crcOnWriteEntries.remove(entry);
 
     if (notify) {
       notify(ext -> ext.removed(entry));
@@ -1019,15 +1412,16 @@ public class ZFile implements Closeable {
     checkNotInReadOnlyMode();
 
     /*
-     * Process all background stuff before calling in the extensions.
+     * Process all background stuff before calling in the extensions. Entries that are already
+     * compressed are written while waiting for the others.
      */
-    processAllReadyEntriesWithWait();
+    processAllReadyEntriesWithWait(true);
     notify(ZFileExtension::beforeUpdate);
 
     /*
      * Process all background stuff that may be leftover by the extensions.
      */
-    processAllReadyEntriesWithWait();
+    processAllReadyEntriesWithWait(true);
 
     if (dirty) {
       writeAllFilesToZip();
@@ -1197,16 +1591,21 @@ public class ZFile implements Closeable {
     }
 
     /*
-     * Write everything to file.
+     * Write everything to file. Data is read on this thread and written, in file order, by the
+     * writer thread, so reading the next entry overlaps with writing the previous ones. Closing
+     * the writer waits for all writes to finish before the central directory is computed.
      */
-    byte[] chunk = new byte[IO_BUFFER_SIZE];
-    for (FileUseMapEntry<?> fileUseMapEntry : toWriteToStore.keySet()) {
-      StoredEntry entry = toWriteToStore.get(fileUseMapEntry);
-      if (entry == null) {
-        int size = Ints.checkedCast(fileUseMapEntry.getSize());
-        directWrite(fileUseMapEntry.getStart(), new byte[size]);
-      } else {
-        writeEntry(entry, fileUseMapEntry.getStart(), chunk);
+    Preconditions.checkNotNull(raf, "raf == null");
+    try (AsyncFileWriter writer = new AsyncFileWriter(raf.getChannel(), WRITE_QUEUE_SIZE)) {
+      for (FileUseMapEntry<?> fileUseMapEntry : toWriteToStore.keySet()) {
+        StoredEntry entry = toWriteToStore.get(fileUseMapEntry);
+        long start = fileUseMapEntry.getStart();
+        if (entry == null) {
+          long size = fileUseMapEntry.getSize();
+          writer.run(() -> writeZeros(start, size));
+        } else {
+          writeEntry(entry, start, writer);
+        }
       }
     }
   }
@@ -1395,19 +1794,22 @@ public class ZFile implements Closeable {
    * itself. After writing, the entry is updated with the offset and its source replaced with a
    * source that reads from the zip file.
    *
+   * <p>The data is read on the calling thread into pooled blocks, which are handed to {@code
+   * writer}; the entry's new source must not be read until the writer has been flushed.
+   *
    * @param entry the entry to write
    * @param offset the offset at which the entry should be written
+   * @param writer the writer that writes to the zip file
    * @throws IOException failed to write the entry
    */
-  private void writeEntry(StoredEntry entry, long offset, byte[] chunk) throws IOException {
+  private void writeEntry(StoredEntry entry, long offset, AsyncFileWriter writer)
+      throws IOException {
     Preconditions.checkArgument(
         entry.getDataDescriptorType() == DataDescriptorType.NO_DATA_DESCRIPTOR,
         "Cannot write entries with a data " + "descriptor.");
     Preconditions.checkNotNull(raf, "raf == null");
     Preconditions.checkState(state == ZipFileState.OPEN_RW, "state != ZipFileState.OPEN_RW");
 
-    int r;
-    // Put header data to the beginning of buffer
     // LSPatch: write extra entries in the extra field if it's a linking
     int localHeaderSize = entry.getLocalHeaderSize();
     for (var segment : entry.getLocalExtra().getSegments()) {
@@ -1415,15 +1817,67 @@ public class ZFile implements Closeable {
         ((ExtraField.LinkingEntrySegment) segment).setOffset(localHeaderSize, offset);
       }
     }
-    int readOffset = entry.toHeaderData(chunk);
-    assert localHeaderSize == readOffset;
-    long writeOffset = offset;
-    try (InputStream is = entry.getSource().getRawByteSource().openStream()) {
-      while ((r = is.read(chunk, readOffset, chunk.length - readOffset)) >= 0 || readOffset > 0) {
-        int toWrite = (r == -1 ? 0 : r) + readOffset;
-        directWrite(writeOffset, chunk, 0, toWrite);
-        writeOffset += toWrite;
-        readOffset = 0;
+    byte[] header = new byte[localHeaderSize];
+    int headerSize = entry.toHeaderData(header);
+    assert localHeaderSize == headerSize;
+    writer.write(offset, ByteBuffer.wrap(header), null);
+
+    long writeOffset = offset + headerSize;
+    CRC32 crc = crcOnWriteEntries.remove(entry) ? new CRC32() : null;
+    CloseableByteSource rawSource = entry.getSource().getRawByteSource();
+    if (rawSource instanceof FileRegionByteSource) {
+      FileRegionByteSource region = (FileRegionByteSource) rawSource;
+      long dataOffset = writeOffset;
+      writer.run(
+          () -> {
+            transferFileRegion(region, dataOffset, crc);
+            if (crc != null) {
+              entry.getCentralDirectoryHeader().setCrc32(crc.getValue());
+              writeCrc32(offset, crc.getValue());
+            }
+          });
+    } else {
+      try (InputStream is = rawSource.openStream()) {
+        while (true) {
+          byte[] block = BufferPool.acquire();
+          int read;
+
+          /*
+           * The block belongs to the writer, which releases it once written, only after write()
+           * returns. Release it here if reading or submitting it fails.
+           */
+          boolean submitted = false;
+          try {
+            read = ByteStreams.read(is, block, 0, block.length);
+            if (read == 0) {
+              break;
+            }
+
+            if (crc != null) {
+              crc.update(block, 0, read);
+            }
+
+            writer.write(
+                writeOffset, ByteBuffer.wrap(block, 0, read), () -> BufferPool.release(block));
+            submitted = true;
+          } finally {
+            if (!submitted) {
+              BufferPool.release(block);
+            }
+          }
+
+          writeOffset += read;
+        }
+      }
+
+      /*
+       * The CRC32 was not known when the local header was written, patch it in place now that all
+       * data went through the checksum.
+       */
+      if (crc != null) {
+        long crcValue = crc.getValue();
+        entry.getCentralDirectoryHeader().setCrc32(crcValue);
+        writer.run(() -> writeCrc32(offset, crcValue));
       }
     }
 
@@ -1433,6 +1887,85 @@ public class ZFile implements Closeable {
     entry.replaceSourceFromZip(offset);
   }
 
+  /**
+   * Patches the CRC32 in an entry's local header.
+   *
+   * @param entryOffset the offset of the entry's local header
+   * @param crc32 the CRC32 to write
+   * @throws IOException failed to write the data
+   */
+  private void writeCrc32(long entryOffset, long crc32) throws IOException {
+    Preconditions.checkNotNull(raf, "raf == null");
+    ByteBuffer crcBytes = ByteBuffer.allocate(4);
+    LittleEndianUtils.writeUnsigned4Le(crcBytes, crc32);
+    crcBytes.flip();
+    long position = entryOffset + StoredEntry.LOCAL_HEADER_CRC32_OFFSET;
+    while (crcBytes.hasRemaining()) {
+      position += raf.getChannel().write(crcBytes, position);
+    }
+  }
+
+  /**
+   * Copies a region of another file into the zip without passing the data through the Java heap.
+   * If the CRC32 of the data is needed, the region is memory-mapped and checksummed in place before
+   * being written; otherwise the copy is left to the kernel.
+   *
+   * @param region the region to copy
+   * @param offset the offset in the zip where the data should be written
+   * @param crc receives the data if not {@code null}
+   * @throws IOException failed to copy the data
+   */
+  private void transferFileRegion(FileRegionByteSource region, long offset, @Nullable CRC32 crc)
+      throws IOException {
+    Preconditions.checkNotNull(raf, "raf == null");
+    FileChannel out = raf.getChannel();
+    try (FileChannel in = FileChannel.open(region.getFile().toPath(), StandardOpenOption.READ)) {
+      long done = 0;
+      while (done < region.getLength()) {
+        long count = Math.min(region.getLength() - done, TRANSFER_WINDOW_SIZE);
+        if (crc != null) {
+          MappedByteBuffer mapped =
+              in.map(FileChannel.MapMode.READ_ONLY, region.getOffset() + done, count);
+          crc.update(mapped.duplicate());
+          while (mapped.hasRemaining()) {
+            out.write(mapped, offset + done + mapped.position());
+          }
+          done += count;
+        } else {
+          in.position(region.getOffset() + done);
+          long transferred = out.transferFrom(in, offset + done, count);
+          if (transferred <= 0) {
+            throw new EOFException(
+                "Failed to read "
+                    + (region.getLength() - done)
+                    + " more bytes from '"
+                    + region.getFile().getAbsolutePath()
+                    + "': premature EOF");
+          }
+          done += transferred;
+        }
+      }
+    }
+  }
+
+  /**
+   * Fills a region of the zip with zeros.
+   *
+   * @param offset the offset at which to start writing
+   * @param count the number of zeros to write
+   * @throws IOException failed to write the data
+   */
+  private void writeZeros(long offset, long count) throws IOException {
+    Preconditions.checkNotNull(raf, "raf == null");
+    FileChannel out = raf.getChannel();
+    long end = offset + count;
+    while (offset < end) {
+      ByteBuffer zeros = ZEROS.duplicate();
+      zeros.limit(Ints.checkedCast(Math.min(zeros.capacity(), end - offset)));
+      offset += out.write(zeros, offset);
+    }
+  }
+
   /**
    * Computes the central directory. The central directory must not have been computed yet. When
    * this method finishes, the central directory has been computed {@link #directoryEntry}, unless
@@ -1617,6 +2150,7 @@ public class ZFile implements Closeable {
 
     raf.close();
     raf = null;
+    mappedFile = null;
     state = ZipFileState.CLOSED;
     if (closedControl == null) {
       closedControl = new CachedFileContents<>(file);
@@ -1633,13 +2167,18 @@ public class ZFile implements Closeable {
    *
    * @throws IOException failed to open the file
    */
-  public void openReadOnlyIfClosed() throws IOException {
+  public synchronized void openReadOnlyIfClosed() throws IOException {
     if (state != ZipFileState.CLOSED) {
       return;
     }
 
     state = ZipFileState.OPEN_RO;
     raf = new RandomAccessFile(file, "r");
+    if (memoryMapReadOnly) {
+      mappedFile =
+          MappedFileView.map(
+              raf.getChannel(), fileOffset, rafLength(), MappedFileView.DEFAULT_WINDOW_SIZE);
+    }
   }
 
   /**
@@ -1767,6 +2306,65 @@ public class ZFile implements Closeable {
     return add(makeStoredEntry(name, source, mayCompress));
   }
 
+  /**
+   * Adds several files to the archive. This is the same as calling {@link #add(String, ByteSource,
+   * boolean)} for each file, but compression of all files is scheduled before any of them is
+   * placed, and extensions are notified once, with {@link ZFileExtension#addedAll(List, List)},
+   * after all files have been added. This method waits until all files have been compressed.
+   *
+   * @param sources the files' names and data, in the order they should be added; all sources must
+   *     have a known size
+   * @param mayCompress can the files be compressed? See {@link #add(String, InputStream,
+   *     boolean)}
+   * @return the new entries, in the order of {@code sources}
+   * @throws IOException failed to read the source data
+   * @throws IllegalStateException if the file is in read-only mode
+   */
+  public List<StoredEntry> addAll(Map<String, ? extends ByteSource> sources, boolean mayCompress)
+      throws IOException {
+    checkNotInReadOnlyMode();
+    processAllReadyEntries();
+
+    List<StoredEntry> newEntries = new ArrayList<>(sources.size());
+    for (Map.Entry<String, ? extends ByteSource> source : sources.entrySet()) {
+      Optional<Long> sizeBytes = source.getValue().sizeIfKnown();
+      if (!sizeBytes.isPresent()) {
+        throw new IllegalArgumentException("Can only add ByteSources with known size");
+      }
+
+      StoredEntry newEntry =
+          makeStoredEntry(
+              source.getKey(),
+              new CloseableDelegateByteSource(source.getValue(), sizeBytes.get()),
+              mayCompress);
+      uncompressedEntries.add(newEntry);
+      newEntries.add(newEntry);
+    }
+
+    if (batchAdded != null) {
+      // We are already adding a batch; these entries are notified with it.
+      processAllReadyEntriesWithWait();
+      return newEntries;
+    }
+
+    List<StoredEntry> added = new ArrayList<>();
+    List<StoredEntry> replaced = new ArrayList<>();
+    batchAdded = added;
+    batchReplaced = replaced;
+    try {
+      processAllReadyEntriesWithWait();
+    } finally {
+      batchAdded = null;
+      batchReplaced = null;
+    }
+
+    if (!added.isEmpty()) {
+      notify(ext -> ext.addedAll(added, replaced));
+    }
+
+    return newEntries;
+  }
+
   public void addLink(StoredEntry linkedEntry, String dstName)
           throws IOException {
       addNestedLink(linkedEntry, dstName, null, 0L, false);
@@ -1774,12 +2372,42 @@ public class ZFile implements Closeable {
 
   void addNestedLink(StoredEntry linkedEntry, String dstName, StoredEntry nestedEntry, long nestedOffset, boolean dummy)
           throws IOException {
+    addLinkingEntries(
+        linkedEntry,
+        ImmutableList.of(makeLinkingEntry(linkedEntry, dstName, nestedEntry, nestedOffset, dummy)));
+  }
+
+  /**
+   * Creates an entry that links to {@code linkedEntry}, to be added with {@link
+   * #addLinkingEntries(StoredEntry, List)}.
+   */
+  StoredEntry makeLinkingEntry(StoredEntry linkedEntry, String dstName, StoredEntry nestedEntry, long nestedOffset, boolean dummy)
+          throws IOException {
+    Preconditions.checkArgument(linkedEntry != null, "linkedEntry is null");
+    Preconditions.checkArgument(nestedEntry != null || !crcOnWriteEntries.contains(linkedEntry), "linkedEntry has no CRC32 yet");
+    return new StoredEntry(dstName, this, storage, linkedEntry, nestedEntry, nestedOffset, dummy);
+  }
+
+  /**
+   * Adds entries created with {@link #makeLinkingEntry(StoredEntry, String, StoredEntry, long,
+   * boolean)} that all link to {@code linkedEntry}. The local header of {@code linkedEntry} grows
+   * with every link, so it is rebuilt and the entry placed only once for all of them.
+   */
+  void addLinkingEntries(StoredEntry linkedEntry, List<StoredEntry> newLinkingEntries)
+          throws IOException {
     Preconditions.checkArgument(linkedEntry != null, "linkedEntry is null");
     Preconditions.checkArgument(linkedEntry.getCentralDirectoryHeader().getOffset() < 0, "linkedEntry is not new file");
     Preconditions.checkArgument(!linkedEntry.isLinkingEntry(), "linkedEntry is a linking entry");
-    var linkingEntry = new StoredEntry(dstName, this, storage, linkedEntry, nestedEntry, nestedOffset, dummy);
-    linkingEntries.add(linkingEntry);
-    linkedEntry.setLocalExtraNoNotify(new ExtraField(ImmutableList.<ExtraField.Segment>builder().add(linkedEntry.getLocalExtra().getSegments().toArray(new ExtraField.Segment[0])).add(new ExtraField.LinkingEntrySegment(linkingEntry)).build()));
+    if (newLinkingEntries.isEmpty()) {
+      return;
+    }
+
+    var segments = ImmutableList.<ExtraField.Segment>builder().addAll(linkedEntry.getLocalExtra().getSegments());
+    for (StoredEntry linkingEntry : newLinkingEntries) {
+      segments.add(new ExtraField.LinkingEntrySegment(linkingEntry));
+    }
+    linkingEntries.addAll(newLinkingEntries);
+    linkedEntry.setLocalExtraNoNotify(new ExtraField(segments.build()));
     reAdd(linkedEntry, PositionHint.LOWEST_OFFSET);
   }
 
@@ -1787,6 +2415,76 @@ public class ZFile implements Closeable {
     return new NestedZip(name, this, src, mayCompress);
   }
 
+  /**
+   * Nests a zip that is already stored, uncompressed, as an entry of another zip. The nested zip
+   * is read in place and its data is copied verbatim when this archive is written, so it never
+   * needs to be extracted.
+   *
+   * @param name the name of the new entry
+   * @param src the zip containing the nested zip; it must not be modified until this zip is updated
+   * @param srcName the name of the entry in {@code src} with the nested zip
+   * @return the nested zip
+   * @throws IOException failed to read the nested zip or it is not stored uncompressed
+   */
+  public NestedZip addNestedZip(NestedZip.NameCallback name, ZFile src, String srcName)
+      throws IOException {
+    return new NestedZip(name, this, src, srcName);
+  }
+
+  /**
+   * Adds a file to the archive without compressing it. The data is neither copied into the byte
+   * storage nor read up-front to compute its CRC32: the file is read exactly once, when the archive
+   * is written, and the CRC32 is computed in that same pass. The data is copied with {@link
+   * FileChannel} transfers and memory mapping, so it never passes through the Java heap. This is
+   * meant for very large entries, such as nested archives, that would otherwise be read several
+   * times.
+   *
+   * <p>The CRC32 in the returned entry's central directory header is only valid after the archive
+   * has been updated. {@code src} must not change until then.
+   *
+   * @param name the file name (<em>i.e.</em>, path); paths should be defined using slashes and the
+   *     name should not end in slash
+   * @param src the file with the entry's data
+   * @return the new entry
+   * @throws IOException failed to add the file
+   * @throws IllegalStateException if the file is in read-only mode
+   */
+  public StoredEntry addStoredFile(String name, File src) throws IOException {
+    return addStoredFile(name, src, 0, src.length());
+  }
+
+  /**
+   * Same as {@link #addStoredFile(String, File)}, but the entry's data is only the {@code length}
+   * bytes of {@code src} starting at {@code offset}.
+   *
+   * @param name the file name (<em>i.e.</em>, path)
+   * @param src the file with the entry's data
+   * @param offset the offset in {@code src} where the data starts
+   * @param length the size of the data
+   * @return the new entry
+   * @throws IOException failed to add the file
+   * @throws IllegalStateException if the file is in read-only mode
+   */
+  public StoredEntry addStoredFile(String name, File src, long offset, long length)
+      throws IOException {
+    checkNotInReadOnlyMode();
+    processAllReadyEntries();
+
+    CloseableByteSource source = new FileRegionByteSource(src, offset, length);
+    boolean encodeWithUtf8 = !EncodeUtils.canAsciiEncode(name);
+    SettableFuture<CentralDirectoryHeaderCompressInfo> compressInfo = SettableFuture.create();
+    GPFlags flags = GPFlags.make(encodeWithUtf8);
+    CentralDirectoryHeader newFileData =
+        new CentralDirectoryHeader(
+            name, EncodeUtils.encode(name, flags), source.size(), compressInfo, flags, this);
+
+    StoredEntry newEntry =
+        new StoredEntry(
+            newFileData, this, createSources(false, source, compressInfo, newFileData), storage);
+    crcOnWriteEntries.add(newEntry);
+    return add(newEntry);
+  }
+
 
   /**
    * Adds a {@link StoredEntry} to the zip. The entry is not immediately added to {@link #entries}
@@ -1858,13 +2556,28 @@ public class ZFile implements Closeable {
       SettableFuture<CentralDirectoryHeaderCompressInfo> compressInfo,
       CentralDirectoryHeader newFileData)
       throws IOException {
+    int level = CompressionPolicy.NO_PREFERENCE;
     if (mayCompress) {
-      ListenableFuture<CompressionResult> result = compressor.compress(source, storage);
+      level = compressionPolicy.level(newFileData.getName(), source);
+      if (level == CompressionPolicy.STORE) {
+        compressionStats.recordSkipped(newFileData.getUncompressedSize());
+        mayCompress = false;
+      }
+    }
+
+    if (mayCompress) {
+      ListenableFuture<CompressionResult> result =
+          level == CompressionPolicy.NO_PREFERENCE
+              ? compressor.compress(source, storage)
+              : compressor.compress(source, storage, level);
       Futures.addCallback(
           result,
           new FutureCallback<CompressionResult>() {
             @Override
             public void onSuccess(CompressionResult result) {
+              compressionStats.recordDeflated(
+                  newFileData.getUncompressedSize(),
+                  result.getCompressionMethod() != CompressionMethod.STORE);
               compressInfo.set(
                   new CentralDirectoryHeaderCompressInfo(
                       newFileData, result.getCompressionMethod(), result.getSize()));
@@ -1943,6 +2656,19 @@ public class ZFile implements Closeable {
    *     a file to the archive
    */
   private void processAllReadyEntriesWithWait() throws IOException {
+    processAllReadyEntriesWithWait(false);
+  }
+
+  /**
+   * Waits until {@link #uncompressedEntries} is empty.
+   *
+   * @param writeReadyEntries while waiting for an entry to be compressed, write the entries that
+   *     have already been added with {@link #writeReadyEntries()}; only {@link #update()} may ask
+   *     for this, as it writes the file
+   * @throws IOException the exception reported in the future computation, if any, or failed to add
+   *     a file to the archive
+   */
+  private void processAllReadyEntriesWithWait(boolean writeReadyEntries) throws IOException {
     processAllReadyEntries();
     while (!uncompressedEntries.isEmpty()) {
       /*
@@ -1951,12 +2677,68 @@ public class ZFile implements Closeable {
        */
       StoredEntry first = uncompressedEntries.get(0);
       CentralDirectoryHeader cdh = first.getCentralDirectoryHeader();
+      if (writeReadyEntries && !cdh.getCompressionInfo().isDone()) {
+        writeReadyEntries();
+      }
+
       cdh.getCompressionInfoWithWait();
 
       processAllReadyEntries();
     }
   }
 
+  /**
+   * Writes the entries in {@link #entries} that have not been written yet and whose position
+   * {@link #writeAllFilesToZip()} will keep, so that disk writes overlap with the compression of
+   * entries still in {@link #uncompressedEntries}. Returns once all data has been written.
+   *
+   * <p>Nothing is written if files are sorted, as sorting moves every entry. With {@link
+   * #coverEmptySpaceUsingExtraField}, entries after free space are left for {@link
+   * #writeAllFilesToZip()}, as it moves them to cover the space. An entry written here and moved
+   * or removed later, e.g. because it is replaced or a previous entry is removed, is simply written
+   * again from the zip: the result is the same, only the early write is wasted.
+   *
+   * @throws IOException failed to write the entries
+   */
+  private void writeReadyEntries() throws IOException {
+    if (autoSortFiles) {
+      return;
+    }
+
+    TreeMap<FileUseMapEntry<?>, StoredEntry> toWrite =
+        new TreeMap<>(FileUseMapEntry.COMPARE_BY_START);
+    for (FileUseMapEntry<StoredEntry> entry : entries.values()) {
+      StoredEntry entryStore = entry.getStore();
+      Preconditions.checkNotNull(entryStore, "Entry at %s is null", entry.getStart());
+      if (entryStore.getCentralDirectoryHeader().getOffset() != -1) {
+        continue;
+      }
+
+      FileUseMapEntry<?> before = map.before(entry);
+      if (coverEmptySpaceUsingExtraField && before != null && before.isFree()) {
+        continue;
+      }
+
+      toWrite.put(entry, entryStore);
+    }
+
+    if (toWrite.isEmpty()) {
+      return;
+    }
+
+    /*
+     * Closing the writer waits for the data to be on disk: extensions notified of new entries
+     * may read the entries written here from the zip.
+     */
+    reopenRw();
+    Preconditions.checkNotNull(raf, "raf == null");
+    try (AsyncFileWriter writer = new AsyncFileWriter(raf.getChannel(), WRITE_QUEUE_SIZE)) {
+      for (Map.Entry<FileUseMapEntry<?>, StoredEntry> entry : toWrite.entrySet()) {
+        writeEntry(entry.getValue(), entry.getKey().getStart(), writer);
+      }
+    }
+  }
+
   /**
    * Adds a new file to {@link #entries}. This is actually added to the zip and its space allocated
    * in the {@link #map}.
@@ -1992,7 +2774,12 @@ public class ZFile implements Closeable {
 
     dirty = true;
 
-    notify(ext -> ext.added(newEntry, replaceStore));
+    if (batchAdded != null && batchReplaced != null) {
+      batchAdded.add(newEntry);
+      batchReplaced.add(replaceStore);
+    } else {
+      notify(ext -> ext.added(newEntry, replaceStore));
+    }
   }
 
   /**
@@ -2119,46 +2906,99 @@ public class ZFile implements Closeable {
         }
 
         /*
-         * Read the data (read directly the compressed source if there is one).
+         * Add will replace any current entry with the same name.
          */
-        ProcessedAndRawByteSources fromSource = fromEntry.getSource();
-        InputStream fromInput = fromSource.getRawByteSource().openStream();
-        long sourceSize = fromSource.getRawByteSource().size();
-        if (sourceSize > Integer.MAX_VALUE) {
-          throw new IOException("Cannot read source with " + sourceSize + " bytes.");
-        }
+        StoredEntry newEntry =
+            new StoredEntry(
+                newFileData, this, copyRawSources(fromEntry, fromCompressInfo), storage);
+        add(newEntry);
+      }
+    }
+  }
 
-        byte[] data = new byte[Ints.checkedCast(sourceSize)];
-        int read = 0;
-        while (read < data.length) {
-          int r = fromInput.read(data, read, data.length - read);
-          Verify.verify(r >= 0, "There should be at least 'size' bytes in the stream.");
-          read += r;
-        }
+  /**
+   * Adds an entry copied from another zip without decompressing and recompressing it. The
+   * compressed data, compression method, CRC32 and sizes of {@code src} are copied verbatim, so
+   * adding an entry that is already deflated costs a copy of its compressed bytes only.
+   *
+   * <p>If {@code src} is in a zip open in read-only mode, its data is copied from that zip's file
+   * with {@link FileChannel} transfers when this zip is written, so the file must not change until
+   * then. Otherwise, the data is copied when this method is invoked. Either way, the zip {@code src}
+   * belongs to may be closed afterwards.
+   *
+   * <p>This method will not perform any changes in itself, it will only update in-memory data
+   * structures. To actually write the zip file, invoke either {@link #update()} or {@link
+   * #close()}.
+   *
+   * @param name the file name (<em>i.e.</em>, path) of the new entry; paths should be defined
+   *     using slashes and the name should not end in slash
+   * @param src the entry to copy, usually from another zip
+   * @return the new entry
+   * @throws IOException failed to read {@code src}
+   * @throws IllegalStateException if the file is in read-only mode
+   */
+  public StoredEntry addRaw(String name, StoredEntry src) throws IOException {
+    checkNotInReadOnlyMode();
+    processAllReadyEntries();
 
-        /*
-         * Build the new source and wrap it around an inflater source if data came from
-         * a compressed source.
-         */
-        CloseableByteSource rawContents = storage.fromSource(fromSource.getRawByteSource());
-        CloseableByteSource processedContents;
-        if (fromCompressInfo.getMethod() == CompressionMethod.DEFLATE) {
-          //noinspection IOResourceOpenedButNotSafelyClosed
-          processedContents = new InflaterByteSource(rawContents);
-        } else {
-          processedContents = rawContents;
-        }
+    CentralDirectoryHeader fromCdh = src.getCentralDirectoryHeader();
+    CentralDirectoryHeaderCompressInfo fromCompressInfo = fromCdh.getCompressionInfoWithWait();
 
-        ProcessedAndRawByteSources newSource =
-            new ProcessedAndRawByteSources(processedContents, rawContents);
+    boolean encodeWithUtf8 = !EncodeUtils.canAsciiEncode(name);
+    GPFlags flags = GPFlags.make(encodeWithUtf8);
+    CentralDirectoryHeader newFileData =
+        new CentralDirectoryHeader(
+            name,
+            EncodeUtils.encode(name, flags),
+            fromCdh.getUncompressedSize(),
+            Futures.immediateFuture(
+                new CentralDirectoryHeaderCompressInfo(
+                    fromCompressInfo.getMethod(),
+                    fromCompressInfo.getCompressedSize(),
+                    fromCompressInfo.getVersionExtract())),
+            flags,
+            this);
+    newFileData.setCrc32(fromCdh.getCrc32());
+
+    FileRegionByteSource region = src.getRawFileRegion();
+    ProcessedAndRawByteSources sources;
+    if (region == null) {
+      sources = copyRawSources(src, fromCompressInfo);
+    } else if (fromCompressInfo.getMethod() == CompressionMethod.DEFLATE) {
+      sources = new ProcessedAndRawByteSources(new InflaterByteSource(region), region);
+    } else {
+      sources = new ProcessedAndRawByteSources(region, region);
+    }
 
-        /*
-         * Add will replace any current entry with the same name.
-         */
-        StoredEntry newEntry = new StoredEntry(newFileData, this, newSource, storage);
-        add(newEntry);
-      }
+    Verify.verify(newFileData.getOffset() == -1);
+    return add(new StoredEntry(newFileData, this, sources, storage));
+  }
+
+  /**
+   * Copies the raw (possibly compressed) data of an entry into this file's storage and creates the
+   * sources for an entry with that data.
+   *
+   * @param from the entry whose data should be copied
+   * @param compressInfo the compression information of {@code from}
+   * @return the sources of the copied data
+   * @throws IOException failed to read the data
+   */
+  private ProcessedAndRawByteSources copyRawSources(
+      StoredEntry from, CentralDirectoryHeaderCompressInfo compressInfo) throws IOException {
+    /*
+     * Build the new source and wrap it around an inflater source if data came from
+     * a compressed source.
+     */
+    CloseableByteSource rawContents = storage.fromSource(from.getSource().getRawByteSource());
+    CloseableByteSource processedContents;
+    if (compressInfo.getMethod() == CompressionMethod.DEFLATE) {
+      //noinspection IOResourceOpenedButNotSafelyClosed
+      processedContents = new InflaterByteSource(rawContents);
+    } else {
+      processedContents = rawContents;
     }
+
+    return new ProcessedAndRawByteSources(processedContents, rawContents);
   }
 
   /**
@@ -2416,7 +3256,18 @@ public class ZFile implements Closeable {
       reopenRw();
       Preconditions.checkNotNull(raf, "raf == null");
     }
-    return raf.length();
+    return rafLength();
+  }
+
+  /**
+   * Obtains the size of the zip in {@link #raf}, which is the size of the whole file unless the
+   * zip is stored inside a bigger file.
+   *
+   * @throws IOException failed to obtain the size of the file
+   */
+  private long rafLength() throws IOException {
+    Preconditions.checkNotNull(raf, "raf == null");
+    return fileLength >= 0 ? fileLength : raf.length();
   }
 
   /**
@@ -2456,16 +3307,62 @@ public class ZFile implements Closeable {
       return 0;
     }
 
-    /*
-     * Only force a reopen if the file is closed.
-     */
-    if (raf == null) {
-      reopenRw();
-      Preconditions.checkNotNull(raf, "raf == null");
+    FileChannel channel = readChannel();
+    MappedFileView mapped = mappedFile;
+    if (mapped != null) {
+      return mapped.read(offset, dest);
     }
 
-    raf.seek(offset);
-    return raf.getChannel().read(dest);
+    return channel.read(dest, fileOffset + offset);
+  }
+
+  /**
+   * Obtains the channel to read the zip from, opening the zip if it is closed. Reads must use
+   * positional operations on the channel so that several threads may read at the same time.
+   *
+   * @return the channel
+   * @throws IOException failed to open the zip
+   */
+  private FileChannel readChannel() throws IOException {
+    RandomAccessFile file = raf;
+    if (file == null) {
+      synchronized (this) {
+        /*
+         * Only force a reopen if the file is closed.
+         */
+        if (raf == null) {
+          reopenRw();
+        }
+
+        file = Preconditions.checkNotNull(raf, "raf == null");
+      }
+    }
+
+    return file.getChannel();
+  }
+
+  /**
+   * Reads exactly {@code length} bytes of data into a buffer. If the zip is memory-mapped, the
+   * buffer is a view of the mapping and no data is copied.
+   *
+   * @param offset the offset at which to start reading
+   * @param length how many bytes to read
+   * @return a buffer with the data, positioned at its start; the buffer may be read-only
+   * @throws IOException failed to read the data or there is not enough data to read
+   */
+  ByteBuffer directSlice(long offset, int length) throws IOException {
+    MappedFileView mapped = mappedFile;
+    if (mapped != null && offset + length <= mapped.size()) {
+      ByteBuffer slice = mapped.slice(offset, length);
+      if (slice != null) {
+        return slice;
+      }
+    }
+
+    ByteBuffer data = ByteBuffer.allocate(length);
+    directFullyRead(offset, data);
+    data.flip();
+    return data;
   }
 
   /**
@@ -2506,18 +3403,18 @@ public class ZFile implements Closeable {
       return;
     }
 
-    /*
-     * Only force a reopen if the file is closed.
-     */
-    if (raf == null) {
-      reopenRw();
-      Preconditions.checkNotNull(raf, "raf == null");
+    FileChannel fileChannel = readChannel();
+    MappedFileView mapped = mappedFile;
+    if (mapped != null) {
+      mapped.read(offset, dest);
+      if (dest.hasRemaining()) {
+        throw new EOFException("Failed to read " + dest.remaining() + " more bytes: premature EOF");
+      }
+      return;
     }
 
-    FileChannel fileChannel = raf.getChannel();
     while (dest.hasRemaining()) {
-      fileChannel.position(offset);
-      int chunkSize = fileChannel.read(dest);
+      int chunkSize = fileChannel.read(dest, fileOffset + offset);
       if (chunkSize == -1) {
         throw new EOFException("Failed to read " + dest.remaining() + " more bytes: premature EOF");
       }
@@ -2826,11 +3723,31 @@ public class ZFile implements Closeable {
     return file;
   }
 
+  /**
+   * Obtains a region of the zip file that can be read independently of this object. Only read-only
+   * zips provide regions, as their data is guaranteed not to change.
+   *
+   * @param offset the offset in the zip where the region starts
+   * @param length the size of the region
+   * @return the region or {@code null} if the zip is not read-only
+   */
+  @Nullable
+  FileRegionByteSource fileRegion(long offset, long length) {
+    if (!readOnly) {
+      return null;
+    }
+
+    return new FileRegionByteSource(file, fileOffset + offset, length);
+  }
+
   public DataSource asDataSource() throws IOException {
     if (raf == null) {
       reopenRw();
       Preconditions.checkNotNull(raf, "raf == null");
     }
+    if (fileLength >= 0) {
+      return DataSources.asDataSource(this.raf, fileOffset, fileLength);
+    }
     return DataSources.asDataSource(this.raf);
   }
 
@@ -2839,7 +3756,29 @@ public class ZFile implements Closeable {
       reopenRw();
       Preconditions.checkNotNull(raf, "raf == null");
     }
-    return DataSources.asDataSource(this.raf, offset, size);
+    return DataSources.asDataSource(this.raf, fileOffset + offset, size);
+  }
+
+  /**
+   * Obtains a data source over a region of the zip that reads through a memory mapping of the
+   * region. Unlike {@link #asDataSource(long, long)}, the source can be read from several threads
+   * at the same time. The mapping is made when this method is invoked, so the region must not be
+   * written to while the source is in use. Close the source once done with it to release the
+   * mapping, see {@link MappedFileView#canUnmap()}.
+   *
+   * @param offset the offset in the zip where the region starts
+   * @param size the size of the region
+   * @return the data source
+   * @throws IOException failed to map the region
+   */
+  public MappedFileViewDataSource asMappedDataSource(long offset, long size) throws IOException {
+    Preconditions.checkArgument(offset >= 0, "offset < 0");
+    Preconditions.checkArgument(size >= 0, "size < 0");
+
+    FileChannel channel = readChannel();
+    return new MappedFileViewDataSource(
+        MappedFileView.map(
+            channel, fileOffset + offset, size, MappedFileView.DEFAULT_WINDOW_SIZE));
   }
 
   /**
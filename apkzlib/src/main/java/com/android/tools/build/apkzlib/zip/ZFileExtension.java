@@ -18,6 +18,8 @@ package com.android.tools.build.apkzlib.zip;
 
 import com.android.tools.build.apkzlib.utils.IOExceptionRunnable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import javax.annotation.Nullable;
 
 /**
@@ -125,6 +127,37 @@ public abstract class ZFileExtension {
     return null;
   }
 
+  /**
+   * Several entries have been added to the zip at once, with {@link ZFile#addAll(java.util.Map,
+   * boolean)}. The default implementation invokes {@link #added(StoredEntry, StoredEntry)} for each
+   * entry and returns a runnable that runs, in order, the runnables those invocations return.
+   *
+   * @param entries the entries that were added, in the order they were added
+   * @param replaced the entries that were replaced, one per entry in {@code entries}; an element
+   *     is {@code null} if the corresponding entry did not replace any entry
+   * @return an optional runnable to run when notification of all listeners has ended
+   */
+  @Nullable
+  public IOExceptionRunnable addedAll(List<StoredEntry> entries, List<StoredEntry> replaced) {
+    List<IOExceptionRunnable> runnables = new ArrayList<>();
+    for (int i = 0; i < entries.size(); i++) {
+      IOExceptionRunnable runnable = added(entries.get(i), replaced.get(i));
+      if (runnable != null) {
+        runnables.add(runnable);
+      }
+    }
+
+    if (runnables.isEmpty()) {
+      return null;
+    }
+
+    return () -> {
+      for (IOExceptionRunnable runnable : runnables) {
+        runnable.run();
+      }
+    };
+  }
+
   /**
    * An entry has been removed from the zip. This method is not invoked for entries that have been
    * replaced. Those entries are notified using <em>replaced</em> in {@link #added(StoredEntry,
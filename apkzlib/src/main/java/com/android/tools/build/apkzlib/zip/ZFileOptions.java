@@ -20,20 +20,39 @@ import com.android.tools.build.apkzlib.bytestorage.ByteStorageFactory;
 import com.android.tools.build.apkzlib.bytestorage.ChunkBasedByteStorageFactory;
 import com.android.tools.build.apkzlib.bytestorage.OverflowToDiskByteStorageFactory;
 import com.android.tools.build.apkzlib.bytestorage.TemporaryDirectory;
+import com.android.tools.build.apkzlib.bytestorage.TemporaryDirectoryFactory;
 import com.android.tools.build.apkzlib.zip.compress.DeflateExecutionCompressor;
 import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
+import java.io.File;
 import java.util.zip.Deflater;
+import javax.annotation.Nullable;
 
 /** Options to create a {@link ZFile}. */
 public class ZFileOptions {
 
+  /** Largest chunk the storage keeps data in, see {@link #setMemoryBudget(long)}. */
+  private static final long MAX_BUDGET_CHUNK_BYTES = 10 * 1024 * 1024;
+
+  /** Smallest chunk the storage keeps data in, see {@link #setMemoryBudget(long)}. */
+  private static final long MIN_BUDGET_CHUNK_BYTES = 64 * 1024;
+
   /** The storage to use. */
   private ByteStorageFactory storageFactory;
 
+  /** Memory the storage may use, {@code null} for the storage's default. */
+  @Nullable private Long memoryBudget;
+
+  /** Directory where the storage spills data, {@code null} for the system's temporary directory. */
+  @Nullable private File spillDirectory;
+
   /** The compressor to use. */
   private Compressor compressor;
 
+  /** The compression policy to use. */
+  private CompressionPolicy compressionPolicy;
+
   /** Should timestamps be zeroed? */
   private boolean noTimestamps;
 
@@ -55,6 +74,15 @@ public class ZFileOptions {
    */
   private boolean skipValidation;
 
+  /** Should zips open in read-only mode be memory-mapped? */
+  private boolean memoryMapReadOnly;
+
+  /** Should the central directory of zips open in read-only mode be parsed lazily? */
+  private boolean lazyCentralDirectory;
+
+  /** Should zips open in read-only mode accept entries nested in stored entries? */
+  private boolean nestedEntriesAllowed;
+
   /** Factory creating verification logs to use. */
   private Supplier<VerifyLog> verifyLogFactory;
 
@@ -70,6 +98,7 @@ public class ZFileOptions {
         new ChunkBasedByteStorageFactory(
             new OverflowToDiskByteStorageFactory(TemporaryDirectory::newSystemTemporaryDirectory));
     compressor = new DeflateExecutionCompressor(Runnable::run, Deflater.DEFAULT_COMPRESSION);
+    compressionPolicy = CompressionPolicies.none();
     alignmentRule = AlignmentRules.compose();
     verifyLogFactory = VerifyLogs::devNull;
 
@@ -106,6 +135,86 @@ public class ZFileOptions {
     return this;
   }
 
+  /**
+   * Sets how much memory the byte storage of each {@link ZFile} may use to keep entry data. Data
+   * that does not fit is spilled to files in the spill directory (see {@link
+   * #setSpillDirectory(File)}) and read back through memory mappings, which are not part of the
+   * Java heap. Data is kept in chunks small enough for the budget to be respected to within one
+   * chunk.
+   *
+   * <p>The budget applies to each zip independently: a process that has several zips open at once
+   * should divide its memory among them. This replaces the storage factory set with {@link
+   * #setStorageFactory(ByteStorageFactory)}.
+   *
+   * @param memoryBudget the budget, in bytes
+   */
+  public ZFileOptions setMemoryBudget(long memoryBudget) {
+    Preconditions.checkArgument(memoryBudget >= 0, "memoryBudget < 0");
+    this.memoryBudget = memoryBudget;
+    updateStorageFactory();
+    return this;
+  }
+
+  /**
+   * Obtains the memory budget of the byte storage.
+   *
+   * @return the budget, in bytes, or {@code null} if none was set
+   */
+  @Nullable
+  public Long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Sets the directory where the byte storage spills data that does not fit in memory. Each {@link
+   * ZFile} creates its own temporary directory inside {@code spillDirectory} and deletes it when
+   * closed. This replaces the storage factory set with {@link
+   * #setStorageFactory(ByteStorageFactory)}.
+   *
+   * @param spillDirectory the directory; it is created if it does not exist
+   */
+  public ZFileOptions setSpillDirectory(File spillDirectory) {
+    this.spillDirectory = spillDirectory;
+    updateStorageFactory();
+    return this;
+  }
+
+  /**
+   * Obtains the directory where the byte storage spills data.
+   *
+   * @return the directory or {@code null} if the system's temporary directory is used
+   */
+  @Nullable
+  public File getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  /** Recreates {@link #storageFactory} from {@link #memoryBudget} and {@link #spillDirectory}. */
+  private void updateStorageFactory() {
+    File directory = spillDirectory;
+    TemporaryDirectoryFactory temporaryDirectoryFactory =
+        directory == null
+            ? TemporaryDirectory::newSystemTemporaryDirectory
+            : TemporaryDirectoryFactory.in(directory);
+
+    Long budget = memoryBudget;
+    if (budget == null) {
+      storageFactory =
+          new ChunkBasedByteStorageFactory(
+              new OverflowToDiskByteStorageFactory(null, temporaryDirectoryFactory, true));
+      return;
+    }
+
+    // The storage may exceed its cache by one chunk, so take that chunk out of the budget.
+    long chunkSize =
+        Math.max(MIN_BUDGET_CHUNK_BYTES, Math.min(MAX_BUDGET_CHUNK_BYTES, budget / 8));
+    storageFactory =
+        new ChunkBasedByteStorageFactory(
+            new OverflowToDiskByteStorageFactory(
+                Math.max(0, budget - chunkSize), temporaryDirectoryFactory, true),
+            chunkSize);
+  }
+
   /**
    * Obtains the compressor to use.
    *
@@ -125,6 +234,26 @@ public class ZFileOptions {
     return this;
   }
 
+  /**
+   * Obtains the compression policy.
+   *
+   * @return the compression policy
+   */
+  public CompressionPolicy getCompressionPolicy() {
+    return compressionPolicy;
+  }
+
+  /**
+   * Sets the compression policy, which decides which files are stored without trying to compress
+   * them and which compression level is used for the others.
+   *
+   * @param compressionPolicy the compression policy
+   */
+  public ZFileOptions setCompressionPolicy(CompressionPolicy compressionPolicy) {
+    this.compressionPolicy = compressionPolicy;
+    return this;
+  }
+
   /**
    * Obtains whether timestamps should be zeroed.
    *
@@ -244,6 +373,73 @@ public class ZFileOptions {
     return skipValidation;
   }
 
+  /**
+   * Sets whether zips open in read-only mode should be memory-mapped. Mapped zips are read and
+   * parsed straight from memory instead of through one system call per read, which is much faster
+   * for zips with many entries. On some platforms, such as Windows, a mapped file cannot be deleted
+   * until the mapping is garbage collected.
+   *
+   * @param memoryMapReadOnly should read-only zips be mapped?
+   */
+  public ZFileOptions setMemoryMapReadOnly(boolean memoryMapReadOnly) {
+    this.memoryMapReadOnly = memoryMapReadOnly;
+    return this;
+  }
+
+  /**
+   * Gets whether zips open in read-only mode should be memory-mapped.
+   *
+   * @return should read-only zips be mapped?
+   */
+  public boolean getMemoryMapReadOnly() {
+    return memoryMapReadOnly;
+  }
+
+  /**
+   * Sets whether the central directory of zips open in read-only mode should be parsed lazily. If
+   * set, opening a zip only indexes the central directory; the entries, and their validation, are
+   * only made when they are obtained with {@link ZFile#get(String)} or {@link ZFile#entries()}.
+   * Entries are not checked for overlaps and errors in an entry are only reported when the entry
+   * is obtained.
+   *
+   * @param lazyCentralDirectory should the central directory be parsed lazily?
+   */
+  public ZFileOptions setLazyCentralDirectory(boolean lazyCentralDirectory) {
+    this.lazyCentralDirectory = lazyCentralDirectory;
+    return this;
+  }
+
+  /**
+   * Gets whether the central directory of zips open in read-only mode should be parsed lazily.
+   *
+   * @return should the central directory be parsed lazily?
+   */
+  public boolean getLazyCentralDirectory() {
+    return lazyCentralDirectory;
+  }
+
+  /**
+   * Sets whether zips open in read-only mode accept entries whose data lies in the data of another
+   * entry, such as the links written by {@link NestedZip}. Only entries that are wholly in the data
+   * of an uncompressed entry are accepted; any other overlap still fails to open the zip. Off by
+   * default, as overlapping entries are otherwise a sign of a corrupt or malicious zip.
+   *
+   * @param nestedEntriesAllowed should entries nested in stored entries be accepted?
+   */
+  public ZFileOptions setNestedEntriesAllowed(boolean nestedEntriesAllowed) {
+    this.nestedEntriesAllowed = nestedEntriesAllowed;
+    return this;
+  }
+
+  /**
+   * Gets whether zips open in read-only mode accept entries nested in stored entries.
+   *
+   * @return should entries nested in stored entries be accepted?
+   */
+  public boolean getNestedEntriesAllowed() {
+    return nestedEntriesAllowed;
+  }
+
   /**
    * Sets whether to always generate the MANIFEST.MF file, regardless whether the APK is signed with
    * v1 signing scheme.
@@ -16,19 +16,23 @@
 
 package com.android.tools.build.apkzlib.zip.compress;
 
+import com.android.tools.build.apkzlib.bytestorage.BufferPool;
 import com.android.tools.build.apkzlib.bytestorage.ByteStorage;
 import com.android.tools.build.apkzlib.bytestorage.CloseableByteSourceFromOutputStreamBuilder;
 import com.android.tools.build.apkzlib.zip.CompressionMethod;
 import com.android.tools.build.apkzlib.zip.CompressionResult;
 import com.android.tools.build.apkzlib.zip.utils.ByteTracker;
 import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
-import com.google.common.io.ByteStreams;
+import com.android.tools.build.apkzlib.zip.utils.ZlibPool;
 import java.io.InputStream;
 import java.util.concurrent.Executor;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
-/** Compressor that uses deflate with an executor. */
+/**
+ * Compressor that uses deflate with an executor. Deflaters and buffers are pooled (see {@link
+ * ZlibPool} and {@link BufferPool}), so compressing does not allocate buffers or native zlib state
+ * per entry.
+ */
 public class DeflateExecutionCompressor extends ExecutorCompressor {
 
   /** Deflate compression level. */
@@ -54,12 +58,34 @@ public class DeflateExecutionCompressor extends ExecutorCompressor {
   @Override
   protected CompressionResult immediateCompress(CloseableByteSource source, ByteStorage storage)
       throws Exception {
-    Deflater deflater = new Deflater(level, true);
+    return immediateCompress(source, storage, level);
+  }
+
+  @Override
+  protected CompressionResult immediateCompress(
+      CloseableByteSource source, ByteStorage storage, int level) throws Exception {
+    Deflater deflater = ZlibPool.deflater(level);
+    byte[] input = BufferPool.acquire();
+    byte[] output = BufferPool.acquire();
     CloseableByteSourceFromOutputStreamBuilder resultBuilder = storage.makeBuilder();
 
-    try (InputStream inputStream = source.openBufferedStream();
-            DeflaterOutputStream dos = new DeflaterOutputStream(resultBuilder, deflater)) {
-      ByteStreams.copy(inputStream, dos);
+    try (InputStream inputStream = source.openStream()) {
+      int read;
+      while ((read = inputStream.read(input)) != -1) {
+        deflater.setInput(input, 0, read);
+        while (!deflater.needsInput()) {
+          resultBuilder.write(output, 0, deflater.deflate(output));
+        }
+      }
+
+      deflater.finish();
+      while (!deflater.finished()) {
+        resultBuilder.write(output, 0, deflater.deflate(output));
+      }
+    } finally {
+      ZlibPool.release(deflater);
+      BufferPool.release(input);
+      BufferPool.release(output);
     }
 
     CloseableByteSource result = resultBuilder.build();
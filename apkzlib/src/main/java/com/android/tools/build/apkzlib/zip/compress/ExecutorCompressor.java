@@ -58,6 +58,22 @@ public abstract class ExecutorCompressor implements Compressor {
     return future;
   }
 
+  @Override
+  public ListenableFuture<CompressionResult> compress(
+      CloseableByteSource source, ByteStorage storage, int level) {
+    final SettableFuture<CompressionResult> future = SettableFuture.create();
+    executor.execute(
+        () -> {
+          try {
+            future.set(immediateCompress(source, storage, level));
+          } catch (Throwable e) {
+            future.setException(e);
+          }
+        });
+
+    return future;
+  }
+
   /**
    * Immediately compresses a source.
    *
@@ -68,4 +84,19 @@ public abstract class ExecutorCompressor implements Compressor {
    */
   protected abstract CompressionResult immediateCompress(
       CloseableByteSource source, ByteStorage storage) throws Exception;
+
+  /**
+   * Immediately compresses a source with a given compression level. By default the level is
+   * ignored.
+   *
+   * @param source the source to compress
+   * @param storage a byte storage where the compressor can obtain data sources from
+   * @param level the deflate compression level
+   * @return the result of compression
+   * @throws Exception failed to compress
+   */
+  protected CompressionResult immediateCompress(
+      CloseableByteSource source, ByteStorage storage, int level) throws Exception {
+    return immediateCompress(source, storage);
+  }
 }
@@ -0,0 +1,332 @@
+package com.android.tools.build.apkzlib.zip.utils;
+
+import com.android.tools.build.apkzlib.utils.IOExceptionRunnable;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
+
+/**
+ * Writes to a file on a writer thread, so that whoever produces the data does not wait for the
+ * disk. Writes and tasks are run in the order they are submitted. Consecutive writes to adjacent
+ * regions of the file are gathered into a single system call. Writer threads come from a pool
+ * shared by all writers, so a writer is cheap to create.
+ *
+ * <p>The queue is bounded by the number of bytes it holds: submitting a write blocks while the
+ * queue is full. Failures are reported by the next call to {@link #write(long, ByteBuffer,
+ * Runnable)}, {@link #run(IOExceptionRunnable)}, {@link #flush()} or {@link #close()}; once a
+ * failure happens, later writes and tasks are skipped.
+ *
+ * <p>Instances are meant to be used by a single producer thread.
+ */
+public class AsyncFileWriter implements Closeable {
+
+  /** Maximum number of buffers gathered in a single write. */
+  private static final int MAX_GATHERED_BUFFERS = 256;
+
+  /** Runs the writer loops; idle threads are kept for a minute for the next writer. */
+  private static final ExecutorService WRITER_EXECUTOR =
+      Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("apkzlib-writer-%d").setDaemon(true).build());
+
+  /** The channel to write to. */
+  private final FileChannel channel;
+
+  /** Maximum number of bytes in the queue. */
+  private final long maxQueuedBytes;
+
+  /** Writes and tasks not yet started, in order. */
+  private final ArrayDeque<Operation> queue = new ArrayDeque<>();
+
+  /** Number of bytes in writes submitted and not yet finished. */
+  private long queuedBytes;
+
+  /** Number of operations submitted. */
+  private long submitted;
+
+  /** Number of operations finished. */
+  private long finished;
+
+  /** Has the writer been closed? */
+  private boolean closed;
+
+  /** Has the writer loop returned? */
+  private boolean stopped;
+
+  /** The first failure, if any. */
+  @Nullable private Throwable failure;
+
+  /**
+   * Creates a new writer and starts its loop on a pooled thread.
+   *
+   * @param channel the channel to write to; writes change its position, so nothing else should use
+   *     the channel's position until the writer is closed
+   * @param maxQueuedBytes how many bytes may be waiting to be written before submitting more
+   *     blocks
+   */
+  public AsyncFileWriter(FileChannel channel, long maxQueuedBytes) {
+    Preconditions.checkArgument(maxQueuedBytes > 0, "maxQueuedBytes <= 0");
+
+    this.channel = channel;
+    this.maxQueuedBytes = maxQueuedBytes;
+    WRITER_EXECUTOR.execute(this::writeLoop);
+  }
+
+  /**
+   * Submits a write.
+   *
+   * @param position the position in the file where to write
+   * @param data the data to write; it must not be changed until {@code onWritten} is invoked
+   * @param onWritten invoked on the writer thread once the data has been written, or skipped
+   *     because of a failure; may be {@code null}
+   * @throws IOException a previous write or task has failed
+   */
+  public void write(long position, ByteBuffer data, @Nullable Runnable onWritten)
+      throws IOException {
+    Preconditions.checkArgument(position >= 0, "position < 0");
+
+    long size = data.remaining();
+    synchronized (this) {
+      Preconditions.checkState(!closed, "closed");
+      // A write larger than the queue is accepted once the queue is empty.
+      while (failure == null && queuedBytes > 0 && queuedBytes + size > maxQueuedBytes) {
+        await();
+      }
+
+      checkFailure();
+      queuedBytes += size;
+      enqueue(new Operation(position, data, onWritten, null));
+    }
+  }
+
+  /**
+   * Submits a task to run on the writer thread, after all writes and tasks submitted before it.
+   *
+   * @param task the task
+   * @throws IOException a previous write or task has failed
+   */
+  public synchronized void run(IOExceptionRunnable task) throws IOException {
+    Preconditions.checkState(!closed, "closed");
+    checkFailure();
+    enqueue(new Operation(0, null, null, task));
+  }
+
+  /**
+   * Waits until all writes and tasks submitted so far have finished.
+   *
+   * @throws IOException a write or task has failed
+   */
+  public synchronized void flush() throws IOException {
+    long target = submitted;
+    while (failure == null && finished < target) {
+      await();
+    }
+
+    checkFailure();
+  }
+
+  /**
+   * Finishes all writes and tasks submitted and stops the writer loop.
+   *
+   * @throws IOException a write or task has failed
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    notifyAll();
+
+    boolean interrupted = false;
+    while (!stopped) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // The loop must stop before the channel may be used again, so keep waiting.
+        interrupted = true;
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    checkFailure();
+  }
+
+  /** Adds an operation to the queue. Must be called with the lock held. */
+  private void enqueue(Operation operation) {
+    queue.add(operation);
+    submitted++;
+    notifyAll();
+  }
+
+  /** Waits for the writer thread to make progress. Must be called with the lock held. */
+  private void await() throws InterruptedIOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for writes");
+    }
+  }
+
+  /** Throws the first failure, if any. Must be called with the lock held. */
+  private void checkFailure() throws IOException {
+    if (failure != null) {
+      throw new IOException("Failed to write to file", failure);
+    }
+  }
+
+  /** Body of the writer thread; signals {@link #close()} once it returns. */
+  private void writeLoop() {
+    try {
+      writeAll();
+    } finally {
+      synchronized (this) {
+        stopped = true;
+        notifyAll();
+      }
+    }
+  }
+
+  /** Runs queued writes and tasks until the writer is closed and its queue is empty. */
+  private void writeAll() {
+    List<Operation> batch = new ArrayList<>();
+    while (true) {
+      boolean failed;
+      synchronized (this) {
+        while (queue.isEmpty() && !closed) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            // Nobody interrupts the writer thread; keep going until closed.
+          }
+        }
+
+        if (queue.isEmpty()) {
+          return;
+        }
+
+        takeBatch(batch);
+        failed = failure != null;
+      }
+
+      Throwable error = null;
+      if (!failed) {
+        try {
+          execute(batch);
+        } catch (Throwable t) {
+          error = t;
+        }
+      }
+
+      long bytes = 0;
+      for (Operation operation : batch) {
+        if (operation.data != null) {
+          bytes += operation.size;
+          if (operation.onWritten != null) {
+            operation.onWritten.run();
+          }
+        }
+      }
+
+      synchronized (this) {
+        if (error != null && failure == null) {
+          failure = error;
+        }
+
+        queuedBytes -= bytes;
+        finished += batch.size();
+        notifyAll();
+      }
+
+      batch.clear();
+    }
+  }
+
+  /**
+   * Moves the next operations to run from the queue to {@code batch}: a task or a sequence of
+   * writes to adjacent regions. Must be called with the lock held.
+   */
+  private void takeBatch(List<Operation> batch) {
+    Operation first = queue.remove();
+    batch.add(first);
+    if (first.data == null) {
+      return;
+    }
+
+    long end = first.position + first.size;
+    while (batch.size() < MAX_GATHERED_BUFFERS
+        && !queue.isEmpty()
+        && queue.peek().data != null
+        && queue.peek().position == end) {
+      Operation next = queue.remove();
+      batch.add(next);
+      end += next.size;
+    }
+  }
+
+  /** Runs a batch taken by {@link #takeBatch(List)}. */
+  private void execute(List<Operation> batch) throws IOException {
+    Operation first = batch.get(0);
+    if (first.task != null) {
+      first.task.run();
+      return;
+    }
+
+    ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+    long remaining = 0;
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = batch.get(i).data;
+      remaining += buffers[i].remaining();
+    }
+
+    channel.position(first.position);
+    while (remaining > 0) {
+      remaining -= channel.write(buffers);
+    }
+  }
+
+  /** A write or a task. */
+  private static final class Operation {
+
+    /** Position of the write. */
+    private final long position;
+
+    /** Data of the write, {@code null} for tasks. */
+    @Nullable private final ByteBuffer data;
+
+    /** Size of the write's data. */
+    private final long size;
+
+    /** Callback of the write. */
+    @Nullable private final Runnable onWritten;
+
+    /** The task, {@code null} for writes. */
+    @Nullable private final IOExceptionRunnable task;
+
+    private Operation(
+        long position,
+        @Nullable ByteBuffer data,
+        @Nullable Runnable onWritten,
+        @Nullable IOExceptionRunnable task) {
+      this.position = position;
+      this.data = data;
+      this.size = data == null ? 0 : data.remaining();
+      this.onWritten = onWritten;
+      this.task = task;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.android.tools.build.apkzlib.zip.utils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Byte source with a region of a file. Knowing where the data lives allows copying it from file to
+ * file without reading it into memory, see {@code ZFile}.
+ */
+public class FileRegionByteSource extends CloseableByteSource {
+
+  /** The file with the data. */
+  private final File file;
+
+  /** Offset in {@link #file} where the data starts. */
+  private final long offset;
+
+  /** Size of the data. */
+  private final long length;
+
+  /**
+   * Creates a new source.
+   *
+   * @param file the file with the data
+   * @param offset the offset in {@code file} where the data starts
+   * @param length the size of the data
+   */
+  public FileRegionByteSource(File file, long offset, long length) {
+    Preconditions.checkArgument(offset >= 0, "offset < 0");
+    Preconditions.checkArgument(length >= 0, "length < 0");
+
+    this.file = file;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public long size() {
+    return length;
+  }
+
+  @Override
+  public InputStream openStream() throws IOException {
+    return Files.asByteSource(file).slice(offset, length).openStream();
+  }
+
+  @Override
+  protected void innerClose() {
+    /*
+     * Nothing to do here.
+     */
+  }
+}
@@ -0,0 +1,209 @@
+package com.android.tools.build.apkzlib.zip.utils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.annotation.Nullable;
+
+/**
+ * Read-only memory mapping of a region of a file. A single {@link MappedByteBuffer} cannot be
+ * larger than 2GB, so the region is mapped as a sequence of windows. Reads are plain memory copies
+ * and do not need any system call.
+ *
+ * <p>Instances are thread-safe: the windows are never read through their own position.
+ *
+ * <p>A mapping is released when it is garbage collected or, if the JVM allows it (see {@link
+ * #canUnmap()}), when it is closed. While it is not released, some platforms, such as Windows, do
+ * not allow the file to be resized or deleted.
+ */
+public class MappedFileView implements Closeable {
+
+  /** Default size of each mapped window. */
+  public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+
+  /**
+   * {@code sun.misc.Unsafe.invokeCleaner(ByteBuffer)} bound to the unsafe instance, or {@code null}
+   * if the JVM does not have it, as on Android, and mappings are only released by the garbage
+   * collector.
+   */
+  @Nullable private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+  /**
+   * The mapped windows, each {@link #windowSize} bytes long, except maybe the last; {@code null}
+   * once closed.
+   */
+  @Nullable private volatile MappedByteBuffer[] windows;
+
+  /** Size of each window. */
+  private final int windowSize;
+
+  /** Size of the mapped region. */
+  private final long size;
+
+  private MappedFileView(MappedByteBuffer[] windows, int windowSize, long size) {
+    this.windows = windows;
+    this.windowSize = windowSize;
+    this.size = size;
+  }
+
+  /**
+   * Maps a region of a file.
+   *
+   * @param channel the channel of the file; it may be closed once the region is mapped
+   * @param offset the offset in the file where the region starts
+   * @param size the size of the region
+   * @param windowSize the size of each mapped window
+   * @return the mapping
+   * @throws IOException failed to map the file
+   */
+  public static MappedFileView map(FileChannel channel, long offset, long size, int windowSize)
+      throws IOException {
+    Preconditions.checkArgument(offset >= 0, "offset < 0");
+    Preconditions.checkArgument(size >= 0, "size < 0");
+    Preconditions.checkArgument(windowSize > 0, "windowSize <= 0");
+
+    int count = Ints.checkedCast((size - 1) / windowSize + 1);
+    MappedByteBuffer[] windows = new MappedByteBuffer[count];
+    for (int i = 0; i < windows.length; i++) {
+      long start = (long) i * windowSize;
+      windows[i] =
+          channel.map(
+              FileChannel.MapMode.READ_ONLY, offset + start, Math.min(windowSize, size - start));
+    }
+
+    return new MappedFileView(windows, windowSize, size);
+  }
+
+  @Nullable
+  private static MethodHandle findInvokeCleaner() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      return MethodHandles.lookup()
+          .findVirtual(
+              unsafeClass,
+              "invokeCleaner",
+              MethodType.methodType(void.class, ByteBuffer.class))
+          .bindTo(theUnsafe.get(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Checks whether closing a mapping releases it right away. If not, it is only released once
+   * garbage collected.
+   *
+   * @return is the mapping released when closed?
+   */
+  public static boolean canUnmap() {
+    return INVOKE_CLEANER != null;
+  }
+
+  /**
+   * Obtains the size of the mapped region.
+   *
+   * @return the size
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Copies data from the mapping.
+   *
+   * @param offset the offset in the region from which data should be read
+   * @param dest receives as many bytes as it has remaining, or as many as there are until the end
+   *     of the region
+   * @return how many bytes have been copied or {@code -1} if {@code offset} is at or past the end
+   *     of the region
+   */
+  public int read(long offset, ByteBuffer dest) {
+    Preconditions.checkArgument(offset >= 0, "offset < 0");
+    if (offset >= size) {
+      return -1;
+    }
+
+    MappedByteBuffer[] mapped = openWindows();
+    int copied = 0;
+    while (dest.hasRemaining() && offset < size) {
+      ByteBuffer window = mapped[(int) (offset / windowSize)].duplicate();
+      window.position((int) (offset % windowSize));
+      if (window.remaining() > dest.remaining()) {
+        window.limit(window.position() + dest.remaining());
+      }
+
+      int count = window.remaining();
+      dest.put(window);
+      copied += count;
+      offset += count;
+    }
+
+    return copied;
+  }
+
+  /**
+   * Obtains a view of part of the mapping, without copying it.
+   *
+   * @param offset the offset in the region where the view starts
+   * @param length the size of the view
+   * @return a read-only buffer with the data or {@code null} if the data crosses a window boundary
+   *     and cannot be viewed as a single buffer
+   */
+  @Nullable
+  public ByteBuffer slice(long offset, int length) {
+    Preconditions.checkArgument(offset >= 0, "offset < 0");
+    Preconditions.checkArgument(length >= 0, "length < 0");
+    Preconditions.checkArgument(offset + length <= size, "offset + length > size");
+
+    MappedByteBuffer[] mapped = openWindows();
+    int index = (int) (offset / windowSize);
+    int start = (int) (offset % windowSize);
+    if (length == 0 || (long) start + length > mapped[index].capacity()) {
+      return null;
+    }
+
+    ByteBuffer window = mapped[index].duplicate();
+    window.position(start);
+    window.limit(start + length);
+    return window.slice().asReadOnlyBuffer();
+  }
+
+  /** Obtains the windows, failing if the mapping has been closed. */
+  private MappedByteBuffer[] openWindows() {
+    MappedByteBuffer[] current = windows;
+    Preconditions.checkState(current != null, "Mapping is closed");
+    return current;
+  }
+
+  /**
+   * Releases the mapping, right away if {@link #canUnmap()}. No buffer obtained from {@link
+   * #slice(long, int)} may be used once the mapping is closed, and the mapping may not be closed
+   * while it is being read.
+   */
+  @Override
+  public void close() {
+    MappedByteBuffer[] current = windows;
+    windows = null;
+    if (current == null || INVOKE_CLEANER == null) {
+      return;
+    }
+
+    for (MappedByteBuffer window : current) {
+      try {
+        INVOKE_CLEANER.invoke(window);
+      } catch (Throwable t) {
+        // Left to the garbage collector.
+      }
+    }
+  }
+}
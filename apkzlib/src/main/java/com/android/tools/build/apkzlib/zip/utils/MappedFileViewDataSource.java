@@ -0,0 +1,111 @@
+package com.android.tools.build.apkzlib.zip.utils;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import com.google.common.base.Preconditions;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link DataSource} that reads from a {@link MappedFileView}. Data is handed to sinks as views of
+ * the mapping, without copying, and reads only use positional operations on the view, so the
+ * source can be read from several threads at the same time. This is what allows the signing
+ * digests to be computed in parallel.
+ *
+ * <p>Closing the source, or any slice of it, closes the mapping.
+ */
+public class MappedFileViewDataSource implements DataSource, Closeable {
+
+  /** Maximum number of bytes handed to a sink at once. */
+  private static final int MAX_FEED_CHUNK_SIZE = 1024 * 1024;
+
+  /** The mapping. */
+  private final MappedFileView view;
+
+  /** Offset in {@link #view} where the data starts. */
+  private final long offset;
+
+  /** Size of the data. */
+  private final long size;
+
+  /**
+   * Creates a new source over all of a mapping.
+   *
+   * @param view the mapping
+   */
+  public MappedFileViewDataSource(MappedFileView view) {
+    this(view, 0, view.size());
+  }
+
+  private MappedFileViewDataSource(MappedFileView view, long offset, long size) {
+    this.view = view;
+    this.offset = offset;
+    this.size = size;
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public void feed(long offset, long size, DataSink sink) throws IOException {
+    checkRange(offset, size);
+
+    long done = 0;
+    while (done < size) {
+      int count = (int) Math.min(size - done, MAX_FEED_CHUNK_SIZE);
+      sink.consume(getByteBuffer(offset + done, count));
+      done += count;
+    }
+  }
+
+  @Override
+  public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+    checkRange(offset, size);
+
+    ByteBuffer slice = view.slice(this.offset + offset, size);
+    if (slice != null) {
+      return slice;
+    }
+
+    /*
+     * The data is empty or crosses the boundary between two windows of the mapping.
+     */
+    ByteBuffer data = ByteBuffer.allocate(size);
+    copyTo(offset, size, data);
+    data.flip();
+    return data;
+  }
+
+  @Override
+  public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+    checkRange(offset, size);
+    Preconditions.checkArgument(size <= dest.remaining(), "size > dest.remaining()");
+
+    ByteBuffer window = dest.duplicate();
+    window.limit(window.position() + size);
+    view.read(this.offset + offset, window);
+    dest.position(window.position());
+  }
+
+  @Override
+  public DataSource slice(long offset, long size) {
+    checkRange(offset, size);
+    return new MappedFileViewDataSource(view, this.offset + offset, size);
+  }
+
+  /** Checks that a range is within the data. */
+  private void checkRange(long offset, long size) {
+    Preconditions.checkArgument(offset >= 0, "offset < 0");
+    Preconditions.checkArgument(size >= 0, "size < 0");
+    Preconditions.checkArgument(offset <= this.size, "offset > size");
+    Preconditions.checkArgument(size <= this.size - offset, "offset + size > size");
+  }
+
+  @Override
+  public void close() {
+    view.close();
+  }
+}
@@ -0,0 +1,80 @@
+package com.android.tools.build.apkzlib.zip.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of {@link Deflater} and {@link Inflater} instances for raw deflate data, as stored in zips.
+ * Each instance holds native zlib memory that is only released by {@code end()} or, much later, by
+ * the garbage collector. Reusing instances keeps that memory constant no matter how many entries are
+ * compressed or decompressed.
+ *
+ * <p>Instances obtained from the pool must be released at most once and must not be used after
+ * being released. Instances that are never released are reclaimed by the garbage collector, as if
+ * they had not been pooled.
+ */
+public final class ZlibPool {
+
+  /** How many idle instances of each kind are kept. */
+  private static final int MAX_IDLE = 2 * Runtime.getRuntime().availableProcessors();
+
+  /** Idle deflaters, all reset. */
+  private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(MAX_IDLE);
+
+  /** Idle inflaters, all reset. */
+  private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(MAX_IDLE);
+
+  private ZlibPool() {}
+
+  /**
+   * Obtains a deflater that produces raw deflate data.
+   *
+   * @param level the compression level
+   * @return the deflater, which should be given back with {@link #release(Deflater)}
+   */
+  public static Deflater deflater(int level) {
+    Deflater deflater = deflaters.poll();
+    if (deflater == null) {
+      return new Deflater(level, true);
+    }
+
+    deflater.setLevel(level);
+    return deflater;
+  }
+
+  /**
+   * Gives a deflater back to the pool. The deflater is reset, so it may be released in any state.
+   *
+   * @param deflater a deflater obtained with {@link #deflater(int)}
+   */
+  public static void release(Deflater deflater) {
+    deflater.reset();
+    if (!deflaters.offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Obtains an inflater that reads raw deflate data.
+   *
+   * @return the inflater, which should be given back with {@link #release(Inflater)}
+   */
+  public static Inflater inflater() {
+    Inflater inflater = inflaters.poll();
+    return inflater == null ? new Inflater(true) : inflater;
+  }
+
+  /**
+   * Gives an inflater back to the pool. The inflater is reset, so it may be released in any state.
+   *
+   * @param inflater an inflater obtained with {@link #inflater()}
+   */
+  public static void release(Inflater inflater) {
+    inflater.reset();
+    if (!inflaters.offer(inflater)) {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,59 @@
+val verName: String by rootProject.extra
+val verCode: Int by rootProject.extra
+val androidSourceCompatibility: JavaVersion by rootProject.extra
+val androidTargetCompatibility: JavaVersion by rootProject.extra
+
+plugins {
+    id("java")
+    alias(lspatch.plugins.champeau.jmh)
+}
+
+java {
+    sourceCompatibility = androidSourceCompatibility
+    targetCompatibility = androidTargetCompatibility
+}
+
+sourceSets {
+    main {
+        // the default signing key, used to sign synthetic apks
+        resources.srcDir("${rootProject.projectDir}/jar/src/main")
+        resources.include("assets/keystore")
+    }
+}
+
+dependencies {
+    implementation(projects.apkzlib)
+    implementation(projects.patch)
+    implementation(projects.share.java)
+
+    implementation(lspatch.beust.jcommander)
+    implementation(lspatch.google.gson)
+}
+
+// ./gradlew :benchmarks:jmh -Pjmh.includes=ZFileBenchmark -Pjmh.params=entries=1000,sizeMb=64
+jmh {
+    jmhVersion.set(lspatch.versions.jmh)
+    (findProperty("jmh.includes") as String?)?.let { includes.add(it) }
+    (findProperty("jmh.params") as String?)?.split(',')?.forEach {
+        val (name, values) = it.split('=', limit = 2)
+        benchmarkParameters.put(name, objects.listProperty<String>().value(values.split('|')))
+    }
+    profilers.addAll("gc", "org.lsposed.lspatch.benchmarks.PeakRssProfiler")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
+
+// ./gradlew :benchmarks:patchBenchmark -Pbenchmark.args="--shapes typical;huge --configs default,embed"
+tasks.register<JavaExec>("patchBenchmark") {
+    group = "benchmark"
+    description = "Patches a synthetic apk corpus end to end and writes latency and throughput as JSON"
+    dependsOn(":jar:buildRelease")
+    mainClass.set("org.lsposed.lspatch.benchmarks.PatchBenchmark")
+    // the lspatch jar first: it holds the loader dex and native libraries patched into apks
+    classpath = files("${rootProject.projectDir}/out/release/jar-v$verName-$verCode-release.jar") +
+            sourceSets.main.get().runtimeClasspath
+    maxHeapSize = "4g"
+    args("--corpus", layout.buildDirectory.dir("corpus").get().asFile.path)
+    args("--output", layout.buildDirectory.file("results/patch/results.json").get().asFile.path)
+    (findProperty("benchmark.args") as String?)?.let { args(it.split(' ').filter(String::isNotEmpty)) }
+}
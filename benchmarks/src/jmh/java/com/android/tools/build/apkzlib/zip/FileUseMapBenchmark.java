@@ -0,0 +1,110 @@
+package com.android.tools.build.apkzlib.zip;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking for free space in a {@link FileUseMap} fragmented like the map of a zip with many
+ * entries, some of which have been removed. Lives in the zip package because the map is package
+ * private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FileUseMapBenchmark {
+
+  /** Number of used blocks in the map; there is a free block between each two. */
+  @Param({"1000", "10000", "100000"})
+  public int blocks;
+
+  @Param({"BEST_FIT", "FIRST_FIT"})
+  public String algorithm;
+
+  /** Number of areas looked for in each invocation. */
+  private static final int QUERIES = 1024;
+
+  private FileUseMap map;
+
+  private FileUseMap.PositionAlgorithm positionAlgorithm;
+
+  private long[] sizes;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Random random = new Random(42);
+    positionAlgorithm = FileUseMap.PositionAlgorithm.valueOf(algorithm);
+
+    long[] used = new long[blocks];
+    long[] free = new long[blocks];
+    long size = 0;
+    for (int i = 0; i < blocks; i++) {
+      used[i] = 30 + random.nextInt(64 * 1024);
+      free[i] = 1 + random.nextInt(16 * 1024);
+      size += used[i] + free[i];
+    }
+
+    map = new FileUseMap(size, 0);
+    long offset = 0;
+    for (int i = 0; i < blocks; i++) {
+      map.add(offset, offset + used[i], i);
+      offset += used[i] + free[i];
+    }
+
+    sizes = new long[QUERIES];
+    for (int i = 0; i < QUERIES; i++) {
+      sizes[i] = 30 + random.nextInt(8 * 1024);
+    }
+  }
+
+  /** Looks for space for entries aligned like native libraries. */
+  @Benchmark
+  public long locateFreeAligned() {
+    long sum = 0;
+    for (long size : sizes) {
+      sum += map.locateFree(size, 30, 4096, positionAlgorithm);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public long locateFree() {
+    long sum = 0;
+    for (long size : sizes) {
+      sum += map.locateFree(size, 0, 1, positionAlgorithm);
+    }
+    return sum;
+  }
+
+  /** Places entries in free space and removes them, as when a zip is updated. */
+  @Benchmark
+  public long addAndRemove() {
+    long sum = 0;
+    for (long size : sizes) {
+      long start = map.locateFree(size, 0, 1, positionAlgorithm);
+      if (start + size > map.size()) {
+        sum += start;
+        continue;
+      }
+
+      FileUseMapEntry<?> entry = map.add(start, start + size, sizes);
+      map.remove(entry);
+      sum += start;
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,51 @@
+package org.lsposed.lspatch.benchmarks;
+
+import org.lsposed.patch.util.ApkSignatureHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the signature of signed synthetic apks with {@link ApkSignatureHelper}, as lspatch does
+ * to save the original signature.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ApkSignatureHelperBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int entries;
+
+    @Param({"1", "64", "2048"})
+    public int sizeMb;
+
+    private String apkPath;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        apkPath = SyntheticApks.get(entries, sizeMb, true).getAbsolutePath();
+    }
+
+    @Benchmark
+    public String getApkSignInfo() {
+        return ApkSignatureHelper.getApkSignInfo(apkPath);
+    }
+}
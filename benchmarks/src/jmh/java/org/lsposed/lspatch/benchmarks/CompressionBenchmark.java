@@ -0,0 +1,92 @@
+package org.lsposed.lspatch.benchmarks;
+
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.android.tools.build.apkzlib.zip.ZFileOptions;
+import com.android.tools.build.apkzlib.zip.compress.DeflateExecutionCompressor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Compressing entries while adding them to a zip, on the calling thread or on a pool of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CompressionBenchmark {
+
+    /** Threads compressing; 0 compresses on the calling thread. */
+    @Param({"0", "1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"1000"})
+    public int entries;
+
+    @Param({"64"})
+    public int sizeMb;
+
+    private byte[][] data;
+
+    private ExecutorService pool;
+
+    private File output;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = new byte[entries][];
+        int entrySize = (int) (((long) sizeMb << 20) / entries);
+        for (int i = 0; i < entries; i++)
+            data[i] = SyntheticApks.entryData(i, entrySize);
+        pool = threads > 0 ? new ForkJoinPool(threads) : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    @Setup(Level.Invocation)
+    public void newOutput() throws IOException {
+        output = SyntheticApks.newFile();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutput() throws IOException {
+        Files.deleteIfExists(output.toPath());
+    }
+
+    @Benchmark
+    public void add(ByteCounter counter) throws IOException {
+        var compressor = new DeflateExecutionCompressor(pool != null ? pool : Runnable::run, Deflater.DEFAULT_COMPRESSION);
+        try (var zFile = ZFile.openReadWrite(output, new ZFileOptions().setCompressor(compressor))) {
+            for (int i = 0; i < data.length; i++) {
+                zFile.add(SyntheticApks.entryName(i + 1), new ByteArrayInputStream(data[i]));
+                counter.bytes += data[i].length;
+            }
+        }
+    }
+}
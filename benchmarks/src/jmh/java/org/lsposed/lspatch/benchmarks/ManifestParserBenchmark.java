@@ -0,0 +1,51 @@
+package org.lsposed.lspatch.benchmarks;
+
+import org.lsposed.patch.util.ManifestParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing synthetic binary manifests with {@link ManifestParser}. The parser stops once it has
+ * found all it looks for, so manifests without a component factory are read to the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ManifestParserBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int activities;
+
+    @Param({"true", "false"})
+    public boolean appComponentFactory;
+
+    private byte[] manifest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        manifest = ApkCorpus.manifest(ApkCorpus.PACKAGE_NAME, null, activities, appComponentFactory);
+    }
+
+    @Benchmark
+    public ManifestParser.Pair parseManifestFile() throws IOException {
+        return ManifestParser.parseManifestFile(new ByteArrayInputStream(manifest));
+    }
+}
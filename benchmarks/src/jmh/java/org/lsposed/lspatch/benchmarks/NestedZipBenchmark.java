@@ -0,0 +1,100 @@
+package org.lsposed.lspatch.benchmarks;
+
+import com.android.tools.build.apkzlib.zip.AlignmentRules;
+import com.android.tools.build.apkzlib.zip.NestedZip;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.android.tools.build.apkzlib.zip.ZFileOptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nesting a synthetic apk in a new one and linking its entries, as lspatch does with the original
+ * apk, one entry at a time or all at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class NestedZipBenchmark {
+
+    private static final String ORIGIN_PATH = "assets/lspatch/origin.apk";
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int entries;
+
+    @Param({"1", "64", "2048"})
+    public int sizeMb;
+
+    private File apk;
+
+    /** Entries linked: all but the manifest, which lspatch rewrites. */
+    private List<String> names;
+
+    private File output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        apk = SyntheticApks.get(entries, sizeMb, false);
+        names = new ArrayList<>(entries);
+        for (int i = 1; i < entries; i++)
+            names.add(SyntheticApks.entryName(i));
+    }
+
+    @Setup(Level.Invocation)
+    public void newOutput() throws IOException {
+        output = SyntheticApks.newFile();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutput() throws IOException {
+        Files.deleteIfExists(output.toPath());
+    }
+
+    @Benchmark
+    public int addFileLink() throws IOException {
+        int linked = 0;
+        try (var dst = ZFile.openReadWrite(output, options());
+             var nested = dst.addNestedZip((ignore) -> ORIGIN_PATH, apk, false)) {
+            for (var name : names) {
+                if (nested.addFileLink(name, name))
+                    linked++;
+            }
+        }
+        return linked;
+    }
+
+    @Benchmark
+    public int addFileLinks() throws IOException {
+        try (var dst = ZFile.openReadWrite(output, options());
+             NestedZip nested = dst.addNestedZip((ignore) -> ORIGIN_PATH, apk, false)) {
+            return names.size() - nested.addFileLinks(names).size();
+        }
+    }
+
+    private static ZFileOptions options() {
+        return new ZFileOptions().setAlignmentRule(AlignmentRules.compose(
+                ApkCorpus.ALIGNMENT_RULE,
+                AlignmentRules.constantForSuffix(ORIGIN_PATH, 4096)));
+    }
+}
@@ -0,0 +1,72 @@
+package org.lsposed.lspatch.benchmarks;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Reports the peak resident set size of the benchmark process during each iteration. The peak is
+ * read from {@code /proc/self/status} and reset before each iteration through
+ * {@code /proc/self/clear_refs}, so this only reports anything on Linux.
+ */
+public class PeakRssProfiler implements InternalProfiler {
+
+    private static final Path STATUS = Paths.get("/proc/self/status");
+    private static final Path CLEAR_REFS = Paths.get("/proc/self/clear_refs");
+
+    /** Whether the peak could be reset before the current iteration. */
+    private boolean reset;
+
+    public PeakRssProfiler() {
+    }
+
+    @Override
+    public String getDescription() {
+        return "Peak resident set size, from /proc/self/status (Linux only)";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        try {
+            // 5 resets the peak resident set size to the current one
+            Files.write(CLEAR_REFS, "5".getBytes(StandardCharsets.US_ASCII));
+            reset = true;
+        } catch (IOException | UnsupportedOperationException e) {
+            reset = false;
+        }
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+                                                       IterationParams iterationParams, IterationResult result) {
+        long peakKb = reset ? readPeakKb() : -1;
+        if (peakKb < 0)
+            return Collections.emptyList();
+        return Collections.singletonList(new ScalarResult("rss.peak", peakKb / 1024.0, "MB", AggregationPolicy.MAX));
+    }
+
+    private static long readPeakKb() {
+        try {
+            for (var line : Files.readAllLines(STATUS, StandardCharsets.US_ASCII)) {
+                // VmHWM:    123456 kB
+                if (line.startsWith("VmHWM:"))
+                    return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux, or not a format we know
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,86 @@
+package org.lsposed.lspatch.benchmarks;
+
+import com.android.apksig.util.RunnablesExecutor;
+import com.android.tools.build.apkzlib.sign.SigningExtension;
+import com.android.tools.build.apkzlib.sign.SigningOptions;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.android.tools.build.apkzlib.zip.ZFileOptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing synthetic apks with {@link SigningExtension}, computing the digests on one thread or on
+ * all processors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class SigningBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int entries;
+
+    @Param({"1", "64", "2048"})
+    public int sizeMb;
+
+    @Param({"true", "false"})
+    public boolean parallel;
+
+    private File apk;
+
+    private KeyStore.PrivateKeyEntry key;
+
+    private File scratch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        apk = SyntheticApks.get(entries, sizeMb, false);
+        key = ApkCorpus.signingKey();
+    }
+
+    @Setup(Level.Invocation)
+    public void copyApk() throws IOException {
+        scratch = SyntheticApks.copy(apk);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteApk() throws IOException {
+        Files.deleteIfExists(scratch.toPath());
+    }
+
+    @Benchmark
+    public long sign(ByteCounter counter) throws IOException, GeneralSecurityException {
+        var options = ApkCorpus.signingOptions(key)
+                .setValidation(SigningOptions.Validation.ASSUME_INVALID)
+                .setExecutor(parallel ? RunnablesExecutor.MULTI_THREADED : RunnablesExecutor.SINGLE_THREADED)
+                .build();
+        var signingExtension = new SigningExtension(options);
+        try (var zFile = ZFile.openReadWrite(scratch, new ZFileOptions().setAlignmentRule(ApkCorpus.ALIGNMENT_RULE))) {
+            signingExtension.register(zFile);
+        }
+        counter.bytes += scratch.length();
+        return signingExtension.getSigningTimeNanos();
+    }
+}
@@ -0,0 +1,126 @@
+package org.lsposed.lspatch.benchmarks;
+
+import com.android.tools.build.apkzlib.sign.SigningExtension;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.android.tools.build.apkzlib.zip.ZFileOptions;
+import com.android.tools.build.apkzlib.zip.compress.DeflateExecutionCompressor;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+/**
+ * Synthetic apks for the microbenchmarks, made of a given number of entries with a given total
+ * size: a binary manifest, native libraries stored and aligned like in real apks, incompressible
+ * images and compressible text. Generating the large ones takes a while, so apks are cached in the
+ * directory named by the {@code lspatch.benchmark.dir} system property, by default under
+ * {@code java.io.tmpdir}.
+ */
+final class SyntheticApks {
+
+    private SyntheticApks() {
+    }
+
+    /**
+     * Gets a synthetic apk, generating it if it is not cached yet.
+     *
+     * @param entries number of entries, the manifest included
+     * @param sizeMb approximate size of the uncompressed data of all entries, in MB
+     * @param signed whether the apk is signed with the default keystore
+     */
+    static synchronized File get(int entries, int sizeMb, boolean signed) throws IOException {
+        var dir = cacheDir();
+        var name = String.format(Locale.ROOT, "synthetic-%d-%dm%s.apk", entries, sizeMb, signed ? "-signed" : "");
+        var file = new File(dir, name);
+        if (file.isFile())
+            return file;
+
+        var tmp = new File(dir, name + ".tmp");
+        if (signed) {
+            Files.copy(get(entries, sizeMb, false).toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            sign(tmp);
+        } else {
+            Files.deleteIfExists(tmp.toPath());
+            generate(tmp, entries, (long) sizeMb << 20);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    /** Copies an apk to a new file in the cache directory, for benchmarks changing it. */
+    static File copy(File apk) throws IOException {
+        var copy = Files.createTempFile(cacheDir().toPath(), "scratch-", ".apk");
+        Files.copy(apk.toPath(), copy, StandardCopyOption.REPLACE_EXISTING);
+        return copy.toFile();
+    }
+
+    /** Gets a path for a new file in the cache directory. The file does not exist. */
+    static File newFile() throws IOException {
+        var file = Files.createTempFile(cacheDir().toPath(), "output-", ".apk");
+        Files.delete(file);
+        return file.toFile();
+    }
+
+    /** Gets the name of the {@code index}-th entry; entry 0 is the manifest. */
+    static String entryName(int index) {
+        if (index == 0)
+            return "AndroidManifest.xml";
+        switch (index % 8) {
+            case 0:
+                return "lib/arm64-v8a/lib" + index + ".so";
+            case 1:
+            case 2:
+                return "res/drawable/image" + index + ".png";
+            default:
+                return "assets/text/" + index + ".txt";
+        }
+    }
+
+    /** Gets the data of the {@code index}-th entry, other than the manifest. */
+    static byte[] entryData(int index, int size) {
+        try (var is = ApkCorpus.data(index % 8 < 3, index, size)) {
+            return is.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static File cacheDir() throws IOException {
+        var dir = new File(System.getProperty("lspatch.benchmark.dir",
+                new File(System.getProperty("java.io.tmpdir"), "lspatch-benchmarks").getPath()));
+        Files.createDirectories(dir.toPath());
+        return dir;
+    }
+
+    private static void generate(File file, int entries, long size) throws IOException {
+        var options = new ZFileOptions()
+                .setNoTimestamps(true)
+                .setAlignmentRule(ApkCorpus.ALIGNMENT_RULE)
+                .setCompressor(new DeflateExecutionCompressor(ForkJoinPool.commonPool(), Deflater.BEST_SPEED))
+                .setMemoryBudget(256L << 20);
+        long entrySize = Math.max(1, size / entries);
+        try (var zFile = ZFile.openReadWrite(file, options)) {
+            var manifest = ApkCorpus.manifest(ApkCorpus.PACKAGE_NAME, null, 16, true);
+            zFile.add(entryName(0), new ByteArrayInputStream(manifest));
+            for (int i = 1; i < entries; i++) {
+                // native libraries are stored so that they can be loaded from the apk
+                zFile.add(entryName(i), ApkCorpus.data(i % 8 < 3, i, entrySize), i % 8 != 0);
+            }
+        }
+    }
+
+    private static void sign(File file) throws IOException {
+        try (var zFile = ZFile.openReadWrite(file, new ZFileOptions().setAlignmentRule(ApkCorpus.ALIGNMENT_RULE))) {
+            new SigningExtension(ApkCorpus.signingOptions(ApkCorpus.signingKey()).build()).register(zFile);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to sign " + file, e);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.lsposed.lspatch.benchmarks;
+
+import com.android.tools.build.apkzlib.zip.AlignmentRules;
+import com.android.tools.build.apkzlib.zip.StoredEntry;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.android.tools.build.apkzlib.zip.ZFileOptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening, adding to, realigning and updating synthetic apks with {@link ZFile}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ZFileBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int entries;
+
+    @Param({"1", "64", "2048"})
+    public int sizeMb;
+
+    private File apk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        apk = SyntheticApks.get(entries, sizeMb, false);
+    }
+
+    /** A copy of the apk made before each invocation, for benchmarks changing the apk. */
+    @State(Scope.Thread)
+    public static class Scratch {
+
+        File file;
+
+        @Setup(Level.Invocation)
+        public void setUp(ZFileBenchmark benchmark) throws IOException {
+            file = SyntheticApks.copy(benchmark.apk);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    /** A new file for each invocation, for benchmarks writing a zip from scratch. */
+    @State(Scope.Thread)
+    public static class Output {
+
+        File file;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException {
+            file = SyntheticApks.newFile();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    @Benchmark
+    public int openReadOnly() throws IOException {
+        try (var zFile = ZFile.openReadOnly(apk)) {
+            return zFile.entries().size();
+        }
+    }
+
+    /** Opens the apk the way lspatch opens its inputs. */
+    @Benchmark
+    public int openReadOnlyMapped() throws IOException {
+        var options = new ZFileOptions().setMemoryMapReadOnly(true).setLazyCentralDirectory(true);
+        try (var zFile = ZFile.openReadOnly(apk, options)) {
+            return zFile.get(SyntheticApks.entryName(0)) != null ? 1 : 0;
+        }
+    }
+
+    /** Adds all entries of the apk, read back uncompressed, to a new zip. */
+    @Benchmark
+    public void add(Output output, ByteCounter counter) throws IOException {
+        var options = new ZFileOptions().setAlignmentRule(ApkCorpus.ALIGNMENT_RULE);
+        try (var src = ZFile.openReadOnly(apk, new ZFileOptions().setMemoryMapReadOnly(true));
+             var dst = ZFile.openReadWrite(output.file, options)) {
+            for (StoredEntry entry : src.entries()) {
+                var cdh = entry.getCentralDirectoryHeader();
+                try (var is = entry.open()) {
+                    dst.add(cdh.getName(), is);
+                }
+                counter.bytes += cdh.getUncompressedSize();
+            }
+        }
+    }
+
+    /** Realigns native libraries to 16 KB pages. */
+    @Benchmark
+    public boolean realign(Scratch scratch) throws IOException {
+        var options = new ZFileOptions().setAlignmentRule(AlignmentRules.constantForSuffix(".so", 16384));
+        try (var zFile = ZFile.openReadWrite(scratch.file, options)) {
+            return zFile.realign();
+        }
+    }
+
+    /** Adds a small entry and updates the apk in place. */
+    @Benchmark
+    public void update(Scratch scratch) throws IOException {
+        var options = new ZFileOptions().setAlignmentRule(ApkCorpus.ALIGNMENT_RULE);
+        try (var zFile = ZFile.openReadWrite(scratch.file, options)) {
+            zFile.add("assets/update.txt", new ByteArrayInputStream("update".getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.lsposed.lspatch.benchmarks;
+
+import com.android.tools.build.apkzlib.zip.utils.ZlibPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressing and inflating small entries with new zlib streams each time or with streams taken
+ * from {@link ZlibPool}. Run with the gc profiler to compare allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ZlibPoolBenchmark {
+
+    @Param({"false", "true"})
+    public boolean pooled;
+
+    @Param({"1024", "65536"})
+    public int size;
+
+    private byte[] data;
+
+    private byte[] compressed;
+
+    private int compressedSize;
+
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        data = SyntheticApks.entryData(3, size);
+        buffer = new byte[size + 1024];
+        compressed = new byte[size + 1024];
+        compressedSize = deflate();
+    }
+
+    @Benchmark
+    public int deflate() {
+        var deflater = pooled ? ZlibPool.deflater(Deflater.DEFAULT_COMPRESSION) : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            int total = 0;
+            while (!deflater.finished())
+                total += deflater.deflate(compressed, total, compressed.length - total);
+            return total;
+        } finally {
+            if (pooled)
+                ZlibPool.release(deflater);
+            else
+                deflater.end();
+        }
+    }
+
+    @Benchmark
+    public int inflate() throws DataFormatException {
+        var inflater = pooled ? ZlibPool.inflater() : new Inflater(true);
+        try {
+            inflater.setInput(compressed, 0, compressedSize);
+            int total = 0;
+            while (!inflater.finished() && total < buffer.length)
+                total += inflater.inflate(buffer, total, buffer.length - total);
+            return total;
+        } finally {
+            if (pooled)
+                ZlibPool.release(inflater);
+            else
+                inflater.end();
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package org.lsposed.lspatch.benchmarks;
+
+import com.android.apksig.util.RunnablesExecutor;
+import com.android.tools.build.apkzlib.sign.SigningExtension;
+import com.android.tools.build.apkzlib.sign.SigningOptions;
+import com.android.tools.build.apkzlib.zip.AlignmentRule;
+import com.android.tools.build.apkzlib.zip.AlignmentRules;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.android.tools.build.apkzlib.zip.ZFileOptions;
+import com.android.tools.build.apkzlib.zip.compress.DeflateExecutionCompressor;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+import pxb.android.axml.AxmlWriter;
+import pxb.android.axml.NodeVisitor;
+
+/**
+ * Generates deterministic apk-shaped zips to patch: a binary manifest, dex files, native libraries
+ * for each ABI, resources and assets, signed with the default lspatch key. Apks are generated once
+ * per {@link Shape} in a corpus directory and reused as long as the shape does not change.
+ */
+public final class ApkCorpus {
+
+    public static final String PACKAGE_NAME = "org.lsposed.lspatch.synthetic";
+    public static final String MODULE_PACKAGE_NAME = "org.lsposed.lspatch.synthetic.module";
+
+    /** How stored native libraries are aligned, as by zipalign. */
+    public static final AlignmentRule ALIGNMENT_RULE = AlignmentRules.constantForSuffix(".so", 4096);
+
+    private static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+
+    private static final int NAME_RES_ID = 0x01010003;
+    private static final int HAS_CODE_RES_ID = 0x0101000c;
+    private static final int MIN_SDK_VERSION_RES_ID = 0x0101020c;
+    private static final int APP_COMPONENT_FACTORY_RES_ID = 0x0101057a;
+
+    private static final String KEYSTORE_PASSWORD = "123456";
+    private static final String KEY_ALIAS = "key0";
+
+    /** Name of the file recording the shape a corpus directory was generated with. */
+    private static final String SHAPE_FILE = "shape.txt";
+
+    /** Incompressible data, sliced for media, native libraries and stored assets. */
+    private static final byte[] RANDOM = new byte[4 * 1024 * 1024];
+
+    /** Text compressing about as well as code and resources do. */
+    private static final byte[] TEXT = new byte[1024 * 1024];
+
+    static {
+        var random = new Random(0x4c53506174636821L);
+        random.nextBytes(RANDOM);
+
+        String[] words = {"lspatch", "xposed", "module", "hook", "apk", "zip", "entry", "class",
+                "method", "field", "resource", "manifest", "signature", "align", "inflate", "android"};
+        var text = new StringBuilder(TEXT.length + 16);
+        while (text.length() < TEXT.length) {
+            text.append(words[random.nextInt(words.length)]).append(random.nextInt(8) == 0 ? '\n' : ' ');
+        }
+        System.arraycopy(text.toString().getBytes(StandardCharsets.US_ASCII), 0, TEXT, 0, TEXT.length);
+    }
+
+    /**
+     * What the apks of a corpus hold. Shapes are written as a preset name or as comma separated
+     * {@code key=value} pairs, where counts and sizes are given as {@code <count>x<size>} and sizes
+     * take a {@code k}, {@code m} or {@code g} suffix, e.g.
+     * {@code dex=2x8m,libs=4x2m,abis=arm64-v8a:x86_64,res=1000x4k,assets=2x64m,splits}.
+     */
+    public static final class Shape {
+
+        /** An apk of a typical app. */
+        public static final String TYPICAL = "dex=4x8m,abis=arm64-v8a:armeabi-v7a,libs=4x2m,res=2000x4k,assets=8x1m";
+        /** Many tiny files, as in apps with lots of resources. */
+        public static final String TINY = "dex=1x1m,res=50000x512";
+        /** A few huge files, as in games shipping their data in the apk. */
+        public static final String HUGE = "dex=1x4m,abis=arm64-v8a,libs=2x64m,assets=4x256m";
+        /** A typical app split in a base apk and one config apk per ABI. */
+        public static final String SPLIT = TYPICAL + ",splits";
+
+        final String name;
+        final String spec;
+        int dexFiles;
+        long dexSize;
+        List<String> abis = Collections.emptyList();
+        int libs;
+        long libSize;
+        int resources;
+        long resourceSize;
+        int assets;
+        long assetSize;
+        boolean splits;
+
+        private Shape(String name, String spec) {
+            this.name = name;
+            this.spec = spec;
+        }
+
+        /**
+         * Parses a shape.
+         *
+         * @param shape a preset name ({@code typical}, {@code tiny}, {@code huge} or {@code split}),
+         *     or a shape spec, optionally preceded by a name and a colon
+         */
+        public static Shape parse(String shape) {
+            switch (shape) {
+                case "typical":
+                    return parse(shape, TYPICAL);
+                case "tiny":
+                    return parse(shape, TINY);
+                case "huge":
+                    return parse(shape, HUGE);
+                case "split":
+                    return parse(shape, SPLIT);
+            }
+            int colon = shape.indexOf(':');
+            if (colon > 0 && !shape.substring(0, colon).contains("="))
+                return parse(shape.substring(0, colon), shape.substring(colon + 1));
+            return parse("custom-" + Integer.toHexString(shape.hashCode()), shape);
+        }
+
+        private static Shape parse(String name, String spec) {
+            var shape = new Shape(name, spec);
+            for (var item : spec.split(",")) {
+                var pair = item.split("=", 2);
+                var key = pair[0].trim();
+                var value = pair.length > 1 ? pair[1].trim() : null;
+                switch (key) {
+                    case "dex":
+                        shape.dexFiles = count(value);
+                        shape.dexSize = size(value);
+                        break;
+                    case "abis":
+                        shape.abis = Arrays.asList(value.split(":"));
+                        break;
+                    case "libs":
+                        shape.libs = count(value);
+                        shape.libSize = size(value);
+                        break;
+                    case "res":
+                        shape.resources = count(value);
+                        shape.resourceSize = size(value);
+                        break;
+                    case "assets":
+                        shape.assets = count(value);
+                        shape.assetSize = size(value);
+                        break;
+                    case "splits":
+                        shape.splits = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown shape key " + key + " in " + spec);
+                }
+            }
+            if (shape.libs > 0 && shape.abis.isEmpty())
+                shape.abis = Collections.singletonList("arm64-v8a");
+            return shape;
+        }
+
+        private static int count(String value) {
+            int x = value.indexOf('x');
+            if (x < 0)
+                throw new IllegalArgumentException("Expected <count>x<size>: " + value);
+            return Integer.parseInt(value.substring(0, x));
+        }
+
+        private static long size(String value) {
+            var size = value.substring(value.indexOf('x') + 1).toLowerCase(Locale.ROOT);
+            int shift = 0;
+            if (size.endsWith("k")) shift = 10;
+            else if (size.endsWith("m")) shift = 20;
+            else if (size.endsWith("g")) shift = 30;
+            if (shift != 0) size = size.substring(0, size.length() - 1);
+            return Long.parseLong(size) << shift;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name + ":" + spec;
+        }
+    }
+
+    private ApkCorpus() {
+    }
+
+    /**
+     * Gets the apks of a shape, generating them if the corpus directory does not hold them yet.
+     *
+     * @param corpusDir the corpus directory; each shape has its own directory in it
+     * @return the apks, the base apk first
+     */
+    public static List<File> generate(File corpusDir, Shape shape) throws IOException {
+        var dir = new File(corpusDir, shape.name);
+        var shapeFile = new File(dir, SHAPE_FILE);
+        var apks = apkFiles(dir, shape);
+        if (shapeFile.isFile() && Files.readString(shapeFile.toPath()).equals(shape.spec)
+                && apks.stream().allMatch(File::isFile))
+            return apks;
+
+        Files.createDirectories(dir.toPath());
+        Files.deleteIfExists(shapeFile.toPath());
+        var key = signingKey();
+        writeBase(apks.get(0), shape, key);
+        if (shape.splits) {
+            for (int i = 0; i < shape.abis.size(); i++)
+                writeAbiSplit(apks.get(i + 1), shape, shape.abis.get(i), key);
+        }
+        Files.writeString(shapeFile.toPath(), shape.spec);
+        return apks;
+    }
+
+    /**
+     * Gets a small module apk to embed, generating it if needed.
+     */
+    public static File module(File corpusDir) throws IOException {
+        var file = new File(corpusDir, "module.apk");
+        if (file.isFile())
+            return file;
+
+        Files.createDirectories(corpusDir.toPath());
+        var tmp = new File(corpusDir, "module.apk.tmp");
+        Files.deleteIfExists(tmp.toPath());
+        try (var zFile = openForWriting(tmp, signingKey())) {
+            zFile.add("AndroidManifest.xml", new ByteArrayInputStream(manifest(MODULE_PACKAGE_NAME, null, 4, false)));
+            zFile.add("classes.dex", data(false, 1, 256 * 1024));
+            zFile.add("assets/xposed_init", new ByteArrayInputStream(
+                    (MODULE_PACKAGE_NAME + ".Init\n").getBytes(StandardCharsets.UTF_8)));
+        }
+        Files.move(tmp.toPath(), file.toPath());
+        return file;
+    }
+
+    /**
+     * Builds a binary manifest.
+     *
+     * @param packageName the package of the manifest
+     * @param split the name of the split, {@code null} for a base apk
+     * @param activities number of activities declared
+     * @param appComponentFactory whether the application declares a component factory
+     */
+    public static byte[] manifest(String packageName, String split, int activities,
+                                  boolean appComponentFactory) throws IOException {
+        var writer = new AxmlWriter();
+        writer.ns("android", ANDROID_NS, -1);
+        var manifest = writer.child(null, "manifest");
+        manifest.attr(null, "package", -1, NodeVisitor.TYPE_STRING, packageName);
+        if (split != null)
+            manifest.attr(null, "split", -1, NodeVisitor.TYPE_STRING, split);
+
+        var usesSdk = manifest.child(null, "uses-sdk");
+        usesSdk.attr(ANDROID_NS, "minSdkVersion", MIN_SDK_VERSION_RES_ID, NodeVisitor.TYPE_FIRST_INT, 28);
+        usesSdk.end();
+
+        var application = manifest.child(null, "application");
+        if (split != null)
+            application.attr(ANDROID_NS, "hasCode", HAS_CODE_RES_ID, NodeVisitor.TYPE_INT_BOOLEAN, false);
+        if (appComponentFactory) {
+            application.attr(ANDROID_NS, "appComponentFactory", APP_COMPONENT_FACTORY_RES_ID,
+                    NodeVisitor.TYPE_STRING, "androidx.core.app.CoreComponentFactory");
+        }
+        for (int i = 0; i < activities; i++) {
+            var activity = application.child(null, "activity");
+            activity.attr(ANDROID_NS, "name", NAME_RES_ID, NodeVisitor.TYPE_STRING, packageName + ".Activity" + i);
+            activity.end();
+        }
+        application.end();
+        manifest.end();
+        return writer.toByteArray();
+    }
+
+    /**
+     * Gets a stream of deterministic data: incompressible if {@code random} is set, text
+     * otherwise. Different seeds give different data.
+     */
+    public static InputStream data(boolean random, int seed, long size) {
+        return new SyntheticInputStream(random ? RANDOM : TEXT, seed, size);
+    }
+
+    /** Loads the default signing key, the one lspatch signs with when no keystore is given. */
+    public static KeyStore.PrivateKeyEntry signingKey() throws IOException {
+        try (var is = ApkCorpus.class.getClassLoader().getResourceAsStream("assets/keystore")) {
+            if (is == null)
+                throw new IOException("Default keystore not found");
+            var keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(is, KEYSTORE_PASSWORD.toCharArray());
+            return (KeyStore.PrivateKeyEntry) keyStore.getEntry(KEY_ALIAS,
+                    new KeyStore.PasswordProtection(KEYSTORE_PASSWORD.toCharArray()));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to load the default keystore", e);
+        }
+    }
+
+    /** Gets signing options like those lspatch uses. */
+    public static SigningOptions.Builder signingOptions(KeyStore.PrivateKeyEntry key) {
+        return SigningOptions.builder()
+                .setMinSdkVersion(28)
+                .setV2SigningEnabled(true)
+                .setCertificates((X509Certificate[]) key.getCertificateChain())
+                .setKey(key.getPrivateKey())
+                .setExecutor(RunnablesExecutor.MULTI_THREADED);
+    }
+
+    private static List<File> apkFiles(File dir, Shape shape) {
+        List<File> apks = new ArrayList<>();
+        apks.add(new File(dir, "base.apk"));
+        if (shape.splits) {
+            for (var abi : shape.abis)
+                apks.add(new File(dir, "split_config." + abi.replace('-', '_') + ".apk"));
+        }
+        return apks;
+    }
+
+    private static ZFile openForWriting(File file, KeyStore.PrivateKeyEntry key) throws IOException {
+        var zFileOptions = new ZFileOptions()
+                .setNoTimestamps(true)
+                .setAlignmentRule(ALIGNMENT_RULE)
+                .setCompressor(new DeflateExecutionCompressor(ForkJoinPool.commonPool(), Deflater.BEST_SPEED))
+                .setMemoryBudget(256L << 20);
+        var zFile = ZFile.openReadWrite(file, zFileOptions);
+        try {
+            // the file is new, there is no signature to validate
+            var options = signingOptions(key).setValidation(SigningOptions.Validation.ASSUME_INVALID).build();
+            new SigningExtension(options).register(zFile);
+        } catch (GeneralSecurityException e) {
+            zFile.close();
+            throw new IOException("Failed to register signer", e);
+        }
+        return zFile;
+    }
+
+    private static void writeBase(File file, Shape shape, KeyStore.PrivateKeyEntry key) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        int seed = 0;
+        try (var zFile = openForWriting(file, key)) {
+            zFile.add("AndroidManifest.xml", new ByteArrayInputStream(manifest(PACKAGE_NAME, null, 16, true)));
+            for (int i = 0; i < shape.dexFiles; i++) {
+                var name = i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex";
+                zFile.add(name, data(false, seed++, shape.dexSize));
+            }
+            if (!shape.splits) {
+                for (var abi : shape.abis)
+                    seed = addLibs(zFile, shape, abi, seed);
+            }
+            for (int i = 0; i < shape.resources; i++) {
+                // a third of the resources are images, which are not compressed further
+                boolean image = i % 3 == 0;
+                var name = image ? "res/drawable/image" + i + ".png" : "res/layout/layout" + i + ".xml";
+                zFile.add(name, data(image, seed++, shape.resourceSize), !image);
+            }
+            for (int i = 0; i < shape.assets; i++) {
+                // large assets are stored so that they can be mapped from the apk
+                zFile.add("assets/data/asset" + i + ".bin", data(true, seed++, shape.assetSize), false);
+            }
+        }
+    }
+
+    private static void writeAbiSplit(File file, Shape shape, String abi, KeyStore.PrivateKeyEntry key)
+            throws IOException {
+        Files.deleteIfExists(file.toPath());
+        try (var zFile = openForWriting(file, key)) {
+            var split = "config." + abi.replace('-', '_');
+            zFile.add("AndroidManifest.xml", new ByteArrayInputStream(manifest(PACKAGE_NAME, split, 0, false)));
+            addLibs(zFile, shape, abi, abi.hashCode());
+        }
+    }
+
+    private static int addLibs(ZFile zFile, Shape shape, String abi, int seed) throws IOException {
+        for (int i = 0; i < shape.libs; i++) {
+            // stored so that they can be loaded from the apk
+            zFile.add("lib/" + abi + "/libsynthetic" + i + ".so", data(true, seed++, shape.libSize), false);
+        }
+        return seed;
+    }
+
+    /** Cycles through a block of data, from an offset depending on the seed. */
+    private static final class SyntheticInputStream extends InputStream {
+
+        private final byte[] source;
+        private long remaining;
+        private int position;
+
+        SyntheticInputStream(byte[] source, int seed, long size) {
+            this.source = source;
+            this.remaining = size;
+            this.position = (int) Math.floorMod(seed * 7919L * 61, (long) source.length);
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0)
+                return -1;
+            remaining--;
+            int b = source[position] & 0xff;
+            position = (position + 1) % source.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0)
+                return -1;
+            int count = (int) Math.min(Math.min(len, remaining), source.length - position);
+            System.arraycopy(source, position, b, off, count);
+            remaining -= count;
+            position = (position + count) % source.length;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package org.lsposed.lspatch.benchmarks;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.converters.IParameterSplitter;
+import com.google.gson.GsonBuilder;
+
+import org.lsposed.patch.LSPatch;
+import org.lsposed.patch.PatchListener;
+import org.lsposed.patch.PatchMetrics;
+import org.lsposed.patch.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * End-to-end benchmark of {@link LSPatch}: patches a generated {@link ApkCorpus} with several flag
+ * combinations and reports patch latency percentiles, throughput and peak heap as JSON, so that
+ * releases can be compared.
+ *
+ * <p>The loader dex and native libraries patched into apks are read from the classpath, so the
+ * lspatch jar must be on it; {@code ./gradlew :benchmarks:patchBenchmark} takes care of that.
+ */
+public class PatchBenchmark {
+
+    @Parameter(names = {"-h", "--help"}, help = true, order = 0, description = "Print this message")
+    private boolean help = false;
+
+    @Parameter(names = {"--corpus"}, description = "Directory where the corpus is generated and cached")
+    private String corpusPath = "corpus";
+
+    @Parameter(names = {"-s", "--shapes"}, description = "Corpus shapes: typical, tiny, huge, split, or specs like name:dex=2x8m,res=1000x4k, separated by ';'", splitter = SemicolonSplitter.class)
+    private List<String> shapes = new ArrayList<>(Arrays.asList("typical", "tiny", "huge", "split"));
+
+    @Parameter(names = {"-c", "--configs"}, description = "Patch configs: default, embed, manager, sigbypass, or combinations like embed+sigbypass")
+    private List<String> configs = new ArrayList<>(Arrays.asList("default", "embed", "manager", "sigbypass"));
+
+    @Parameter(names = {"-w", "--warmup"}, description = "Patches run before measuring, for each shape and config")
+    private int warmup = 1;
+
+    @Parameter(names = {"-n", "--iterations"}, description = "Patches measured for each shape and config")
+    private int iterations = 5;
+
+    @Parameter(names = {"-o", "--output"}, description = "JSON file to write the results to. default: standard output")
+    private String outputPath = null;
+
+    @Parameter(names = {"--label"}, description = "Label of the results, e.g. the version being measured")
+    private String label = null;
+
+    /** Splits on ';' only, since shape specs hold commas. */
+    public static class SemicolonSplitter implements IParameterSplitter {
+        @Override
+        public List<String> split(String value) {
+            return Arrays.asList(value.split(";"));
+        }
+    }
+
+    /** Results of a whole run. Fields are public so that they can be serialized. */
+    public static class Report {
+        public String label;
+        public String timestamp;
+        public String jvm;
+        public String os;
+        public int processors;
+        public long maxHeapMb;
+        public int warmup;
+        public int iterations;
+        public final List<Result> results = new ArrayList<>();
+    }
+
+    /** Results of patching the apks of a shape with a config. */
+    public static class Result {
+        public String shape;
+        public String config;
+        public List<String> flags;
+        public int apks;
+        public double inputMb;
+        public double p50Ms;
+        public double p99Ms;
+        public double minMs;
+        public double maxMs;
+        public double meanMs;
+        /** Input megabytes patched per second, at the median latency. */
+        public double mbPerSecond;
+        /** Highest heap use seen while patching, in any iteration. */
+        public double peakHeapMb;
+        /** Mean time of each patching phase per iteration, all apks included. */
+        public final Map<PatchListener.Phase, Double> phaseMs = new EnumMap<>(PatchListener.Phase.class);
+    }
+
+    private static class QuietLogger extends Logger {
+        @Override
+        public void d(String msg) {
+        }
+
+        @Override
+        public void i(String msg) {
+        }
+
+        @Override
+        public void e(String msg) {
+            System.err.println(msg);
+        }
+    }
+
+    private final JCommander jCommander;
+
+    public PatchBenchmark(String... args) {
+        jCommander = JCommander.newBuilder().addObject(this).programName("patch-benchmark").build();
+        try {
+            jCommander.parse(args);
+        } catch (ParameterException e) {
+            System.err.println(e.getMessage());
+            help = true;
+        }
+        if (warmup < 0 || iterations < 1) {
+            System.err.println("--warmup should be at least 0 and --iterations at least 1");
+            help = true;
+        }
+    }
+
+    public static void main(String... args) throws IOException {
+        var benchmark = new PatchBenchmark(args);
+        if (benchmark.help) {
+            benchmark.jCommander.usage();
+            System.exit(2);
+        }
+        var json = new GsonBuilder().setPrettyPrinting().create().toJson(benchmark.run());
+        if (benchmark.outputPath == null) {
+            System.out.println(json);
+        } else {
+            var output = new File(benchmark.outputPath);
+            if (output.getParentFile() != null)
+                Files.createDirectories(output.getParentFile().toPath());
+            Files.writeString(output.toPath(), json, StandardCharsets.UTF_8);
+            System.err.println("Results written to " + output.getAbsolutePath());
+        }
+    }
+
+    public Report run() throws IOException {
+        var corpusDir = new File(corpusPath).getAbsoluteFile();
+        var outputDir = new File(corpusDir, "patched");
+
+        var report = new Report();
+        report.label = label;
+        report.timestamp = Instant.now().toString();
+        report.jvm = System.getProperty("java.vm.name") + " " + System.getProperty("java.version");
+        report.os = System.getProperty("os.name") + " " + System.getProperty("os.arch");
+        report.processors = Runtime.getRuntime().availableProcessors();
+        report.maxHeapMb = Runtime.getRuntime().maxMemory() >> 20;
+        report.warmup = warmup;
+        report.iterations = iterations;
+
+        for (var shapeName : shapes) {
+            var shape = ApkCorpus.Shape.parse(shapeName);
+            System.err.println("Generating " + shape + "...");
+            var apks = ApkCorpus.generate(corpusDir, shape);
+            long inputBytes = apks.stream().mapToLong(File::length).sum();
+
+            for (var config : configs) {
+                var flags = flags(config, corpusDir);
+                List<String> args = new ArrayList<>(flags);
+                args.addAll(Arrays.asList("--force", "--output", outputDir.getPath()));
+                apks.forEach(apk -> args.add(apk.getPath()));
+
+                System.err.println("Patching " + shape.getName() + " with " + config + "...");
+                for (int i = 0; i < warmup; i++)
+                    patch(args, null);
+
+                var result = new Result();
+                result.shape = shape.getName();
+                result.config = config;
+                result.flags = flags;
+                result.apks = apks.size();
+                result.inputMb = inputBytes / 1048576.0;
+
+                double[] latencies = new double[iterations];
+                long peakHeap = 0;
+                var metrics = new PatchMetrics();
+                for (int i = 0; i < iterations; i++) {
+                    resetPeakHeap();
+                    long start = System.nanoTime();
+                    patch(args, metrics);
+                    latencies[i] = (System.nanoTime() - start) / 1e6;
+                    peakHeap = Math.max(peakHeap, peakHeap());
+                }
+                metrics.getTotals().forEach((phase, total) -> result.phaseMs.put(phase, total.millis / iterations));
+
+                Arrays.sort(latencies);
+                result.p50Ms = percentile(latencies, 50);
+                result.p99Ms = percentile(latencies, 99);
+                result.minMs = latencies[0];
+                result.maxMs = latencies[latencies.length - 1];
+                result.meanMs = Arrays.stream(latencies).average().orElse(0);
+                result.mbPerSecond = result.inputMb / (result.p50Ms / 1000);
+                result.peakHeapMb = peakHeap / 1048576.0;
+                report.results.add(result);
+                System.err.println(String.format(Locale.ROOT, "  p50 %.1f ms, p99 %.1f ms, %.1f MB/s, peak heap %.1f MB",
+                        result.p50Ms, result.p99Ms, result.mbPerSecond, result.peakHeapMb));
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Gets the lspatch flags of a config: {@code +} separated names, each adding some flags.
+     */
+    private static List<String> flags(String config, File corpusDir) throws IOException {
+        List<String> flags = new ArrayList<>();
+        for (var name : config.split("\\+")) {
+            switch (name) {
+                case "default":
+                    break;
+                case "embed":
+                    flags.add("--embed");
+                    flags.add(ApkCorpus.module(corpusDir).getPath());
+                    break;
+                case "manager":
+                    flags.add("--manager");
+                    break;
+                case "sigbypass":
+                    flags.add("-l");
+                    flags.add("2");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown config " + name);
+            }
+        }
+        return flags;
+    }
+
+    private static void patch(List<String> args, PatchListener listener) throws IOException {
+        var lspatch = new LSPatch(new QuietLogger(), args.toArray(new String[0]));
+        if (listener != null)
+            lspatch.addPatchListener(listener);
+        try {
+            lspatch.doCommandLine();
+        } catch (Error e) {
+            // LSPatch reports failures as errors
+            throw new IOException("Failed to patch: " + e.getMessage(), e);
+        }
+    }
+
+    /** Nearest-rank percentile of sorted values. */
+    private static double percentile(double[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * Sums the peak use of the heap pools since they were reset. Pools do not peak at the same
+     * time, so this is an upper bound of the peak heap use.
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
@@ -3,13 +3,17 @@ package org.lsposed.lspatch
 import androidx.core.net.toUri
 import androidx.documentfile.provider.DocumentFile
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.runInterruptible
 import kotlinx.coroutines.withContext
 import org.lsposed.lspatch.config.Configs
 import org.lsposed.lspatch.config.MyKeyStore
 import org.lsposed.lspatch.share.Constants
 import org.lsposed.lspatch.share.PatchConfig
-import org.lsposed.patch.LSPatch
+import org.lsposed.patch.PatchListener
+import org.lsposed.patch.PatchRequest
+import org.lsposed.patch.PatchSession
 import org.lsposed.patch.util.Logger
+import java.io.File
 import java.io.IOException
 
 object Patcher {
@@ -17,31 +21,52 @@ object Patcher {
     class Options(
         private val config: PatchConfig,
         private val apkPaths: List<String>,
-        private val embeddedModules: List<String>?
+        private val embeddedModules: List<String>?,
+        private val update: Boolean = false
     ) {
-        fun toStringArray(): Array<String> {
-            return buildList {
-                addAll(apkPaths)
-                add("-o"); add(lspApp.tmpApkDir.absolutePath)
-                if (config.debuggable) add("-d")
-                add("-l"); add(config.sigBypassLevel.toString())
-                if (config.useManager) add("--manager")
-                if (config.overrideVersionCode) add("-r")
-                if (Configs.detailPatchLogs) add("-v")
-                embeddedModules?.forEach {
-                    add("-m"); add(it)
-                }
+        fun toRequests(): List<PatchRequest> {
+            return apkPaths.map { path ->
+                val apk = File(path)
+                PatchRequest.builder(apk, lspApp.tmpApkDir.resolve(PatchRequest.defaultOutputName(apk, update)))
+                    .setDebuggable(config.debuggable)
+                    .setSigBypassLevel(config.sigBypassLevel)
+                    .setUseManager(config.useManager)
+                    .setOverrideVersionCode(config.overrideVersionCode)
+                    .setUpdate(update)
+                    .apply { embeddedModules?.forEach { addModule(File(it)) } }
+                    .build()
+            }
+        }
+    }
+
+    private fun openSession(logger: Logger): PatchSession {
+        return PatchSession.builder()
+            .setLogger(logger)
+            // keep entry data within a quarter of the heap so large apks spill to disk instead of OOM
+            .setMemoryBudget(Runtime.getRuntime().maxMemory() / 4)
+            .setTempDir(lspApp.cacheDir.resolve("spill"))
+            .apply {
                 if (!MyKeyStore.useDefault) {
-                    addAll(arrayOf("-k", MyKeyStore.file.path, Configs.keyStorePassword, Configs.keyStoreAlias, Configs.keyStoreAliasPassword))
+                    setKeystore(MyKeyStore.file, Configs.keyStorePassword, Configs.keyStoreAlias, Configs.keyStoreAliasPassword)
                 }
-            }.toTypedArray()
-        }
+            }
+            .build()
     }
 
-    suspend fun patch(logger: Logger, options: Options) {
-        withContext(Dispatchers.IO) {
-            LSPatch(logger, *options.toStringArray()).doCommandLine()
+    suspend fun patch(logger: Logger, options: Options, listener: PatchListener? = null) {
+        logger.verbose = Configs.detailPatchLogs
+        val requests = options.toRequests()
+        // cancelling the coroutine interrupts the patching thread, which stops the session
+        val results = runInterruptible(Dispatchers.IO) {
+            openSession(logger).use { session ->
+                requests.mapIndexed { index, request ->
+                    logger.i("Processing ${request.apk} -> ${request.output}")
+                    session.patch(request, listener, index, requests.size)
+                }
+            }
+        }
 
+        withContext(Dispatchers.IO) {
             val uri = Configs.storageDirectory?.toUri()
                 ?: throw IOException("Uri is null")
             val root = DocumentFile.fromTreeUri(lspApp, uri)
@@ -49,19 +74,18 @@ object Patcher {
             root.listFiles().forEach {
                 if (it.name?.endsWith(Constants.PATCH_FILE_SUFFIX) == true) it.delete()
             }
-            lspApp.tmpApkDir.walk()
-                .filter { it.name.endsWith(Constants.PATCH_FILE_SUFFIX) }
-                .forEach { apk ->
-                    val file = root.createFile("application/vnd.android.package-archive", apk.name)
-                        ?: throw IOException("Failed to create output file")
-                    val output = lspApp.contentResolver.openOutputStream(file.uri)
-                        ?: throw IOException("Failed to open output stream")
-                    output.use {
-                        apk.inputStream().use { input ->
-                            input.copyTo(output)
-                        }
+            results.forEach { result ->
+                val apk = result.output
+                val file = root.createFile("application/vnd.android.package-archive", apk.name)
+                    ?: throw IOException("Failed to create output file")
+                val output = lspApp.contentResolver.openOutputStream(file.uri)
+                    ?: throw IOException("Failed to open output stream")
+                output.use {
+                    apk.inputStream().use { input ->
+                        input.copyTo(output)
                     }
                 }
+            }
             logger.i("Patched files are saved to ${root.uri.lastPathSegment}")
         }
     }
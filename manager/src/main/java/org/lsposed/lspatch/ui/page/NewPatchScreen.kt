@@ -382,7 +382,7 @@ private fun DoPatchBody(modifier: Modifier, navigator: DestinationsNavigator) {
 
     BoxWithConstraints(modifier.padding(start = 24.dp, end = 24.dp, bottom = 24.dp)) {
         val shellBoxMaxHeight =
-            if (viewModel.patchState == PatchState.PATCHING) maxHeight
+            if (viewModel.patchState == PatchState.PATCHING) maxHeight - 16.dp
             else maxHeight - ButtonDefaults.MinHeight - 12.dp
         Column(
             Modifier
@@ -390,6 +390,14 @@ private fun DoPatchBody(modifier: Modifier, navigator: DestinationsNavigator) {
                 .wrapContentHeight()
                 .animateContentSize(spring(stiffness = Spring.StiffnessLow))
         ) {
+            if (viewModel.patchState == PatchState.PATCHING) {
+                LinearProgressIndicator(
+                    progress = viewModel.patchProgress,
+                    modifier = Modifier
+                        .fillMaxWidth()
+                        .padding(bottom = 12.dp)
+                )
+            }
             ShimmerAnimation(enabled = viewModel.patchState == PatchState.PATCHING) {
                 ProvideTextStyle(MaterialTheme.typography.bodySmall.copy(fontFamily = FontFamily.Monospace)) {
                     val scrollState = rememberLazyListState()
@@ -12,7 +12,9 @@ import org.lsposed.lspatch.Patcher
 import org.lsposed.lspatch.share.PatchConfig
 import org.lsposed.lspatch.util.LSPPackageManager
 import org.lsposed.lspatch.util.LSPPackageManager.AppInfo
+import org.lsposed.patch.PatchListener
 import org.lsposed.patch.util.Logger
+import java.io.File
 
 class NewPatchViewModel : ViewModel() {
 
@@ -45,6 +47,10 @@ class NewPatchViewModel : ViewModel() {
     lateinit var patchOptions: Patcher.Options
         private set
 
+    /** Progress of patching all apks, from 0 to 1. */
+    var patchProgress by mutableStateOf(0f)
+        private set
+
     val logs = mutableStateListOf<Pair<Int, String>>()
     private val logger = object : Logger() {
         override fun d(msg: String) {
@@ -65,6 +71,26 @@ class NewPatchViewModel : ViewModel() {
         }
     }
 
+    private val patchListener = object : PatchListener {
+        @Volatile
+        private var apkIndex = 0
+
+        @Volatile
+        private var apkCount = 1
+
+        override fun onApkStarted(apk: File, index: Int, count: Int) {
+            apkIndex = index
+            apkCount = count
+        }
+
+        override fun onPhaseFinished(apk: File?, phase: PatchListener.Phase, durationNanos: Long, counters: PatchListener.Counters) {
+            if (apk == null) return
+            // phases run in order, some may be skipped
+            val phases = PatchListener.Phase.values().size
+            patchProgress = (apkIndex + (phase.ordinal + 1f) / phases) / apkCount
+        }
+    }
+
     fun dispatch(action: ViewAction) {
         viewModelScope.launch {
             when (action) {
@@ -99,8 +125,10 @@ class NewPatchViewModel : ViewModel() {
 
     private suspend fun launchPatch() {
         logger.i("Launch patch")
+        patchProgress = 0f
         patchState = try {
-            Patcher.patch(logger, patchOptions)
+            Patcher.patch(logger, patchOptions, patchListener)
+            patchProgress = 1f
             PatchState.FINISHED
         } catch (t: Throwable) {
             logger.e(t.message.orEmpty())
@@ -10,6 +10,7 @@ import androidx.compose.runtime.setValue
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
 import com.google.gson.Gson
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
@@ -23,6 +24,7 @@ import org.lsposed.lspatch.util.LSPPackageManager.AppInfo
 import org.lsposed.lspatch.util.ShizukuApi
 import org.lsposed.patch.util.Logger
 import java.io.FileNotFoundException
+import java.util.zip.ZipEntry
 import java.util.zip.ZipFile
 
 class AppManageViewModel : ViewModel() {
@@ -88,6 +90,31 @@ class AppManageViewModel : ViewModel() {
             withContext(Dispatchers.IO) {
                 LSPPackageManager.cleanTmpApkDir()
                 val apkPaths = listOf(appInfo.app.sourceDir) + (appInfo.app.splitSourceDirs ?: emptyArray())
+                // Only an uncompressed origin.apk can be read in place, older builds may have deflated it
+                val canUpdateInPlace = apkPaths.all { apk ->
+                    ZipFile(apk).use { zip ->
+                        zip.getEntry(Constants.ORIGINAL_APK_ASSET_PATH)?.method == ZipEntry.STORED
+                    }
+                }
+                if (canUpdateInPlace) {
+                    // Original apks and modules are carried over from the installed apks as is
+                    val patched = try {
+                        Patcher.patch(logger, Patcher.Options(config, apkPaths, null, update = true))
+                        true
+                    } catch (e: CancellationException) {
+                        throw e
+                    } catch (e: Throwable) {
+                        // PatchError is an Error
+                        Log.w(TAG, "Failed to update in place, extracting the original apks", e)
+                        LSPPackageManager.cleanTmpApkDir()
+                        false
+                    }
+                    if (patched) {
+                        val (status, message) = LSPPackageManager.install()
+                        if (status != PackageInstaller.STATUS_SUCCESS) throw RuntimeException(message)
+                        return@withContext
+                    }
+                }
                 val patchPaths = mutableListOf<String>()
                 val embeddedModulePaths = mutableListOf<String>()
                 for (apk in apkPaths) {
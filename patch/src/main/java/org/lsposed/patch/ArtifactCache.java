@@ -0,0 +1,144 @@
+package org.lsposed.patch;
+
+import com.android.tools.build.apkzlib.zip.ZFile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Signing keys, loader resources, the lspatch jar and the compression pool, shared by the
+ * {@link PatchSession}s of a long-running process such as {@code lspatch serve}, so that each
+ * of them does not load them again. A keystore file is loaded again once it changes.
+ *
+ * <p>Keystore passwords are not kept: a cached key is only handed out to sessions giving the same
+ * passwords as the one that loaded it, which is checked against a salted digest of them.
+ */
+class ArtifactCache implements Closeable {
+
+    interface Loader<T> {
+        T load() throws Exception;
+    }
+
+    /** A loaded signing key and the digest of the passwords it was loaded with. */
+    private static class SigningKey {
+        final KeyStore.PrivateKeyEntry key;
+        final byte[] passwordDigest;
+
+        SigningKey(KeyStore.PrivateKeyEntry key, byte[] passwordDigest) {
+            this.key = key;
+            this.passwordDigest = passwordDigest;
+        }
+    }
+
+    private final Map<String, SigningKey> signingKeys = new HashMap<>();
+    private final byte[] salt = new byte[16];
+    private final Map<String, byte[]> resources = new HashMap<>();
+    private final ZFile loaderJar;
+    private final ExecutorService compressionExecutor;
+
+    private long keystoreLoads;
+    private long keystoreHits;
+
+    /**
+     * @param loaderJar the jar LSPatch runs from, {@code null} if it does not run from a jar
+     * @param compressThreads threads of the pool deflating entries of all apks, 1 to deflate them on
+     *     the threads adding them
+     */
+    ArtifactCache(ZFile loaderJar, int compressThreads) {
+        this.loaderJar = loaderJar;
+        this.compressionExecutor = compressThreads > 1 ? new ForkJoinPool(compressThreads) : null;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * Gets the signing key of a keystore, loading it if the keystore was not loaded yet or changed
+     * since it was.
+     *
+     * @param keystoreArgs the {@code --keystore} arguments, the path being {@code null} for the
+     *     default keystore
+     */
+    synchronized KeyStore.PrivateKeyEntry signingKey(List<String> keystoreArgs,
+                                                     Loader<KeyStore.PrivateKeyEntry> loader) throws Exception {
+        var key = keystoreArgs.get(2);
+        var path = keystoreArgs.get(0);
+        if (path != null) {
+            var file = new File(path).getAbsoluteFile();
+            key = file + "\0" + file.lastModified() + "\0" + file.length() + "\0" + key;
+        }
+        var passwordDigest = passwordDigest(keystoreArgs.get(1), keystoreArgs.get(3));
+        var signingKey = signingKeys.get(key);
+        if (signingKey != null && MessageDigest.isEqual(signingKey.passwordDigest, passwordDigest)) {
+            keystoreHits++;
+            return signingKey.key;
+        }
+        // wrong passwords fail to load, right ones replace the key loaded with other passwords
+        var loaded = loader.load();
+        signingKeys.put(key, new SigningKey(loaded, passwordDigest));
+        keystoreLoads++;
+        return loaded;
+    }
+
+    private byte[] passwordDigest(String keystorePassword, String keyPassword) throws NoSuchAlgorithmException {
+        var digest = MessageDigest.getInstance("SHA-256");
+        digest.update(salt);
+        digest.update(keystorePassword.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(keyPassword.getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    /**
+     * Gets a loader resource, reading it if it was not read yet.
+     */
+    synchronized byte[] resource(String name, Loader<byte[]> loader) throws Exception {
+        var bytes = resources.get(name);
+        if (bytes == null) {
+            bytes = loader.load();
+            resources.put(name, bytes);
+        }
+        return bytes;
+    }
+
+    ZFile getLoaderJar() {
+        return loaderJar;
+    }
+
+    /** Gets the pool deflating entries, {@code null} if entries are deflated where added. */
+    ExecutorService getCompressionExecutor() {
+        return compressionExecutor;
+    }
+
+    synchronized long getKeystoreLoads() {
+        return keystoreLoads;
+    }
+
+    synchronized long getKeystoreHits() {
+        return keystoreHits;
+    }
+
+    synchronized int getResourceCount() {
+        return resources.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (compressionExecutor != null)
+            compressionExecutor.shutdown();
+        if (loaderJar != null) {
+            synchronized (loaderJar) {
+                loaderJar.close();
+            }
+        }
+    }
+}
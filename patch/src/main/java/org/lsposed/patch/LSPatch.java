@@ -1,53 +1,33 @@
 package org.lsposed.patch;
 
-import static org.lsposed.lspatch.share.Constants.CONFIG_ASSET_PATH;
-import static org.lsposed.lspatch.share.Constants.EMBEDDED_MODULES_ASSET_PATH;
-import static org.lsposed.lspatch.share.Constants.LOADER_DEX_ASSET_PATH;
-import static org.lsposed.lspatch.share.Constants.ORIGINAL_APK_ASSET_PATH;
-import static org.lsposed.lspatch.share.Constants.PROXY_APP_COMPONENT_FACTORY;
-
-import com.android.tools.build.apkzlib.sign.SigningExtension;
-import com.android.tools.build.apkzlib.sign.SigningOptions;
-import com.android.tools.build.apkzlib.zip.AlignmentRules;
-import com.android.tools.build.apkzlib.zip.StoredEntry;
-import com.android.tools.build.apkzlib.zip.ZFile;
-import com.android.tools.build.apkzlib.zip.ZFileOptions;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
-import com.google.gson.Gson;
-import com.wind.meditor.core.ManifestEditor;
-import com.wind.meditor.property.AttributeItem;
-import com.wind.meditor.property.ModificationProperty;
-import com.wind.meditor.utils.NodeValue;
-
-import org.apache.commons.io.FilenameUtils;
-import org.lsposed.lspatch.share.Constants;
-import org.lsposed.lspatch.share.LSPConfig;
-import org.lsposed.lspatch.share.PatchConfig;
-import org.lsposed.patch.util.ApkSignatureHelper;
+
+import org.lsposed.patch.PatchListener.Counters;
+import org.lsposed.patch.PatchListener.Phase;
 import org.lsposed.patch.util.JavaLogger;
 import org.lsposed.patch.util.Logger;
-import org.lsposed.patch.util.ManifestParser;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.security.KeyStore;
-import java.security.cert.X509Certificate;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Objects;
-import java.util.Set;
-
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The command line: parses the arguments into {@link PatchRequest}s and patches them with a
+ * {@link PatchSession}, naming the outputs after the apks.
+ */
 public class LSPatch {
 
     static class PatchError extends Error {
@@ -93,23 +73,67 @@ public class LSPatch {
     @Parameter(names = {"-m", "--embed"}, description = "Embed provided modules to apk")
     private List<String> modules = new ArrayList<>();
 
-    private static final String ANDROID_MANIFEST_XML = "AndroidManifest.xml";
-    private static final HashSet<String> ARCHES = new HashSet<>(Arrays.asList(
-            "armeabi-v7a",
-            "arm64-v8a",
-            "x86",
-            "x86_64"
-    ));
+    @Parameter(names = {"-j", "--jobs"}, description = "Number of apks to patch concurrently. default 1")
+    private int jobs = 1;
+
+    @Parameter(names = {"-t", "--compress-threads"}, description = "Number of threads used to compress entries. 1 compresses on the patching thread. default: number of processors")
+    private int compressThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"-u", "--update"}, description = "Update already patched apks in place of original apks. The original apk and embedded modules are kept as is, while the loader, config and manifest are rebuilt with the given options")
+    private boolean updateLoader = false;
+
+    @Parameter(names = {"--max-memory"}, description = "Memory used to hold entry data, e.g. 512m or 1g, shared by all concurrent jobs. Data that does not fit is spilled to disk. default: a quarter of the max heap")
+    private String maxMemory = null;
 
-    private static final ZFileOptions Z_FILE_OPTIONS = new ZFileOptions().setAlignmentRule(AlignmentRules.compose(
-            AlignmentRules.constantForSuffix(".so", 4096),
-            AlignmentRules.constantForSuffix(ORIGINAL_APK_ASSET_PATH, 4096)
-    ));
+    @Parameter(names = {"--v4"}, description = "Also sign with APK Signature Scheme v4, writing the .idsig next to the output apk for adb install --incremental")
+    private boolean v4Signing = false;
+
+    @Parameter(names = {"--temp-dir"}, description = "Directory where data that does not fit in memory is spilled. default: system temp dir")
+    private String tempDir = null;
+
+    @Parameter(names = {"--metrics"}, description = "Write the duration and counters of each patching phase as JSON to the given file, - for standard output")
+    private String metricsPath = null;
 
     private final JCommander jCommander;
 
     private final Logger logger;
 
+    /** Opened by the first apk patched, closed once all are. */
+    private PatchSession session;
+
+    /** Artifacts shared with other instances, {@code null} if this instance loads its own. */
+    private ArtifactCache artifactCache;
+
+    private final List<PatchListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<File> outputFiles = new CopyOnWriteArrayList<>();
+
+    /** Tells all {@link #listeners}. */
+    private final PatchListener dispatcher = new PatchListener() {
+        @Override
+        public void onApkStarted(File apk, int index, int count) {
+            for (var listener : listeners)
+                listener.onApkStarted(apk, index, count);
+        }
+
+        @Override
+        public void onApkFinished(File apk, Throwable error) {
+            for (var listener : listeners)
+                listener.onApkFinished(apk, error);
+        }
+
+        @Override
+        public void onPhaseStarted(File apk, Phase phase) {
+            for (var listener : listeners)
+                listener.onPhaseStarted(apk, phase);
+        }
+
+        @Override
+        public void onPhaseFinished(File apk, Phase phase, long durationNanos, Counters counters) {
+            for (var listener : listeners)
+                listener.onPhaseFinished(apk, phase, durationNanos, counters);
+        }
+    };
+
     public LSPatch(Logger logger, String... args) {
         jCommander = JCommander.newBuilder().addObject(this).build();
         try {
@@ -126,12 +150,30 @@ public class LSPatch {
             logger.e("Should not use --embed and --manager at the same time\n");
             help = true;
         }
+        if (sigbypassLevel < 0 || sigbypassLevel > 2) {
+            logger.e("--sigbypasslv should be 0, 1 or 2\n");
+            help = true;
+        }
+        if (jobs < 1) {
+            logger.e("--jobs should be at least 1\n");
+            help = true;
+        }
+        if (compressThreads < 1) {
+            logger.e("--compress-threads should be at least 1\n");
+            help = true;
+        }
 
         this.logger = logger;
         logger.verbose = verbose;
     }
 
     public static void main(String... args) throws IOException {
+        if (args.length > 0 && args[0].equals("verify")) {
+            System.exit(new VerifyCommand(new JavaLogger(), Arrays.copyOfRange(args, 1, args.length)).run());
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            System.exit(new ServeCommand(new JavaLogger(), Arrays.copyOfRange(args, 1, args.length)).run());
+        }
         LSPatch lspatch = new LSPatch(new JavaLogger(), args);
         if (lspatch.help) {
             lspatch.jCommander.usage();
@@ -144,201 +186,208 @@ public class LSPatch {
         }
     }
 
-    public void doCommandLine() throws PatchError, IOException {
-        for (var apk : apkPaths) {
-            File srcApkFile = new File(apk).getAbsoluteFile();
+    /**
+     * Adds a listener told about the progress of patching.
+     */
+    public void addPatchListener(PatchListener listener) {
+        listeners.add(listener);
+    }
 
-            String apkFileName = srcApkFile.getName();
+    /**
+     * Makes this instance take its signing key, loader resources and compression pool from a cache
+     * instead of loading its own. Must be called before patching.
+     */
+    void setArtifactCache(ArtifactCache artifactCache) {
+        this.artifactCache = artifactCache;
+    }
 
-            var outputDir = new File(outputPath);
-            outputDir.mkdirs();
+    /** Whether the arguments are invalid or asked for help, in which case nothing can be patched. */
+    boolean isHelp() {
+        return help;
+    }
 
-            File outputFile = new File(outputDir, String.format(
-                    Locale.getDefault(), "%s-%d-lspatched.apk",
-                    FilenameUtils.getBaseName(apkFileName),
-                    LSPConfig.instance.VERSION_CODE)
-            ).getAbsoluteFile();
+    /** Gets the apks patched so far. */
+    List<File> getOutputFiles() {
+        return new ArrayList<>(outputFiles);
+    }
 
-            if (outputFile.exists() && !forceOverwrite)
-                throw new PatchError(outputPath + " exists. Use --force to overwrite");
-            logger.i("Processing " + srcApkFile + " -> " + outputFile);
+    public void doCommandLine() throws PatchError, IOException {
+        PatchMetrics metrics = null;
+        if (metricsPath != null) {
+            metrics = new PatchMetrics();
+            addPatchListener(metrics);
+        }
+        try {
+            checkDuplicateOutputs();
+            if (jobs > 1 && apkPaths.size() > 1) {
+                doBatchCommandLine();
+                return;
+            }
+            for (int i = 0; i < apkPaths.size(); i++) {
+                File srcApkFile = new File(apkPaths.get(i)).getAbsoluteFile();
+                File outputFile = getOutputFile(srcApkFile);
+                logger.i("Processing " + srcApkFile + " -> " + outputFile);
 
-            patch(srcApkFile, outputFile);
+                patch(srcApkFile, outputFile, i);
+            }
+        } finally {
+            closeSession();
+            if (metrics != null) {
+                listeners.remove(metrics);
+                writeMetrics(metrics);
+            }
         }
     }
 
-    public void patch(File srcApkFile, File outputFile) throws PatchError, IOException {
-        if (!srcApkFile.exists())
-            throw new PatchError("The source apk file does not exit. Please provide a correct path.");
-
-        outputFile.delete();
-
-        logger.d("apk path: " + srcApkFile);
-
-        logger.i("Parsing original apk...");
+    private void writeMetrics(PatchMetrics metrics) throws IOException {
+        if (metricsPath.equals("-")) {
+            System.out.println(metrics.toJson());
+        } else {
+            Files.writeString(new File(metricsPath).toPath(), metrics.toJson());
+            logger.i("Metrics written to " + metricsPath);
+        }
+    }
 
-        try (var dstZFile = ZFile.openReadWrite(outputFile, Z_FILE_OPTIONS);
-             var srcZFile = dstZFile.addNestedZip((ignore) -> ORIGINAL_APK_ASSET_PATH, srcApkFile, false)) {
+    /**
+     * Patches all apks on a pool of {@link #jobs} workers. A failing apk does not abort the batch,
+     * failures are reported per apk and summarized once all apks are processed.
+     */
+    private void doBatchCommandLine() throws PatchError {
+        openSession();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobs, apkPaths.size()));
+        long startTime = System.nanoTime();
+        List<Future<Long>> results = new ArrayList<>();
+        for (int i = 0; i < apkPaths.size(); i++) {
+            var apk = apkPaths.get(i);
+            var index = i;
+            results.add(executor.submit(() -> {
+                File srcApkFile = new File(apk).getAbsoluteFile();
+                File outputFile = getOutputFile(srcApkFile);
+                logger.i("Processing " + srcApkFile + " -> " + outputFile);
+                patch(srcApkFile, outputFile, index);
+                return srcApkFile.length();
+            }));
+        }
+        executor.shutdown();
 
-            // sign apk
+        int failed = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < results.size(); i++) {
+            var apk = apkPaths.get(i);
             try {
-                var keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
-                if (keystoreArgs.get(0) == null) {
-                    logger.i("Register apk signer with default keystore...");
-                    try (var is = getClass().getClassLoader().getResourceAsStream("assets/keystore")) {
-                        keyStore.load(is, keystoreArgs.get(1).toCharArray());
-                    }
-                } else {
-                    logger.i("Register apk signer with custom keystore...");
-                    try (var is = new FileInputStream(keystoreArgs.get(0))) {
-                        keyStore.load(is, keystoreArgs.get(1).toCharArray());
-                    }
-                }
-                var entry = (KeyStore.PrivateKeyEntry) keyStore.getEntry(keystoreArgs.get(2), new KeyStore.PasswordProtection(keystoreArgs.get(3).toCharArray()));
-                new SigningExtension(SigningOptions.builder()
-                        .setMinSdkVersion(28)
-                        .setV2SigningEnabled(true)
-                        .setCertificates((X509Certificate[]) entry.getCertificateChain())
-                        .setKey(entry.getPrivateKey())
-                        .build()).register(dstZFile);
-            } catch (Exception e) {
-                throw new PatchError("Failed to register signer", e);
-            }
-
-            String originalSignature = null;
-            if (sigbypassLevel > 0) {
-                originalSignature  = ApkSignatureHelper.getApkSignInfo(srcApkFile.getAbsolutePath());
-                if (originalSignature == null || originalSignature.isEmpty()) {
-                    throw new PatchError("get original signature failed");
-                }
-                logger.d("Original signature\n" + originalSignature);
+                totalBytes += results.get(i).get();
+                logger.i("  [OK] " + apk);
+            } catch (ExecutionException e) {
+                failed++;
+                logger.e("  [FAILED] " + apk + ": " + e.getCause());
+                if (verbose) e.getCause().printStackTrace(System.err);
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new PatchError("Interrupted while patching", e);
             }
+        }
 
-            // copy out manifest file from zlib
-            var manifestEntry = srcZFile.get(ANDROID_MANIFEST_XML);
-            if (manifestEntry == null)
-                throw new PatchError("Provided file is not a valid apk");
-
-            // parse the app appComponentFactory full name from the manifest file
-            final String appComponentFactory;
-            int minSdkVersion;
-            try (var is = manifestEntry.open()) {
-                var pair = ManifestParser.parseManifestFile(is);
-                if (pair == null)
-                    throw new PatchError("Failed to parse AndroidManifest.xml");
-                appComponentFactory = pair.appComponentFactory;
-                minSdkVersion = pair.minSdkVersion;
-                logger.d("original appComponentFactory class: " + appComponentFactory);
-                logger.d("original minSdkVersion: " + minSdkVersion);
-            }
+        double seconds = Math.max((System.nanoTime() - startTime) / 1e9, 1e-3);
+        int succeeded = apkPaths.size() - failed;
+        logger.i(String.format(Locale.ROOT, "Patched %d/%d apks in %.2fs (%.2f apks/s, %.2f MB/s)",
+                succeeded, apkPaths.size(), seconds, succeeded / seconds, totalBytes / seconds / (1024 * 1024)));
+        if (failed > 0)
+            throw new PatchError(failed + " of " + apkPaths.size() + " apks failed to patch");
+    }
 
-            logger.i("Patching apk...");
-            // modify manifest
-            final var config = new PatchConfig(useManager, debuggableFlag, overrideVersionCode, sigbypassLevel, originalSignature, appComponentFactory);
-            final var configBytes = new Gson().toJson(config).getBytes(StandardCharsets.UTF_8);
-            final var metadata = Base64.getEncoder().encodeToString(configBytes);
-            try (var is = new ByteArrayInputStream(modifyManifestFile(manifestEntry.open(), metadata, minSdkVersion))) {
-                dstZFile.add(ANDROID_MANIFEST_XML, is);
-            } catch (Throwable e) {
-                throw new PatchError("Error when modifying manifest", e);
-            }
+    /**
+     * Fails before anything is patched if two apks would be written to the same output file, as
+     * the output name only depends on the base name of the apk.
+     */
+    private void checkDuplicateOutputs() throws PatchError {
+        Map<File, String> outputs = new HashMap<>();
+        for (var apk : apkPaths) {
+            var outputFile = outputFileOf(new File(apk).getAbsoluteFile());
+            var previous = outputs.putIfAbsent(outputFile, apk);
+            if (previous != null)
+                throw new PatchError(previous + " and " + apk + " would both be written to " + outputFile
+                        + ". Patch them with different --output directories");
+        }
+    }
 
-            logger.i("Adding config...");
-            // save lspatch config to asset..
-            try (var is = new ByteArrayInputStream(configBytes)) {
-                dstZFile.add(CONFIG_ASSET_PATH, is);
-            } catch (Throwable e) {
-                throw new PatchError("Error when saving config");
-            }
+    private File outputFileOf(File srcApkFile) {
+        return new File(outputPath, PatchRequest.defaultOutputName(srcApkFile, updateLoader)).getAbsoluteFile();
+    }
 
-            logger.i("Adding metaloader dex...");
-            try (var is = getClass().getClassLoader().getResourceAsStream(Constants.META_LOADER_DEX_ASSET_PATH)) {
-                dstZFile.add("classes.dex", is);
-            } catch (Throwable e) {
-                throw new PatchError("Error when adding dex", e);
-            }
+    private File getOutputFile(File srcApkFile) throws PatchError {
+        new File(outputPath).mkdirs();
 
-            if (!useManager) {
-                logger.i("Adding loader dex...");
-                try (var is = getClass().getClassLoader().getResourceAsStream(LOADER_DEX_ASSET_PATH)) {
-                    dstZFile.add(LOADER_DEX_ASSET_PATH, is);
-                } catch (Throwable e) {
-                    throw new PatchError("Error when adding assets", e);
-                }
-
-                logger.i("Adding native lib...");
-                // copy so and dex files into the unzipped apk
-                // do not put liblspatch.so into apk!lib because x86 native bridge causes crash
-                for (String arch : ARCHES) {
-                    String entryName = "assets/lspatch/so/" + arch + "/liblspatch.so";
-                    try (var is = getClass().getClassLoader().getResourceAsStream(entryName)) {
-                        dstZFile.add(entryName, is, false); // no compress for so
-                    } catch (Throwable e) {
-                        // More exception info
-                        throw new PatchError("Error when adding native lib", e);
-                    }
-                    logger.d("added " + entryName);
-                }
-
-                logger.i("Embedding modules...");
-                embedModules(dstZFile);
-            }
+        File outputFile = outputFileOf(srcApkFile);
 
-            // create zip link
-            logger.d("Creating nested apk link...");
+        if (outputFile.equals(srcApkFile))
+            throw new PatchError(outputFile + " would overwrite the source apk. Use --output to write it elsewhere");
+        if (outputFile.exists() && !forceOverwrite)
+            throw new PatchError(outputFile + " exists. Use --force to overwrite");
+        return outputFile;
+    }
 
-            for (StoredEntry entry : srcZFile.entries()) {
-                String name = entry.getCentralDirectoryHeader().getName();
-                if (name.startsWith("classes") && name.endsWith(".dex")) continue;
-                if (dstZFile.get(name) != null) continue;
-                if (name.equals("AndroidManifest.xml")) continue;
-                if (name.startsWith("META-INF") && (name.endsWith(".SF") || name.endsWith(".MF") || name.endsWith(".RSA"))) continue;
-                srcZFile.addFileLink(name, name);
-            }
+    /**
+     * Parses a size such as {@code 1048576}, {@code 512k}, {@code 512m} or {@code 1g}.
+     */
+    private static long parseSize(String size) throws PatchError {
+        var value = size.trim().toLowerCase(Locale.ROOT);
+        int shift = 0;
+        if (value.endsWith("k")) shift = 10;
+        else if (value.endsWith("m")) shift = 20;
+        else if (value.endsWith("g")) shift = 30;
+        if (shift != 0) value = value.substring(0, value.length() - 1);
+        try {
+            long bytes = Long.parseLong(value);
+            if (bytes < 0 || bytes > Long.MAX_VALUE >> shift) throw new NumberFormatException();
+            return bytes << shift;
+        } catch (NumberFormatException e) {
+            throw new PatchError("Invalid size: " + size);
+        }
+    }
 
-            dstZFile.realign();
+    private synchronized PatchSession openSession() throws PatchError {
+        if (session != null) return session;
+
+        var builder = PatchSession.builder()
+                .setLogger(logger)
+                .setCompressThreads(compressThreads)
+                .setArtifactCache(artifactCache);
+        if (keystoreArgs.get(0) != null)
+            builder.setKeystore(new File(keystoreArgs.get(0)), keystoreArgs.get(1), keystoreArgs.get(2), keystoreArgs.get(3));
+        // each job has its own output zip, and the budget applies to each zip
+        long memoryBudget = maxMemory != null ? parseSize(maxMemory) : Runtime.getRuntime().maxMemory() / 4;
+        builder.setMemoryBudget(memoryBudget / Math.max(1, jobs));
+        if (tempDir != null)
+            builder.setTempDir(new File(tempDir));
+        session = builder.build();
+        return session;
+    }
 
-            logger.i("Writing apk...");
+    private synchronized void closeSession() throws IOException {
+        if (session != null) {
+            session.close();
+            session = null;
         }
-        logger.i("Done. Output APK: " + outputFile.getAbsolutePath());
     }
 
-    private void embedModules(ZFile zFile) {
-        for (var module : modules) {
-            File file = new File(module);
-            try (var apk = ZFile.openReadOnly(new File(module));
-                 var fileIs = new FileInputStream(file);
-                 var xmlIs = Objects.requireNonNull(apk.get(ANDROID_MANIFEST_XML)).open()
-            ) {
-                var manifest = Objects.requireNonNull(ManifestParser.parseManifestFile(xmlIs));
-                var packageName = manifest.packageName;
-                logger.i("  - " + packageName);
-                zFile.add(EMBEDDED_MODULES_ASSET_PATH + packageName + ".apk", fileIs);
-            } catch (NullPointerException | IOException e) {
-                logger.e(module + " does not exist or is not a valid apk file.");
-            }
-        }
+    public void patch(File srcApkFile, File outputFile) throws PatchError, IOException {
+        patch(srcApkFile, outputFile, 0);
     }
 
-    private byte[] modifyManifestFile(InputStream is, String metadata, int minSdkVersion) throws IOException {
-        ModificationProperty property = new ModificationProperty();
-
-        if (overrideVersionCode)
-            property.addManifestAttribute(new AttributeItem(NodeValue.Manifest.VERSION_CODE, 1));
-        if (minSdkVersion < 28)
-            property.addUsesSdkAttribute(new AttributeItem(NodeValue.UsesSDK.MIN_SDK_VERSION, "28"));
-        property.addApplicationAttribute(new AttributeItem(NodeValue.Application.DEBUGGABLE, debuggableFlag));
-        property.addApplicationAttribute(new AttributeItem("appComponentFactory", PROXY_APP_COMPONENT_FACTORY));
-        property.addMetaData(new ModificationProperty.MetaData("lspatch", metadata));
-        // TODO: replace query_all with queries -> manager
-        if (useManager)
-            property.addUsesPermission("android.permission.QUERY_ALL_PACKAGES");
-
-        var os = new ByteArrayOutputStream();
-        (new ManifestEditor(is, os, property)).processManifest();
-        is.close();
-        os.flush();
-        os.close();
-        return os.toByteArray();
+    private void patch(File srcApkFile, File outputFile, int index) throws PatchError, IOException {
+        var request = PatchRequest.builder(srcApkFile, outputFile)
+                .setOverwrite(forceOverwrite)
+                .setDebuggable(debuggableFlag)
+                .setSigBypassLevel(sigbypassLevel)
+                .setUseManager(useManager)
+                .setOverrideVersionCode(overrideVersionCode)
+                .setUpdate(updateLoader)
+                .setV4Signing(v4Signing);
+        for (var module : modules)
+            request.addModule(new File(module));
+        var result = openSession().patch(request.build(), dispatcher, index, apkPaths.size());
+        outputFiles.add(result.output);
     }
 }
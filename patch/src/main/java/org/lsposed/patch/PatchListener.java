@@ -0,0 +1,102 @@
+package org.lsposed.patch;
+
+import java.io.File;
+
+/**
+ * Receives the progress of {@link PatchSession}: apks being patched and the phases of each. Phases
+ * run in the order they are declared, but phases that have nothing to do are not reported.
+ * Listeners may be called from several threads when apks are patched concurrently.
+ */
+public interface PatchListener {
+
+    /** Phases of patching. */
+    enum Phase {
+        /** Loading the signing key; once per run, reported without an apk. */
+        LOAD_KEYSTORE,
+        /** Reading the signature of the original apk for signature bypass. */
+        EXTRACT_SIGNATURE,
+        /** Parsing and editing the manifest. */
+        EDIT_MANIFEST,
+        /** Adding the config, the loader dex and the native libraries. */
+        ADD_LOADER,
+        /** Embedding modules. */
+        EMBED_MODULES,
+        /** Linking the entries of the original apk. */
+        LINK_ENTRIES,
+        /** Aligning stored entries. */
+        REALIGN,
+        /** Writing the output apk. */
+        WRITE,
+        /** Signing the output apk. */
+        SIGN
+    }
+
+    /** What a phase did. Fields are public so that counters can be serialized. */
+    class Counters {
+        /** Entries of the original apk linked instead of copied. */
+        public long entriesLinked;
+        /** Bytes copied to the output without being recompressed. */
+        public long bytesCopied;
+        /** Bytes run through deflate. */
+        public long bytesCompressed;
+        /** Bytes of the output apk written. */
+        public long bytesWritten;
+
+        Counters copy() {
+            var copy = new Counters();
+            copy.entriesLinked = entriesLinked;
+            copy.bytesCopied = bytesCopied;
+            copy.bytesCompressed = bytesCompressed;
+            copy.bytesWritten = bytesWritten;
+            return copy;
+        }
+
+        /** Gets the counts since {@code start}, a copy of these counters taken earlier. */
+        Counters since(Counters start) {
+            var delta = new Counters();
+            delta.entriesLinked = entriesLinked - start.entriesLinked;
+            delta.bytesCopied = bytesCopied - start.bytesCopied;
+            delta.bytesCompressed = bytesCompressed - start.bytesCompressed;
+            delta.bytesWritten = bytesWritten - start.bytesWritten;
+            return delta;
+        }
+
+        void add(Counters counters) {
+            entriesLinked += counters.entriesLinked;
+            bytesCopied += counters.bytesCopied;
+            bytesCompressed += counters.bytesCompressed;
+            bytesWritten += counters.bytesWritten;
+        }
+    }
+
+    /**
+     * An apk starts being patched.
+     *
+     * @param index index of the apk among those of the run
+     * @param count number of apks in the run
+     */
+    default void onApkStarted(File apk, int index, int count) {
+    }
+
+    /** An apk has been patched, or failed to be if {@code error} is set. */
+    default void onApkFinished(File apk, Throwable error) {
+    }
+
+    /**
+     * A phase starts.
+     *
+     * @param apk the apk being patched, {@code null} for phases of the whole run
+     */
+    default void onPhaseStarted(File apk, Phase phase) {
+    }
+
+    /**
+     * A phase is done.
+     *
+     * @param apk the apk being patched, {@code null} for phases of the whole run
+     * @param durationNanos how long the phase took
+     * @param counters what the phase did
+     */
+    default void onPhaseFinished(File apk, Phase phase, long durationNanos, Counters counters) {
+    }
+}
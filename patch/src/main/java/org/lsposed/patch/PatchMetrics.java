@@ -0,0 +1,78 @@
+package org.lsposed.patch;
+
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link PatchListener} recording every phase, to be dumped as JSON once patching is done.
+ */
+public class PatchMetrics implements PatchListener {
+
+    /** A finished phase. */
+    public static class Event {
+        /** The apk, {@code null} for phases of the whole run. */
+        public final String apk;
+        public final Phase phase;
+        public final double millis;
+        public final Counters counters;
+
+        Event(String apk, Phase phase, double millis, Counters counters) {
+            this.apk = apk;
+            this.phase = phase;
+            this.millis = millis;
+            this.counters = counters;
+        }
+    }
+
+    /** Sum of the events of a phase. */
+    public static class Total {
+        public int count;
+        public double millis;
+        public final Counters counters = new Counters();
+    }
+
+    private final List<Event> events = new ArrayList<>();
+    private final List<String> failedApks = new ArrayList<>();
+
+    @Override
+    public synchronized void onApkFinished(File apk, Throwable error) {
+        if (error != null)
+            failedApks.add(apk.getPath());
+    }
+
+    @Override
+    public synchronized void onPhaseFinished(File apk, Phase phase, long durationNanos, Counters counters) {
+        events.add(new Event(apk != null ? apk.getPath() : null, phase, durationNanos / 1e6, counters.copy()));
+    }
+
+    public synchronized List<Event> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    /** Sums the events of each phase. */
+    public synchronized Map<Phase, Total> getTotals() {
+        Map<Phase, Total> totals = new EnumMap<>(Phase.class);
+        for (var event : events) {
+            var total = totals.computeIfAbsent(event.phase, phase -> new Total());
+            total.count++;
+            total.millis += event.millis;
+            total.counters.add(event.counters);
+        }
+        return totals;
+    }
+
+    /** Dumps the events, the totals of each phase and the apks that failed. */
+    public synchronized String toJson() {
+        var json = new LinkedHashMap<String, Object>();
+        json.put("events", events);
+        json.put("totals", getTotals());
+        json.put("failedApks", failedApks);
+        return new GsonBuilder().setPrettyPrinting().create().toJson(json);
+    }
+}
@@ -0,0 +1,184 @@
+package org.lsposed.patch;
+
+import org.apache.commons.io.FilenameUtils;
+import org.lsposed.lspatch.share.LSPConfig;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An apk to patch with a {@link PatchSession}, and how. Built with {@link #builder(File, File)}.
+ */
+public final class PatchRequest {
+
+    private final File apk;
+    private final File output;
+    private final boolean overwrite;
+    private final boolean debuggable;
+    private final int sigBypassLevel;
+    private final boolean useManager;
+    private final boolean overrideVersionCode;
+    private final List<File> modules;
+    private final boolean update;
+    private final boolean v4Signing;
+
+    private PatchRequest(Builder builder) {
+        apk = builder.apk;
+        output = builder.output;
+        overwrite = builder.overwrite;
+        debuggable = builder.debuggable;
+        sigBypassLevel = builder.sigBypassLevel;
+        useManager = builder.useManager;
+        overrideVersionCode = builder.overrideVersionCode;
+        modules = Collections.unmodifiableList(new ArrayList<>(builder.modules));
+        update = builder.update;
+        v4Signing = builder.v4Signing;
+    }
+
+    /**
+     * Starts a request.
+     *
+     * @param apk the apk to patch, or an apk patched before in {@linkplain Builder#setUpdate update}
+     *     mode
+     * @param output where the patched apk is written
+     */
+    public static Builder builder(File apk, File output) {
+        return new Builder(apk, output);
+    }
+
+    /**
+     * Gets the name the command line gives to the patched apk, e.g. {@code app-1-lspatched.apk}.
+     *
+     * @param update whether {@code apk} is a patched apk being updated, whose version suffix is
+     *     replaced instead of appended to
+     */
+    public static String defaultOutputName(File apk, boolean update) {
+        var baseName = FilenameUtils.getBaseName(apk.getName());
+        if (update)
+            baseName = baseName.replaceFirst("-\\d+-lspatched$", "");
+        return String.format(Locale.ROOT, "%s-%d-lspatched.apk", baseName, LSPConfig.instance.VERSION_CODE);
+    }
+
+    public File getApk() {
+        return apk;
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    public boolean isOverwrite() {
+        return overwrite;
+    }
+
+    public boolean isDebuggable() {
+        return debuggable;
+    }
+
+    public int getSigBypassLevel() {
+        return sigBypassLevel;
+    }
+
+    public boolean isUseManager() {
+        return useManager;
+    }
+
+    public boolean isOverrideVersionCode() {
+        return overrideVersionCode;
+    }
+
+    public List<File> getModules() {
+        return modules;
+    }
+
+    public boolean isUpdate() {
+        return update;
+    }
+
+    public boolean isV4Signing() {
+        return v4Signing;
+    }
+
+    public static final class Builder {
+        private final File apk;
+        private final File output;
+        private boolean overwrite = false;
+        private boolean debuggable = false;
+        private int sigBypassLevel = 0;
+        private boolean useManager = false;
+        private boolean overrideVersionCode = false;
+        private final List<File> modules = new ArrayList<>();
+        private boolean update = false;
+        private boolean v4Signing = false;
+
+        private Builder(File apk, File output) {
+            this.apk = apk.getAbsoluteFile();
+            this.output = output.getAbsoluteFile();
+        }
+
+        /** Replaces the output if it exists, instead of failing. */
+        public Builder setOverwrite(boolean overwrite) {
+            this.overwrite = overwrite;
+            return this;
+        }
+
+        /** Makes the app debuggable. */
+        public Builder setDebuggable(boolean debuggable) {
+            this.debuggable = debuggable;
+            return this;
+        }
+
+        /** Sets the signature bypass level: 0 (disable), 1 (pm) or 2 (pm+openat). */
+        public Builder setSigBypassLevel(int sigBypassLevel) {
+            this.sigBypassLevel = sigBypassLevel;
+            return this;
+        }
+
+        /** Loads modules from the manager instead of embedding them. */
+        public Builder setUseManager(boolean useManager) {
+            this.useManager = useManager;
+            return this;
+        }
+
+        /** Overrides the versionCode to 1, so that the app can be downgraded. */
+        public Builder setOverrideVersionCode(boolean overrideVersionCode) {
+            this.overrideVersionCode = overrideVersionCode;
+            return this;
+        }
+
+        /** Adds a module apk to embed. */
+        public Builder addModule(File module) {
+            modules.add(module);
+            return this;
+        }
+
+        /**
+         * Updates an apk patched before: its original apk and embedded modules are kept as is,
+         * while the loader, config and manifest are rebuilt with the options of this request.
+         */
+        public Builder setUpdate(boolean update) {
+            this.update = update;
+            return this;
+        }
+
+        /** Also signs with APK Signature Scheme v4, writing the .idsig next to the output. */
+        public Builder setV4Signing(boolean v4Signing) {
+            this.v4Signing = v4Signing;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the options do not go together
+         */
+        public PatchRequest build() {
+            if (sigBypassLevel < 0 || sigBypassLevel > 2)
+                throw new IllegalArgumentException("Signature bypass level should be 0, 1 or 2");
+            if (useManager && !modules.isEmpty())
+                throw new IllegalArgumentException("Cannot embed modules when using the manager");
+            return new PatchRequest(this);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.lsposed.patch;
+
+import org.lsposed.patch.PatchListener.Counters;
+
+import java.io.File;
+
+/**
+ * An apk patched by a {@link PatchSession}. Fields are public so that results can be serialized.
+ */
+public class PatchResult {
+    public final File apk;
+    public final File output;
+    /** The APK Signature Scheme v4 signature, {@code null} if it was not requested. */
+    public final File v4Signature;
+    public final long timeMillis;
+    /** What all phases did together. */
+    public final Counters counters;
+
+    PatchResult(File apk, File output, File v4Signature, long timeMillis, Counters counters) {
+        this.apk = apk;
+        this.output = output;
+        this.v4Signature = v4Signature;
+        this.timeMillis = timeMillis;
+        this.counters = counters;
+    }
+}
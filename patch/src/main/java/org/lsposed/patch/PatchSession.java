@@ -0,0 +1,733 @@
+package org.lsposed.patch;
+
+import static org.lsposed.lspatch.share.Constants.CONFIG_ASSET_PATH;
+import static org.lsposed.lspatch.share.Constants.EMBEDDED_MODULES_ASSET_PATH;
+import static org.lsposed.lspatch.share.Constants.LOADER_DEX_ASSET_PATH;
+import static org.lsposed.lspatch.share.Constants.ORIGINAL_APK_ASSET_PATH;
+import static org.lsposed.lspatch.share.Constants.PROXY_APP_COMPONENT_FACTORY;
+
+import com.android.apksig.util.RunnablesExecutor;
+import com.android.tools.build.apkzlib.bytestorage.ChunkBasedByteStorage;
+import com.android.tools.build.apkzlib.bytestorage.OverflowToDiskByteStorage;
+import com.android.tools.build.apkzlib.sign.SigningExtension;
+import com.android.tools.build.apkzlib.sign.SigningOptions;
+import com.android.tools.build.apkzlib.zip.AlignmentRule;
+import com.android.tools.build.apkzlib.zip.AlignmentRules;
+import com.android.tools.build.apkzlib.zip.CompressionPolicies;
+import com.android.tools.build.apkzlib.zip.CompressionPolicy;
+import com.android.tools.build.apkzlib.zip.CompressionStats;
+import com.android.tools.build.apkzlib.zip.StoredEntry;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.android.tools.build.apkzlib.zip.ZFileOptions;
+import com.android.tools.build.apkzlib.zip.compress.DeflateExecutionCompressor;
+import com.google.common.io.ByteStreams;
+import com.google.gson.Gson;
+import com.wind.meditor.core.ManifestEditor;
+import com.wind.meditor.property.AttributeItem;
+import com.wind.meditor.property.ModificationProperty;
+import com.wind.meditor.utils.NodeValue;
+
+import org.lsposed.lspatch.share.Constants;
+import org.lsposed.lspatch.share.PatchConfig;
+import org.lsposed.patch.LSPatch.PatchError;
+import org.lsposed.patch.PatchListener.Counters;
+import org.lsposed.patch.PatchListener.Phase;
+import org.lsposed.patch.util.ApkSignatureHelper;
+import org.lsposed.patch.util.Logger;
+import org.lsposed.patch.util.ManifestParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+/**
+ * Patches apks described by {@link PatchRequest}s. A session holds what all apks need: the signing
+ * key, the loader dex and native libraries, and the pool compressing entries, so that they are
+ * loaded once however many apks are patched. The key and loader are loaded by the first patch.
+ *
+ * <p>Sessions are thread-safe: several apks can be patched at the same time, each on its own
+ * thread. Patching is cancelled by interrupting its thread, e.g. with
+ * {@link java.util.concurrent.Future#cancel(boolean)}; the partial output is then deleted and a
+ * {@link CancellationException} is thrown.
+ */
+public class PatchSession implements Closeable {
+
+    private static final String ANDROID_MANIFEST_XML = "AndroidManifest.xml";
+    private static final HashSet<String> ARCHES = new HashSet<>(Arrays.asList(
+            "armeabi-v7a",
+            "arm64-v8a",
+            "x86",
+            "x86_64"
+    ));
+
+    static final AlignmentRule ALIGNMENT_RULE = AlignmentRules.compose(
+            AlignmentRules.constantForSuffix(".so", 4096),
+            AlignmentRules.constantForSuffix(ORIGINAL_APK_ASSET_PATH, 4096)
+    );
+
+    // embedded modules and media are already compressed, don't waste time deflating them again
+    private static final CompressionPolicy COMPRESSION_POLICY = CompressionPolicies.compose(
+            CompressionPolicies.storeCompressedFormats(),
+            CompressionPolicies.storeIfIncompressible(4096, 7.5)
+    );
+
+    private static final PatchListener NO_LISTENER = new PatchListener() {
+    };
+
+    /**
+     * Opens an apk or jar that is only read from. Inputs are memory-mapped, so parsing their central
+     * directories and local headers does not take a system call per read. Only a few entries are
+     * needed from each input, so their central directories are parsed lazily. Patched apks given to
+     * --update hold the entries linked into origin.apk, so entries nested in stored entries are
+     * accepted.
+     */
+    private static ZFile openInput(File file) throws IOException {
+        return ZFile.openReadOnly(file, new ZFileOptions()
+                .setMemoryMapReadOnly(true)
+                .setLazyCentralDirectory(true)
+                .setNestedEntriesAllowed(true));
+    }
+
+    private final Logger logger;
+    private final List<String> keystoreArgs;
+    private final ZFileOptions zFileOptions;
+
+    /** Artifacts shared with other sessions, {@code null} if this session loads its own. */
+    private final ArtifactCache artifactCache;
+
+    /**
+     * Deflates entries of all apks in the background, so that adding entries overlaps with their
+     * compression. {@code null} if entries are deflated where they are added, or if the pool is
+     * owned by the {@link #artifactCache}.
+     */
+    private final ExecutorService compressionExecutor;
+
+    /** Loaded by the first patch, see {@link #loadArtifacts(PatchListener)}. */
+    private KeyStore.PrivateKeyEntry signingKey;
+    private final Map<String, byte[]> loaderArtifacts = new HashMap<>();
+
+    /**
+     * The jar LSPatch runs from, if any. Loader dex files found in it are copied into the apk still
+     * deflated, instead of being inflated by the class loader and deflated again for every apk.
+     */
+    private ZFile loaderJar;
+
+    private boolean closed = false;
+
+    private PatchSession(Builder builder) {
+        logger = builder.logger;
+        keystoreArgs = Arrays.asList(builder.keystorePath, builder.keystorePassword, builder.keyAlias, builder.keyPassword);
+        artifactCache = builder.artifactCache;
+
+        zFileOptions = new ZFileOptions().setAlignmentRule(ALIGNMENT_RULE).setCompressionPolicy(COMPRESSION_POLICY);
+        zFileOptions.setMemoryBudget(builder.memoryBudget);
+        if (builder.tempDir != null)
+            zFileOptions.setSpillDirectory(builder.tempDir);
+        ExecutorService executor = null;
+        ExecutorService ownExecutor = null;
+        if (builder.compressThreads > 1) {
+            // a shared pool is sized by its owner, compressThreads only turns it on
+            executor = artifactCache != null ? artifactCache.getCompressionExecutor() : null;
+            if (executor == null)
+                executor = ownExecutor = new ForkJoinPool(builder.compressThreads);
+            zFileOptions.setCompressor(new DeflateExecutionCompressor(executor, Deflater.DEFAULT_COMPRESSION));
+        }
+        compressionExecutor = ownExecutor;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Patches an apk.
+     *
+     * @param listener told about the progress, may be {@code null}
+     * @throws CancellationException if the thread was interrupted
+     */
+    public PatchResult patch(PatchRequest request, PatchListener listener) throws IOException {
+        return patch(request, listener, 0, 1);
+    }
+
+    /**
+     * Patches an apk of a batch.
+     *
+     * @param listener told about the progress, may be {@code null}
+     * @param index index of the apk among those of the batch, told to the listener
+     * @param count number of apks in the batch, told to the listener
+     * @throws CancellationException if the thread was interrupted
+     */
+    public PatchResult patch(PatchRequest request, PatchListener listener, int index, int count) throws IOException {
+        if (listener == null) listener = NO_LISTENER;
+        var apk = request.getApk();
+        listener.onApkStarted(apk, index, count);
+        try {
+            var result = doPatch(request, listener);
+            listener.onApkFinished(apk, null);
+            return result;
+        } catch (Throwable t) {
+            if (Thread.currentThread().isInterrupted() || t instanceof ClosedByInterruptException) {
+                request.getOutput().delete();
+                v4SignatureFile(request.getOutput()).delete();
+                var cancellation = t instanceof CancellationException ? (CancellationException) t
+                        : new CancellationException("Patching " + apk + " was cancelled");
+                if (cancellation != t)
+                    cancellation.initCause(t);
+                listener.onApkFinished(apk, cancellation);
+                throw cancellation;
+            }
+            listener.onApkFinished(apk, t);
+            throw t;
+        }
+    }
+
+    private static File v4SignatureFile(File output) {
+        return new File(output.getPath() + ".idsig");
+    }
+
+    /**
+     * Loads the signing key and the loader resources from the classpath, or takes them from the
+     * {@link #artifactCache}. Does nothing if they are already loaded, so that a batch pays for them
+     * only once.
+     */
+    private synchronized void loadArtifacts(PatchListener listener) throws PatchError {
+        if (closed)
+            throw new IllegalStateException("Session is closed");
+        if (signingKey != null) return;
+
+        var tracker = new PhaseTracker(null, listener);
+        tracker.start(Phase.LOAD_KEYSTORE);
+        try {
+            signingKey = artifactCache != null
+                    ? artifactCache.signingKey(keystoreArgs, this::loadSigningKey)
+                    : loadSigningKey();
+        } catch (Exception e) {
+            throw new PatchError("Failed to register signer", e);
+        }
+        tracker.finish();
+
+        loaderJar = artifactCache != null ? artifactCache.getLoaderJar() : openLoaderJar(logger);
+    }
+
+    private KeyStore.PrivateKeyEntry loadSigningKey() throws Exception {
+        var keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        if (keystoreArgs.get(0) == null) {
+            logger.i("Register apk signer with default keystore...");
+            try (var is = getClass().getClassLoader().getResourceAsStream("assets/keystore")) {
+                keyStore.load(is, keystoreArgs.get(1).toCharArray());
+            }
+        } else {
+            logger.i("Register apk signer with custom keystore...");
+            try (var is = new FileInputStream(keystoreArgs.get(0))) {
+                keyStore.load(is, keystoreArgs.get(1).toCharArray());
+            }
+        }
+        return (KeyStore.PrivateKeyEntry) keyStore.getEntry(keystoreArgs.get(2), new KeyStore.PasswordProtection(keystoreArgs.get(3).toCharArray()));
+    }
+
+    /**
+     * Gets a loader resource, reading it from the classpath the first time.
+     */
+    private synchronized byte[] loaderArtifact(String name) throws PatchError {
+        var bytes = loaderArtifacts.get(name);
+        if (bytes != null) return bytes;
+        try {
+            bytes = artifactCache != null
+                    ? artifactCache.resource(name, () -> readResource(name))
+                    : readResource(name);
+        } catch (Exception e) {
+            throw new PatchError("Error when loading " + name, e);
+        }
+        loaderArtifacts.put(name, bytes);
+        return bytes;
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        try (var is = PatchSession.class.getClassLoader().getResourceAsStream(name)) {
+            if (is == null)
+                throw new PatchError("Missing " + name + " in lspatch resources");
+            return ByteStreams.toByteArray(is);
+        }
+    }
+
+    /**
+     * Describes how much entry data of a zip was kept in memory and how much was spilled to disk.
+     * Must be called before the zip is closed.
+     */
+    private static String describeStorage(ZFile zFile) {
+        var storage = zFile.getStorage();
+        if (storage instanceof ChunkBasedByteStorage)
+            storage = ((ChunkBasedByteStorage) storage).getDelegate();
+        if (!(storage instanceof OverflowToDiskByteStorage))
+            return "peak " + storage.getMaxBytesUsed() + " bytes";
+        var overflow = (OverflowToDiskByteStorage) storage;
+        return String.format(Locale.ROOT,
+                "%d bytes in memory (peak %d), %d bytes on disk (peak %d), %d spills (%d bytes), %d reloads",
+                overflow.getMemoryBytesUsed(), overflow.getMaxMemoryBytesUsed(),
+                overflow.getDiskBytesUsed(), overflow.getMaxDiskBytesUsed(),
+                overflow.getSpillCount(), overflow.getSpilledBytes(), overflow.getReloadCount());
+    }
+
+    static ZFile openLoaderJar(Logger logger) {
+        var domain = PatchSession.class.getProtectionDomain();
+        if (domain == null || domain.getCodeSource() == null) return null;
+        try {
+            var jarFile = new File(domain.getCodeSource().getLocation().toURI());
+            if (!jarFile.isFile()) return null;
+            return openInput(jarFile);
+        } catch (Exception e) {
+            logger.d("Cannot open lspatch jar, loader dex will be recompressed: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Releases the key, the loader resources and the compression pool. Apks being patched must be
+     * done first.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        signingKey = null;
+        loaderArtifacts.clear();
+        if (compressionExecutor != null)
+            compressionExecutor.shutdown();
+        if (loaderJar != null) {
+            // a shared jar is closed by the cache
+            if (artifactCache == null)
+                loaderJar.close();
+            loaderJar = null;
+        }
+    }
+
+    private void addLoaderArtifact(ZFile dstZFile, String name, String entryName, Counters counters) throws IOException {
+        // the loader dex is copied from the jar still deflated, see loaderJar
+        if (loaderJar != null && name.endsWith(".dex")) {
+            synchronized (loaderJar) {
+                var entry = loaderJar.get(name);
+                if (entry != null) {
+                    dstZFile.addRaw(entryName, entry);
+                    counters.bytesCopied += entry.getCentralDirectoryHeader().getCompressionInfoWithWait().getCompressedSize();
+                    return;
+                }
+            }
+        }
+        try (var is = new ByteArrayInputStream(loaderArtifact(name))) {
+            dstZFile.add(entryName, is);
+        }
+    }
+
+    /**
+     * Reports the phases of patching an apk to a listener. Counters are kept for the whole apk and
+     * each phase reports how much they grew while it ran. Starting a phase finishes the previous
+     * one, and fails if the thread was interrupted.
+     */
+    private class PhaseTracker {
+        private final File apk;
+        private final PatchListener listener;
+        final Counters counters = new Counters();
+        /** Statistics of the output zip, from which the compressed bytes are counted. */
+        CompressionStats compressionStats;
+        private Phase phase;
+        private long startTime;
+        private Counters startCounters;
+
+        PhaseTracker(File apk, PatchListener listener) {
+            this.apk = apk;
+            this.listener = listener;
+        }
+
+        void start(Phase phase) {
+            finish();
+            if (Thread.currentThread().isInterrupted())
+                throw new CancellationException("Interrupted before " + phase);
+            this.phase = phase;
+            startCounters = snapshot();
+            listener.onPhaseStarted(apk, phase);
+            startTime = System.nanoTime();
+        }
+
+        void finish() {
+            finish(0);
+        }
+
+        /**
+         * Finishes the current phase, if any.
+         *
+         * @param excludedNanos time spent during the phase in another phase, reported apart
+         */
+        void finish(long excludedNanos) {
+            if (phase == null) return;
+            long duration = System.nanoTime() - startTime - excludedNanos;
+            var current = phase;
+            phase = null;
+            report(current, duration, snapshot().since(startCounters), false);
+        }
+
+        /**
+         * Reports a phase that has been timed by other means.
+         */
+        void report(Phase phase, long durationNanos, Counters counters) {
+            finish();
+            report(phase, durationNanos, counters, true);
+        }
+
+        private void report(Phase phase, long durationNanos, Counters counters, boolean notifyStart) {
+            logger.d(String.format(Locale.ROOT, "%s: %d ms", phase, durationNanos / 1_000_000));
+            if (notifyStart)
+                listener.onPhaseStarted(apk, phase);
+            listener.onPhaseFinished(apk, phase, durationNanos, counters);
+        }
+
+        private Counters snapshot() {
+            if (compressionStats != null)
+                counters.bytesCompressed = compressionStats.getDeflatedBytes() + compressionStats.getUselesslyDeflatedBytes();
+            return counters.copy();
+        }
+    }
+
+    private PatchResult doPatch(PatchRequest request, PatchListener listener) throws PatchError, IOException {
+        long patchStartTime = System.nanoTime();
+        var srcApkFile = request.getApk();
+        var outputFile = request.getOutput();
+        if (!srcApkFile.exists())
+            throw new PatchError("The source apk file does not exit. Please provide a correct path.");
+        if (outputFile.equals(srcApkFile))
+            throw new PatchError(outputFile + " would overwrite the source apk");
+        if (outputFile.exists() && !request.isOverwrite())
+            throw new PatchError(outputFile + " exists");
+
+        outputFile.delete();
+        if (outputFile.getParentFile() != null)
+            outputFile.getParentFile().mkdirs();
+
+        logger.d("apk path: " + srcApkFile);
+
+        logger.i("Parsing original apk...");
+
+        loadArtifacts(listener);
+
+        var updateLoader = request.isUpdate();
+        var useManager = request.isUseManager();
+        var sigbypassLevel = request.getSigBypassLevel();
+        var v4SignatureFile = request.isV4Signing() ? v4SignatureFile(outputFile) : null;
+        var tracker = new PhaseTracker(srcApkFile, listener);
+        CompressionStats compressionStats;
+        String storageStats;
+        SigningExtension signingExtension;
+        // in update mode the original apk is nested straight from the patched apk, without extracting it
+        try (var patchedZFile = updateLoader ? openInput(srcApkFile) : null;
+             var dstZFile = ZFile.openReadWrite(outputFile, zFileOptions);
+             var srcZFile = updateLoader
+                     ? dstZFile.addNestedZip((ignore) -> ORIGINAL_APK_ASSET_PATH, patchedZFile, ORIGINAL_APK_ASSET_PATH)
+                     : dstZFile.addNestedZip((ignore) -> ORIGINAL_APK_ASSET_PATH, srcApkFile, false)) {
+            tracker.compressionStats = dstZFile.getCompressionStats();
+
+            // sign apk
+            try {
+                signingExtension = new SigningExtension(SigningOptions.builder()
+                        .setMinSdkVersion(28)
+                        .setV2SigningEnabled(true)
+                        .setCertificates((X509Certificate[]) signingKey.getCertificateChain())
+                        .setKey(signingKey.getPrivateKey())
+                        .setV4SignatureOutputFile(v4SignatureFile)
+                        // the v2 chunk digests are independent, the output is mapped to digest them on all cores
+                        .setExecutor(RunnablesExecutor.MULTI_THREADED)
+                        .build());
+                signingExtension.register(dstZFile);
+            } catch (Exception e) {
+                throw new PatchError("Failed to register signer", e);
+            }
+
+            String originalSignature = null;
+            if (sigbypassLevel > 0) {
+                tracker.start(Phase.EXTRACT_SIGNATURE);
+                originalSignature = updateLoader
+                        ? getPatchedConfig(patchedZFile).originalSignature
+                        : ApkSignatureHelper.getApkSignInfo(srcApkFile.getAbsolutePath());
+                if (originalSignature == null || originalSignature.isEmpty()) {
+                    throw new PatchError("get original signature failed");
+                }
+                logger.d("Original signature\n" + originalSignature);
+            }
+
+            // copy out manifest file from zlib
+            tracker.start(Phase.EDIT_MANIFEST);
+            var manifestEntry = srcZFile.get(ANDROID_MANIFEST_XML);
+            if (manifestEntry == null)
+                throw new PatchError("Provided file is not a valid apk");
+
+            // parse the app appComponentFactory full name from the manifest file
+            final String appComponentFactory;
+            int minSdkVersion;
+            try (var is = manifestEntry.open()) {
+                var pair = ManifestParser.parseManifestFile(is);
+                if (pair == null)
+                    throw new PatchError("Failed to parse AndroidManifest.xml");
+                appComponentFactory = pair.appComponentFactory;
+                minSdkVersion = pair.minSdkVersion;
+                logger.d("original appComponentFactory class: " + appComponentFactory);
+                logger.d("original minSdkVersion: " + minSdkVersion);
+            }
+
+            logger.i("Patching apk...");
+            // modify manifest
+            final var config = new PatchConfig(useManager, request.isDebuggable(), request.isOverrideVersionCode(), sigbypassLevel, originalSignature, appComponentFactory);
+            final var configBytes = new Gson().toJson(config).getBytes(StandardCharsets.UTF_8);
+            final var metadata = Base64.getEncoder().encodeToString(configBytes);
+            try (var is = new ByteArrayInputStream(modifyManifestFile(manifestEntry.open(), metadata, minSdkVersion, request))) {
+                dstZFile.add(ANDROID_MANIFEST_XML, is);
+            } catch (Throwable e) {
+                throw new PatchError("Error when modifying manifest", e);
+            }
+
+            tracker.start(Phase.ADD_LOADER);
+            logger.i("Adding config...");
+            // save lspatch config to asset..
+            try (var is = new ByteArrayInputStream(configBytes)) {
+                dstZFile.add(CONFIG_ASSET_PATH, is);
+            } catch (Throwable e) {
+                throw new PatchError("Error when saving config");
+            }
+
+            logger.i("Adding metaloader dex...");
+            try {
+                addLoaderArtifact(dstZFile, Constants.META_LOADER_DEX_ASSET_PATH, "classes.dex", tracker.counters);
+            } catch (Throwable e) {
+                throw new PatchError("Error when adding dex", e);
+            }
+
+            if (!useManager) {
+                logger.i("Adding loader dex...");
+                try {
+                    addLoaderArtifact(dstZFile, LOADER_DEX_ASSET_PATH, LOADER_DEX_ASSET_PATH, tracker.counters);
+                } catch (Throwable e) {
+                    throw new PatchError("Error when adding assets", e);
+                }
+
+                logger.i("Adding native lib...");
+                // copy so and dex files into the unzipped apk
+                // do not put liblspatch.so into apk!lib because x86 native bridge causes crash
+                for (String arch : ARCHES) {
+                    String entryName = "assets/lspatch/so/" + arch + "/liblspatch.so";
+                    var bytes = loaderArtifact(entryName);
+                    try (var is = new ByteArrayInputStream(bytes)) {
+                        dstZFile.add(entryName, is, false); // no compress for so
+                        tracker.counters.bytesCopied += bytes.length;
+                    } catch (Throwable e) {
+                        // More exception info
+                        throw new PatchError("Error when adding native lib", e);
+                    }
+                    logger.d("added " + entryName);
+                }
+
+                tracker.start(Phase.EMBED_MODULES);
+                if (updateLoader) {
+                    logger.i("Keeping embedded modules...");
+                    for (var name : patchedZFile.entryNames()) {
+                        if (name.startsWith(EMBEDDED_MODULES_ASSET_PATH)) {
+                            var module = patchedZFile.get(name);
+                            dstZFile.addRaw(name, module);
+                            tracker.counters.bytesCopied += module.getCentralDirectoryHeader().getCompressionInfoWithWait().getCompressedSize();
+                        }
+                    }
+                }
+
+                logger.i("Embedding modules...");
+                embedModules(dstZFile, request.getModules(), tracker.counters);
+            }
+
+            // create zip link
+            tracker.start(Phase.LINK_ENTRIES);
+            logger.d("Creating nested apk link...");
+            // the original apk is copied as is when the output is written
+            tracker.counters.bytesCopied += srcZFile.getEntry().getCentralDirectoryHeader().getUncompressedSize();
+
+            // linked in one batch, the nested apk's local header holds every link
+            List<String> links = new ArrayList<>();
+            for (StoredEntry entry : srcZFile.entries()) {
+                String name = entry.getCentralDirectoryHeader().getName();
+                if (name.startsWith("classes") && name.endsWith(".dex")) continue;
+                if (dstZFile.get(name) != null) continue;
+                if (name.equals("AndroidManifest.xml")) continue;
+                if (name.startsWith("META-INF") && (name.endsWith(".SF") || name.endsWith(".MF") || name.endsWith(".RSA"))) continue;
+                links.add(name);
+            }
+            var notLinked = srcZFile.addFileLinks(links);
+            tracker.counters.entriesLinked += links.size() - notLinked.size();
+            logger.d("Linked " + (links.size() - notLinked.size()) + "/" + links.size() + " entries");
+
+            tracker.start(Phase.REALIGN);
+            dstZFile.realign();
+
+            logger.i("Writing apk...");
+            tracker.start(Phase.WRITE);
+            compressionStats = dstZFile.getCompressionStats();
+            storageStats = describeStorage(dstZFile);
+        }
+        logger.d("Compression: " + compressionStats);
+        logger.d("Storage: " + storageStats);
+        // signing runs while the output is closed, report it apart from writing the entries
+        long signingNanos = signingExtension.getSigningTimeNanos();
+        tracker.counters.bytesWritten = outputFile.length();
+        tracker.finish(signingNanos);
+        tracker.report(Phase.SIGN, signingNanos, new Counters());
+        logger.i("Done. Output APK: " + outputFile.getAbsolutePath());
+        return new PatchResult(srcApkFile, outputFile, v4SignatureFile,
+                (System.nanoTime() - patchStartTime) / 1_000_000, tracker.counters.copy());
+    }
+
+    private PatchConfig getPatchedConfig(ZFile patchedZFile) throws PatchError, IOException {
+        var configEntry = patchedZFile.get(CONFIG_ASSET_PATH);
+        if (configEntry == null)
+            throw new PatchError("Provided file is not a patched apk");
+        try (var is = configEntry.open()) {
+            return new Gson().fromJson(new String(ByteStreams.toByteArray(is), StandardCharsets.UTF_8), PatchConfig.class);
+        }
+    }
+
+    private void embedModules(ZFile zFile, List<File> modules, Counters counters) {
+        for (var file : modules) {
+            try (var apk = openInput(file);
+                 var xmlIs = Objects.requireNonNull(apk.get(ANDROID_MANIFEST_XML)).open()
+            ) {
+                var manifest = Objects.requireNonNull(ManifestParser.parseManifestFile(xmlIs));
+                var packageName = manifest.packageName;
+                logger.i("  - " + packageName);
+                // apks are already compressed, copy them file to file when the output is written
+                zFile.addStoredFile(EMBEDDED_MODULES_ASSET_PATH + packageName + ".apk", file);
+                counters.bytesCopied += file.length();
+            } catch (NullPointerException | IOException e) {
+                logger.e(file + " does not exist or is not a valid apk file.");
+            }
+        }
+    }
+
+    private byte[] modifyManifestFile(InputStream is, String metadata, int minSdkVersion, PatchRequest request) throws IOException {
+        ModificationProperty property = new ModificationProperty();
+
+        if (request.isOverrideVersionCode())
+            property.addManifestAttribute(new AttributeItem(NodeValue.Manifest.VERSION_CODE, 1));
+        if (minSdkVersion < 28)
+            property.addUsesSdkAttribute(new AttributeItem(NodeValue.UsesSDK.MIN_SDK_VERSION, "28"));
+        property.addApplicationAttribute(new AttributeItem(NodeValue.Application.DEBUGGABLE, request.isDebuggable()));
+        property.addApplicationAttribute(new AttributeItem("appComponentFactory", PROXY_APP_COMPONENT_FACTORY));
+        property.addMetaData(new ModificationProperty.MetaData("lspatch", metadata));
+        // TODO: replace query_all with queries -> manager
+        if (request.isUseManager())
+            property.addUsesPermission("android.permission.QUERY_ALL_PACKAGES");
+
+        var os = new ByteArrayOutputStream();
+        (new ManifestEditor(is, os, property)).processManifest();
+        is.close();
+        os.flush();
+        os.close();
+        return os.toByteArray();
+    }
+
+    public static final class Builder {
+        private Logger logger = new Logger() {
+            @Override
+            public void d(String msg) {
+            }
+
+            @Override
+            public void i(String msg) {
+            }
+
+            @Override
+            public void e(String msg) {
+            }
+        };
+        private String keystorePath = null;
+        private String keystorePassword = "123456";
+        private String keyAlias = "key0";
+        private String keyPassword = "123456";
+        private int compressThreads = Runtime.getRuntime().availableProcessors();
+        private long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+        private File tempDir = null;
+        private ArtifactCache artifactCache = null;
+
+        private Builder() {
+        }
+
+        /** Sets where the progress is logged. Nothing is logged by default. */
+        public Builder setLogger(Logger logger) {
+            this.logger = logger;
+            return this;
+        }
+
+        /**
+         * Signs with a custom keystore instead of the default one.
+         *
+         * @param keystore the keystore file
+         * @param password password of the keystore
+         * @param alias alias of the key
+         * @param keyPassword password of the key
+         */
+        public Builder setKeystore(File keystore, String password, String alias, String keyPassword) {
+            this.keystorePath = keystore.getPath();
+            this.keystorePassword = password;
+            this.keyAlias = alias;
+            this.keyPassword = keyPassword;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads compressing entries of all apks. 1 compresses on the patching
+         * thread. Default: number of processors.
+         */
+        public Builder setCompressThreads(int compressThreads) {
+            if (compressThreads < 1)
+                throw new IllegalArgumentException("compressThreads < 1");
+            this.compressThreads = compressThreads;
+            return this;
+        }
+
+        /**
+         * Sets the memory holding entry data of each apk being patched; data that does not fit is
+         * spilled to disk. Default: a quarter of the max heap.
+         */
+        public Builder setMemoryBudget(long memoryBudget) {
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+        /** Sets where data that does not fit in memory is spilled. Default: system temp dir. */
+        public Builder setTempDir(File tempDir) {
+            this.tempDir = tempDir;
+            return this;
+        }
+
+        /** Takes the key, the loader resources and the compression pool from a cache. */
+        Builder setArtifactCache(ArtifactCache artifactCache) {
+            this.artifactCache = artifactCache;
+            return this;
+        }
+
+        public PatchSession build() {
+            return new PatchSession(this);
+        }
+    }
+}
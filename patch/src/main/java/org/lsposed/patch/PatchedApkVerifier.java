@@ -0,0 +1,276 @@
+package org.lsposed.patch;
+
+import static org.lsposed.lspatch.share.Constants.CONFIG_ASSET_PATH;
+import static org.lsposed.lspatch.share.Constants.ORIGINAL_APK_ASSET_PATH;
+
+import com.android.apksig.ApkVerifier;
+import com.android.tools.build.apkzlib.zip.AlignmentRule;
+import com.android.tools.build.apkzlib.zip.CompressionMethod;
+import com.android.tools.build.apkzlib.zip.StoredEntry;
+import com.android.tools.build.apkzlib.zip.ZFile;
+import com.android.tools.build.apkzlib.zip.ZFileOptions;
+import com.google.common.io.ByteStreams;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import org.lsposed.lspatch.share.PatchConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Checks that a patched apk is fit to ship: every entry matches its CRC32, stored entries follow
+ * the alignment rules used when patching, linked entries resolve inside the original apk, the
+ * patch config parses and the APK signature verifies. Entries are checked in parallel while the
+ * signature is verified on another thread.
+ */
+public class PatchedApkVerifier {
+
+    /** Kinds of problems found by the verifier. */
+    public enum Check {
+        /** The apk could not be opened as a zip. */
+        OPEN,
+        /** An entry's data does not match its CRC32 or size. */
+        CRC,
+        /** A stored entry is not aligned as required. */
+        ALIGNMENT,
+        /** A linked entry does not resolve inside the original apk. */
+        LINK,
+        /** The patch config is missing or does not parse. */
+        CONFIG,
+        /** The APK signature does not verify. */
+        SIGNATURE
+    }
+
+    /** A problem found in an apk. */
+    public static class Problem {
+        public final Check check;
+        /** Name of the entry with the problem, {@code null} if it is not about an entry. */
+        public final String entry;
+        public final String message;
+
+        Problem(Check check, String entry, String message) {
+            this.check = check;
+            this.entry = entry;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return check + (entry != null ? " " + entry : "") + ": " + message;
+        }
+    }
+
+    /** Result of verifying an apk. Fields are public so that the report can be serialized. */
+    public static class Report {
+        public final String apk;
+        public boolean ok;
+        public int entries;
+        public int linkedEntries;
+        public long checkedBytes;
+        public long timeMillis;
+        public final List<Problem> problems = new ArrayList<>();
+
+        Report(String apk) {
+            this.apk = apk;
+        }
+    }
+
+    /** Buffers used to read entries, one per thread checking entries. */
+    private static final ThreadLocal<byte[]> READ_BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    private final AlignmentRule alignmentRule;
+    private final int parallelism;
+
+    /**
+     * @param alignmentRule the alignment rule the apk was written with
+     * @param parallelism how many entries are checked at the same time
+     */
+    public PatchedApkVerifier(AlignmentRule alignmentRule, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism < 1");
+        this.alignmentRule = alignmentRule;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Verifies an apk. Problems are reported, not thrown.
+     *
+     * @param apk the patched apk
+     * @return the report, whose {@code ok} is set if no problems were found
+     */
+    public Report verify(File apk) {
+        var report = new Report(apk.getAbsolutePath());
+        long startTime = System.nanoTime();
+        List<Problem> problems = Collections.synchronizedList(report.problems);
+        try (var zFile = ZFile.openReadOnly(apk, new ZFileOptions().setMemoryMapReadOnly(true).setNestedEntriesAllowed(true))) {
+            var signature = CompletableFuture.supplyAsync(() -> verifySignature(zFile));
+
+            var entries = new ArrayList<>(zFile.entries());
+            report.entries = entries.size();
+            var linked = checkLinks(zFile, entries, problems);
+            report.linkedEntries = linked.size();
+            checkConfig(zFile, problems);
+
+            var checkedBytes = new AtomicLong();
+            zFile.forEachEntryParallel(entry -> {
+                checkedBytes.addAndGet(checkCrc(entry, problems));
+                // Linked entries keep the layout of the original apk, which was not written by us.
+                if (!linked.contains(entry))
+                    checkAlignment(entry, problems);
+            }, parallelism);
+            report.checkedBytes = checkedBytes.get();
+
+            problems.addAll(signature.join());
+        } catch (IOException e) {
+            problems.add(new Problem(Check.OPEN, null, String.valueOf(e)));
+        }
+
+        report.problems.sort(Comparator.comparing((Problem p) -> p.check)
+                .thenComparing(p -> p.entry, Comparator.nullsFirst(Comparator.naturalOrder())));
+        report.ok = report.problems.isEmpty();
+        report.timeMillis = (System.nanoTime() - startTime) / 1_000_000;
+        return report;
+    }
+
+    /**
+     * Reads an entry and compares its data with the central directory.
+     *
+     * @return the number of bytes read
+     */
+    private static long checkCrc(StoredEntry entry, List<Problem> problems) throws IOException {
+        var cdh = entry.getCentralDirectoryHeader();
+        var crc = new CRC32();
+        var buffer = READ_BUFFER.get();
+        long size = 0;
+        try (InputStream is = entry.open()) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                size += read;
+            }
+        } catch (IOException e) {
+            problems.add(new Problem(Check.CRC, cdh.getName(), "Failed to read: " + e));
+            return size;
+        }
+
+        if (size != cdh.getUncompressedSize()) {
+            problems.add(new Problem(Check.CRC, cdh.getName(),
+                    "Size is " + size + ", expected " + cdh.getUncompressedSize()));
+        } else if (crc.getValue() != cdh.getCrc32()) {
+            problems.add(new Problem(Check.CRC, cdh.getName(), String.format(Locale.ROOT,
+                    "CRC32 is %08x, expected %08x", crc.getValue(), cdh.getCrc32())));
+        }
+        return size;
+    }
+
+    private void checkAlignment(StoredEntry entry, List<Problem> problems) throws IOException {
+        var cdh = entry.getCentralDirectoryHeader();
+        if (cdh.getCompressionInfoWithWait().getMethod() != CompressionMethod.STORE)
+            return;
+
+        int alignment = alignmentRule.alignment(cdh.getName());
+        long dataOffset = cdh.getOffset() + entry.getLocalHeaderSize();
+        if (dataOffset % alignment != 0) {
+            problems.add(new Problem(Check.ALIGNMENT, cdh.getName(),
+                    "Data at " + dataOffset + " is not aligned to " + alignment));
+        }
+    }
+
+    /**
+     * Checks that every entry nested in another one is a link into the data of the original apk.
+     * Opening the zip already guarantees that nested entries do not cross the end of the entry
+     * holding them.
+     *
+     * @return the linked entries
+     */
+    private static Set<StoredEntry> checkLinks(ZFile zFile, List<StoredEntry> entries, List<Problem> problems)
+            throws IOException {
+        var sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingLong(e -> e.getCentralDirectoryHeader().getOffset()));
+
+        var origin = zFile.get(ORIGINAL_APK_ASSET_PATH);
+        long originDataStart = -1;
+        long originEnd = -1;
+        if (origin != null) {
+            originDataStart = origin.getCentralDirectoryHeader().getOffset() + origin.getLocalHeaderSize();
+            originEnd = originDataStart + origin.getCentralDirectoryHeader().getCompressionInfoWithWait().getCompressedSize();
+        }
+
+        Set<StoredEntry> linked = new HashSet<>();
+        StoredEntry container = null;
+        long containerEnd = -1;
+        for (var entry : sorted) {
+            var cdh = entry.getCentralDirectoryHeader();
+            long start = cdh.getOffset();
+            long dataStart = start + entry.getLocalHeaderSize();
+            long dataEnd = dataStart + cdh.getCompressionInfoWithWait().getCompressedSize();
+            if (container == null || start >= containerEnd) {
+                container = entry;
+                containerEnd = dataEnd;
+                continue;
+            }
+
+            linked.add(entry);
+            if (container != origin) {
+                problems.add(new Problem(Check.LINK, cdh.getName(), "Nested in '"
+                        + container.getCentralDirectoryHeader().getName() + "' instead of the original apk"));
+            } else if (dataStart < originDataStart || dataEnd > originEnd) {
+                problems.add(new Problem(Check.LINK, cdh.getName(), "Data at " + dataStart + "-"
+                        + dataEnd + " is outside of the original apk data at " + originDataStart
+                        + "-" + originEnd));
+            } else if (origin.getCentralDirectoryHeader().getCompressionInfoWithWait().getMethod()
+                    != CompressionMethod.STORE) {
+                problems.add(new Problem(Check.LINK, cdh.getName(), "The original apk is compressed"));
+            }
+        }
+        return linked;
+    }
+
+    private static void checkConfig(ZFile zFile, List<Problem> problems) {
+        var configEntry = zFile.get(CONFIG_ASSET_PATH);
+        if (configEntry == null) {
+            problems.add(new Problem(Check.CONFIG, CONFIG_ASSET_PATH, "Missing"));
+            return;
+        }
+
+        try (var is = configEntry.open()) {
+            var config = new Gson().fromJson(new String(ByteStreams.toByteArray(is), StandardCharsets.UTF_8), PatchConfig.class);
+            if (config == null)
+                problems.add(new Problem(Check.CONFIG, CONFIG_ASSET_PATH, "Empty"));
+        } catch (IOException | JsonParseException e) {
+            problems.add(new Problem(Check.CONFIG, CONFIG_ASSET_PATH, "Does not parse: " + e));
+        }
+    }
+
+    private static List<Problem> verifySignature(ZFile zFile) {
+        List<Problem> problems = new ArrayList<>();
+        // patched apks are signed with v2 only, for minSdkVersion 28
+        try (var apk = zFile.asMappedDataSource(0, zFile.directSize())) {
+            var result = new ApkVerifier.Builder(apk)
+                    .setMinCheckedPlatformVersion(28)
+                    .build()
+                    .verify();
+            if (!result.isVerified()) {
+                problems.add(new Problem(Check.SIGNATURE, null, "Does not verify"));
+                for (var error : result.getErrors())
+                    problems.add(new Problem(Check.SIGNATURE, null, String.valueOf(error)));
+            }
+        } catch (Exception e) {
+            problems.add(new Problem(Check.SIGNATURE, null, "Failed to verify: " + e));
+        }
+        return problems;
+    }
+}
@@ -0,0 +1,547 @@
+package org.lsposed.patch;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import org.lsposed.patch.LSPatch.PatchError;
+import org.lsposed.patch.util.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@code lspatch serve}: patches apks for clients of a Unix domain socket, so that JVM startup,
+ * the signing key, the loader resources and the compression pool are paid for once instead of on
+ * every run.
+ *
+ * <p>Jobs read and write files with the rights of the daemon, so only its owner may connect. The
+ * socket is {@code lspatch/serve.sock} in {@code $XDG_RUNTIME_DIR}, or in {@code ~/.lspatch}
+ * without it, in a directory only the owner can access, and is itself only accessible by the owner.
+ * With {@code --tcp} the daemon listens on a localhost port instead, which any local user can
+ * connect to; every request then has to carry the {@code token} the daemon writes to a file only
+ * the owner can read when it starts.
+ *
+ * <p>Clients send requests as JSON objects, one per line, and get one JSON line back per request:
+ * <ul>
+ *     <li>{@code {"type": "patch", "id": "1", "args": ["-o", "/out", "/in/app.apk"]}} patches with
+ *     the same arguments as the command line. Relative paths are resolved against the working
+ *     directory of the daemon. The response has a {@code status} of {@code ok}, {@code error} or
+ *     {@code busy}, the patched apks, the time spent queued and patching, the totals of each
+ *     patching phase and the log of the job.</li>
+ *     <li>{@code {"type": "metrics"}} gets the queue depth, job counts and latency percentiles.</li>
+ *     <li>{@code {"type": "shutdown"}} stops accepting jobs and exits once queued jobs are done.</li>
+ * </ul>
+ * Requests of a connection are handled one after the other; clients open several connections to
+ * run several jobs at the same time. Jobs run on a fixed pool of workers; once the queue in front
+ * of it is full, jobs are answered {@code busy} right away so that clients back off.
+ */
+public class ServeCommand {
+
+    private static final Set<PosixFilePermission> OWNER_ONLY_DIRECTORY = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+
+    @Parameter(names = {"-h", "--help"}, help = true, order = 0, description = "Print this message")
+    private boolean help = false;
+
+    @Parameter(names = {"--socket"}, description = "Unix domain socket to listen on. default: lspatch/serve.sock in $XDG_RUNTIME_DIR or ~/.lspatch")
+    private String socketPath = null;
+
+    @Parameter(names = {"--tcp"}, description = "Listen on a localhost port instead of a Unix domain socket. Requests have to carry the token written to --token-file")
+    private boolean tcp = false;
+
+    @Parameter(names = {"--port"}, description = "Localhost port to listen on with --tcp, 0 for any free port")
+    private int port = 7470;
+
+    @Parameter(names = {"--token-file"}, description = "File the token of --tcp is written to. default: serve.token next to the default socket")
+    private String tokenPath = null;
+
+    @Parameter(names = {"-j", "--jobs"}, description = "Number of apks patched at the same time. default: half the number of processors")
+    private int jobs = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    @Parameter(names = {"--queue"}, description = "Number of jobs waiting for a worker before new ones are answered busy")
+    private int queueSize = 64;
+
+    @Parameter(names = {"-t", "--compress-threads"}, description = "Number of threads compressing entries for all jobs. 1 compresses on the job thread. default: number of processors")
+    private int compressThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"-v", "--verbose"}, description = "Verbose output")
+    private boolean verbose = false;
+
+    /** A request of a client. */
+    private static class Request {
+        String type;
+        /** The token of the run, required with {@code --tcp}. */
+        String token;
+        /** Echoed in the response, so that clients can match them. */
+        String id;
+        List<String> args;
+    }
+
+    /** Latencies of the most recent jobs. */
+    private static class LatencyWindow {
+        private final double[] millis = new double[1024];
+        private int count;
+
+        synchronized void add(double value) {
+            millis[count++ % millis.length] = value;
+        }
+
+        synchronized Map<String, Object> snapshot() {
+            var values = Arrays.copyOf(millis, Math.min(count, millis.length));
+            Arrays.sort(values);
+            var snapshot = new LinkedHashMap<String, Object>();
+            snapshot.put("p50", percentile(values, 50));
+            snapshot.put("p99", percentile(values, 99));
+            snapshot.put("max", values.length > 0 ? values[values.length - 1] : 0);
+            snapshot.put("mean", Arrays.stream(values).average().orElse(0));
+            return snapshot;
+        }
+
+        /** Nearest-rank percentile of sorted values. */
+        private static double percentile(double[] sorted, int percentile) {
+            if (sorted.length == 0) return 0;
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+    }
+
+    /** Keeps the log of a job, to be sent with its response. */
+    private static class JobLogger extends Logger {
+        final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void d(String msg) {
+            if (verbose) lines.add(msg);
+        }
+
+        @Override
+        public void i(String msg) {
+            lines.add(msg);
+        }
+
+        @Override
+        public void e(String msg) {
+            lines.add(msg);
+        }
+    }
+
+    private final JCommander jCommander;
+
+    private final Logger logger;
+
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final LatencyWindow queueLatency = new LatencyWindow();
+    private final LatencyWindow jobLatency = new LatencyWindow();
+
+    private ThreadPoolExecutor executor;
+    private ArtifactCache artifactCache;
+    private ServerSocketChannel server;
+    /** Checked on every request with {@code --tcp}, {@code null} on a Unix domain socket. */
+    private byte[] token;
+    private long startTime;
+    private volatile boolean stopping = false;
+
+    public ServeCommand(Logger logger, String... args) {
+        jCommander = JCommander.newBuilder().addObject(this).programName("lspatch serve").build();
+        try {
+            jCommander.parse(args);
+        } catch (ParameterException e) {
+            logger.e(e.getMessage() + "\n");
+            help = true;
+        }
+        if (tcp && socketPath != null) {
+            logger.e("--socket and --tcp cannot be used together\n");
+            help = true;
+        }
+        if (port < 0 || port > 65535) {
+            logger.e("--port should be between 0 and 65535\n");
+            help = true;
+        }
+        if (jobs < 1) {
+            logger.e("--jobs should be at least 1\n");
+            help = true;
+        }
+        if (queueSize < 0) {
+            logger.e("--queue should be at least 0\n");
+            help = true;
+        }
+        if (compressThreads < 1) {
+            logger.e("--compress-threads should be at least 1\n");
+            help = true;
+        }
+
+        this.logger = logger;
+        logger.verbose = verbose;
+    }
+
+    /**
+     * Serves requests until a client asks to shut down.
+     *
+     * @return the exit status: 0 once shut down, 1 if the daemon could not listen, 2 on usage errors
+     */
+    public int run() {
+        if (help) {
+            jCommander.usage();
+            return 2;
+        }
+
+        Path socket = null;
+        Path tokenFile = null;
+        try {
+            if (tcp) {
+                tokenFile = tokenPath != null ? Path.of(tokenPath).toAbsolutePath() : privateDirectory().resolve("serve.token");
+                writeToken(tokenFile);
+                server = listenTcp();
+            } else {
+                socket = socketPath != null ? Path.of(socketPath).toAbsolutePath() : privateDirectory().resolve("serve.sock");
+                server = listenUnix(socket);
+            }
+        } catch (IOException e) {
+            if (tokenFile != null)
+                tokenFile.toFile().delete();
+            logger.e("Cannot listen on " + (tcp ? "port " + port : socket != null ? socket : "the default socket") + ": " + e);
+            return 1;
+        }
+        var created = tcp ? tokenFile : socket;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> created.toFile().delete()));
+
+        startTime = System.nanoTime();
+        artifactCache = new ArtifactCache(PatchSession.openLoaderJar(logger), compressThreads);
+        // a queue of 0 hands jobs to idle workers only
+        executor = new ThreadPoolExecutor(jobs, jobs, 0, TimeUnit.MILLISECONDS,
+                queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>());
+        ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+            var thread = new Thread(runnable, "lspatch-serve-connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            logger.i("Listening on " + server.getLocalAddress() + " with " + jobs + " workers");
+            if (tcp)
+                logger.i("Requests have to carry the token in " + tokenFile);
+            while (!stopping) {
+                var channel = server.accept();
+                connections.execute(() -> serve(channel));
+            }
+        } catch (AsynchronousCloseException e) {
+            // closed by a shutdown request
+        } catch (IOException e) {
+            logger.e("Stopped accepting connections: " + e);
+        } finally {
+            stop();
+        }
+
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.i("Waiting for " + (executor.getActiveCount() + executor.getQueue().size()) + " jobs to finish...");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        connections.shutdownNow();
+        try {
+            artifactCache.close();
+        } catch (IOException e) {
+            logger.d("Cannot close the lspatch jar: " + e);
+        }
+        created.toFile().delete();
+        logger.i("Shut down after " + completed.get() + " jobs");
+        return 0;
+    }
+
+    /**
+     * Gets the directory of the default socket and token file, creating it so that only the owner
+     * can access it.
+     */
+    private static Path privateDirectory() throws IOException {
+        var runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+        var dir = runtimeDir != null && !runtimeDir.isEmpty()
+                ? Path.of(runtimeDir, "lspatch")
+                : Path.of(System.getProperty("user.home"), ".lspatch");
+        if (!isPosix(dir.getParent())) {
+            // on Windows the directory inherits the access list of the profile of the user
+            Files.createDirectories(dir);
+            return dir;
+        }
+        if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS))
+            Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(OWNER_ONLY_DIRECTORY));
+        var owner = Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS);
+        if (!owner.getName().equals(System.getProperty("user.name")))
+            throw new IOException(dir + " is owned by " + owner.getName());
+        Files.setPosixFilePermissions(dir, OWNER_ONLY_DIRECTORY);
+        return dir;
+    }
+
+    private ServerSocketChannel listenUnix(Path socket) throws IOException {
+        // a socket left by a daemon that did not shut down cleanly, anything else is not ours to delete
+        if (Files.isRegularFile(socket) || Files.isDirectory(socket))
+            throw new IOException(socket + " exists and is not a socket");
+        Files.deleteIfExists(socket);
+        var channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.bind(UnixDomainSocketAddress.of(socket));
+            // connecting needs write access to the socket
+            if (isPosix(socket))
+                Files.setPosixFilePermissions(socket, OWNER_ONLY_FILE);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private ServerSocketChannel listenTcp() throws IOException {
+        var channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Generates the token of the run and writes it to a file only the owner can read.
+     */
+    private void writeToken(Path file) throws IOException {
+        var bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        var text = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        token = text.getBytes(StandardCharsets.UTF_8);
+
+        // a token file of an earlier run may be readable by others, so it is never written in place
+        Files.deleteIfExists(file);
+        if (isPosix(file.getParent())) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(OWNER_ONLY_FILE));
+        } else {
+            Files.createFile(file);
+        }
+        Files.write(file, token);
+    }
+
+    private static boolean isPosix(Path path) {
+        return path.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    private void stop() {
+        stopping = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            logger.d("Cannot close the server socket: " + e);
+        }
+    }
+
+    /**
+     * Answers the requests of a connection until the client closes it.
+     */
+    private void serve(SocketChannel channel) {
+        try (channel;
+             var reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+             Writer writer = new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                writer.write(gson.toJson(handle(line)));
+                writer.write('\n');
+                writer.flush();
+            }
+        } catch (ClosedChannelException e) {
+            // closed by the client or on shutdown
+        } catch (IOException e) {
+            logger.d("Connection failed: " + e);
+        }
+    }
+
+    private Map<String, Object> handle(String line) {
+        Request request;
+        try {
+            request = gson.fromJson(line, Request.class);
+        } catch (JsonParseException e) {
+            return error(null, "Invalid request: " + e.getMessage());
+        }
+        if (request == null || request.type == null)
+            return error(request, "Missing request type");
+        if (token != null && (request.token == null
+                || !MessageDigest.isEqual(token, request.token.getBytes(StandardCharsets.UTF_8))))
+            return error(request, "Invalid token");
+
+        switch (request.type) {
+            case "patch":
+                return patch(request);
+            case "metrics":
+                return metrics(request);
+            case "shutdown":
+                logger.i("Shutting down on request");
+                stop();
+                return response(request, "ok");
+            default:
+                return error(request, "Unknown request type " + request.type);
+        }
+    }
+
+    /**
+     * Queues a job and waits for it, or answers {@code busy} right away if the queue is full.
+     */
+    private Map<String, Object> patch(Request request) {
+        if (request.args == null || request.args.isEmpty())
+            return error(request, "No args");
+        if (stopping)
+            return error(request, "Shutting down");
+
+        long queuedTime = System.nanoTime();
+        Future<Map<String, Object>> future;
+        try {
+            future = executor.submit(() -> runJob(request, queuedTime));
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            var response = response(request, "busy");
+            response.put("error", "All " + jobs + " workers are busy and " + queueSize + " jobs are queued");
+            return response;
+        }
+        submitted.incrementAndGet();
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return error(request, String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return error(request, "Interrupted");
+        }
+    }
+
+    private Map<String, Object> runJob(Request request, long queuedTime) {
+        long startTime = System.nanoTime();
+        double queuedMillis = (startTime - queuedTime) / 1e6;
+        queueLatency.add(queuedMillis);
+
+        var jobLogger = new JobLogger();
+        var args = new ArrayList<>(request.args);
+        // without a limit, every job of the pool would get its own quarter of the heap
+        if (!args.contains("--max-memory")) {
+            args.add(0, "--max-memory");
+            args.add(1, String.valueOf(Runtime.getRuntime().maxMemory() / 4 / jobs));
+        }
+        var lspatch = new LSPatch(jobLogger, args.toArray(new String[0]));
+        var metrics = new PatchMetrics();
+        lspatch.setArtifactCache(artifactCache);
+        lspatch.addPatchListener(metrics);
+
+        Map<String, Object> response;
+        if (lspatch.isHelp()) {
+            response = error(request, "Invalid arguments");
+        } else {
+            try {
+                lspatch.doCommandLine();
+                response = response(request, "ok");
+            } catch (PatchError | IOException | RuntimeException e) {
+                response = error(request, String.valueOf(e));
+            }
+        }
+
+        double millis = (System.nanoTime() - startTime) / 1e6;
+        jobLatency.add(queuedMillis + millis);
+        if (response.get("status").equals("ok"))
+            completed.incrementAndGet();
+        else
+            failed.incrementAndGet();
+
+        List<String> outputs = new ArrayList<>();
+        for (File output : lspatch.getOutputFiles())
+            outputs.add(output.getPath());
+        response.put("outputs", outputs);
+        response.put("queuedMillis", queuedMillis);
+        response.put("millis", millis);
+        response.put("phases", metrics.getTotals());
+        response.put("log", jobLogger.lines);
+        return response;
+    }
+
+    private Map<String, Object> metrics(Request request) {
+        var response = response(request, "ok");
+        response.put("uptimeSeconds", (System.nanoTime() - startTime) / 1_000_000_000L);
+        response.put("workers", jobs);
+        response.put("running", executor.getActiveCount());
+        response.put("queued", executor.getQueue().size());
+        response.put("queueCapacity", queueSize);
+        response.put("submitted", submitted.get());
+        response.put("completed", completed.get());
+        response.put("failed", failed.get());
+        response.put("rejected", rejected.get());
+        // over the last jobs only, queued time included in the job latency
+        response.put("queueMillis", queueLatency.snapshot());
+        response.put("jobMillis", jobLatency.snapshot());
+        response.put("keystoreLoads", artifactCache.getKeystoreLoads());
+        response.put("keystoreHits", artifactCache.getKeystoreHits());
+        response.put("cachedResources", artifactCache.getResourceCount());
+        return response;
+    }
+
+    private static Map<String, Object> response(Request request, String status) {
+        var response = new LinkedHashMap<String, Object>();
+        if (request != null && request.id != null)
+            response.put("id", request.id);
+        response.put("status", status);
+        return response;
+    }
+
+    private static Map<String, Object> error(Request request, String message) {
+        var response = response(request, "error");
+        response.put("error", message);
+        return response;
+    }
+}
@@ -0,0 +1,84 @@
+package org.lsposed.patch;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.google.gson.GsonBuilder;
+
+import org.lsposed.patch.util.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * {@code lspatch verify}: checks patched apks with {@link PatchedApkVerifier} and prints a report,
+ * either readable or as JSON.
+ */
+public class VerifyCommand {
+
+    @Parameter(description = "apks")
+    private List<String> apkPaths = new ArrayList<>();
+
+    @Parameter(names = {"-h", "--help"}, help = true, order = 0, description = "Print this message")
+    private boolean help = false;
+
+    @Parameter(names = {"-t", "--threads"}, description = "Number of threads checking entries. default: number of processors")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--json"}, description = "Print the report as JSON, one object per apk in an array")
+    private boolean json = false;
+
+    private final JCommander jCommander;
+
+    private final Logger logger;
+
+    public VerifyCommand(Logger logger, String... args) {
+        jCommander = JCommander.newBuilder().addObject(this).programName("lspatch verify").build();
+        try {
+            jCommander.parse(args);
+        } catch (ParameterException e) {
+            logger.e(e.getMessage() + "\n");
+            help = true;
+        }
+        if (apkPaths == null || apkPaths.isEmpty()) {
+            logger.e("No apk specified\n");
+            help = true;
+        }
+        if (threads < 1) {
+            logger.e("--threads should be at least 1\n");
+            help = true;
+        }
+
+        this.logger = logger;
+    }
+
+    /**
+     * Verifies all apks given on the command line.
+     *
+     * @return the exit status: 0 if all apks are fine, 1 if some are not, 2 on usage errors
+     */
+    public int run() {
+        if (help) {
+            jCommander.usage();
+            return 2;
+        }
+
+        var verifier = new PatchedApkVerifier(PatchSession.ALIGNMENT_RULE, threads);
+        List<PatchedApkVerifier.Report> reports = new ArrayList<>();
+        for (var apk : apkPaths) {
+            var report = verifier.verify(new File(apk));
+            reports.add(report);
+            if (json) continue;
+            logger.i(String.format(Locale.ROOT, "  [%s] %s (%d entries, %d linked, %d ms)",
+                    report.ok ? "OK" : "FAILED", apk, report.entries, report.linkedEntries, report.timeMillis));
+            for (var problem : report.problems)
+                logger.i("    " + problem);
+        }
+
+        if (json)
+            System.out.println(new GsonBuilder().setPrettyPrinting().create().toJson(reports));
+        return reports.stream().allMatch(r -> r.ok) ? 0 : 1;
+    }
+}